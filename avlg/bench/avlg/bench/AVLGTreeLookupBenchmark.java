@@ -0,0 +1,75 @@
+package avlg.bench;
+
+import avlg.AVLGTree;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * <p>Searches and range scans on an {@link AVLGTree} built by inserting size keys in the order of stream. Both
+ * throughput and the latency distribution (whose p99 JMH reports in sample mode) are measured; run with
+ * {@code -prof gc} for the allocation rate. {@link TreeMapLookupBenchmark} is the baseline.</p>
+ *
+ * @author Obinna Anadu
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class AVLGTreeLookupBenchmark {
+
+    @Param({"1", "2", "3", "4", "5", "6", "7", "8"})
+    public int g;
+
+    @Param({"1000", "100000", "10000000"})
+    public int size;
+
+    @Param({"SEQUENTIAL", "RANDOM", "ZIPFIAN", "NEAR_SORTED"})
+    public KeyStream stream;
+
+    private AVLGTree<Integer> tree;
+    private Integer[] probes;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Workload workload = new Workload(stream, size);
+        tree = new AVLGTree<>(g);
+        for (Integer key : workload.present) {
+            tree.insert(key);
+        }
+        probes = workload.probes;
+    }
+
+    private Integer probe() {
+        Integer key = probes[next];
+        next = (next + 1) & (Workload.PROBES - 1);
+        return key;
+    }
+
+    @Benchmark
+    public Integer search() {
+        return tree.get(probe());
+    }
+
+    @Benchmark
+    public void rangeScan(Blackhole bh) {
+        Integer lo = probe();
+        for (Integer key : tree.subSet(lo, lo + 2 * Workload.SCAN)) {
+            bh.consume(key);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package avlg.bench;
+
+import avlg.AVLGTree;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Insertions and deletions on an {@link AVLGTree} built by inserting size keys in the order of stream.</p>
+ *
+ * <p>Updates change the tree they measure, so they run in batches of {@link #BATCH} operations (one batch per
+ * measured iteration, whose times make up the reported distribution) and every batch is undone, outside of the
+ * measurement, before the next one starts. The tree therefore always has size keys when a batch starts, however
+ * fast the updates are. Run with {@code -prof gc} for the allocation rate. {@link TreeMapUpdateBenchmark} is the
+ * baseline.</p>
+ *
+ * @author Obinna Anadu
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 50, batchSize = AVLGTreeUpdateBenchmark.BATCH)
+@Measurement(iterations = 500, batchSize = AVLGTreeUpdateBenchmark.BATCH)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class AVLGTreeUpdateBenchmark {
+
+    static final int BATCH = 256;
+
+    @Param({"1", "2", "3", "4", "5", "6", "7", "8"})
+    public int g;
+
+    @Param({"1000", "100000", "10000000"})
+    public int size;
+
+    @Param({"SEQUENTIAL", "RANDOM", "ZIPFIAN", "NEAR_SORTED"})
+    public KeyStream stream;
+
+    private AVLGTree<Integer> tree;
+    private Workload workload;
+    private int start, next; // The batch is made of the keys at positions [start, next) of the stream.
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workload = new Workload(stream, size);
+        tree = new AVLGTree<>(g);
+        for (Integer key : workload.present) {
+            tree.insert(key);
+        }
+    }
+
+    @Benchmark
+    public void insert() {
+        tree.insert(workload.absent[next++ % size]);
+    }
+
+    @Benchmark
+    public Integer delete() throws Exception {
+        return tree.delete(workload.present[next++ % size]);
+    }
+
+    // Put back whatever the batch inserted or deleted, and move on to the next keys of the stream.
+    @TearDown(Level.Iteration)
+    public void undo() throws Exception {
+        for (int p = start; p < next; p++) {
+            if (tree.contains(workload.absent[p % size])) {
+                tree.delete(workload.absent[p % size]);
+            }
+            tree.insert(workload.present[p % size]);
+        }
+        start = next % size;
+        next = start;
+    }
+}
@@ -0,0 +1,77 @@
+package avlg.bench;
+
+import avlg.AVLGTree;
+import avlg.FrozenAVLGTree;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>The searches of {@link AVLGTreeLookupBenchmark}, on a {@link FrozenAVLGTree} copy of the same tree, with and
+ * without flattened keys. The tree is built with G = 1, since freezing it forgets its shape anyway.</p>
+ *
+ * @author Obinna Anadu
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class FrozenAVLGTreeLookupBenchmark {
+
+    @Param({"false", "true"})
+    public boolean flatten;
+
+    @Param({"1000", "100000", "10000000"})
+    public int size;
+
+    @Param({"SEQUENTIAL", "RANDOM", "ZIPFIAN", "NEAR_SORTED"})
+    public KeyStream stream;
+
+    private FrozenAVLGTree<Integer> frozen;
+    private Integer[] probes;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Workload workload = new Workload(stream, size);
+        AVLGTree<Integer> tree = new AVLGTree<>(1);
+        for (Integer key : workload.present) {
+            tree.insert(key);
+        }
+        frozen = flatten ? FrozenAVLGTree.of(tree, Integer::longValue) : FrozenAVLGTree.of(tree);
+        probes = workload.probes;
+    }
+
+    private Integer probe() {
+        Integer key = probes[next];
+        next = (next + 1) & (Workload.PROBES - 1);
+        return key;
+    }
+
+    @Benchmark
+    public Integer search() throws Exception {
+        return frozen.search(probe());
+    }
+
+    @Benchmark
+    public Integer floor() {
+        return frozen.floor(probe() + 1);
+    }
+
+    @Benchmark
+    public int rank() {
+        return frozen.rank(probe());
+    }
+}
@@ -0,0 +1,118 @@
+package avlg.bench;
+
+import java.util.Random;
+
+/**
+ * <p>The key streams the benchmarks run with. A stream decides two things: the order in which the keys of a tree
+ * are inserted, which determines how many rotations building it takes and what shape it ends up with, and
+ * which of those keys later operations ask for.</p>
+ * <ul>
+ *     <li>{@link #SEQUENTIAL}: keys are inserted and visited in ascending order.</li>
+ *     <li>{@link #RANDOM}: keys are inserted in random order and visited uniformly at random.</li>
+ *     <li>{@link #ZIPFIAN}: keys are inserted in random order and visited with a Zipfian (&theta; = 0.99)
+ *     popularity, so a few hot keys take most of the traffic.</li>
+ *     <li>{@link #NEAR_SORTED}: like {@link #SEQUENTIAL}, but one key in a hundred is swapped with a key at most
+ *     16 positions away.</li>
+ * </ul>
+ *
+ * <p>Both methods work with positions: {@code order(n, seed)[p]} is the p-th key inserted, and a probe is a
+ * position into that order.</p>
+ *
+ * @author Obinna Anadu
+ */
+public enum KeyStream {
+    SEQUENTIAL, RANDOM, ZIPFIAN, NEAR_SORTED;
+
+    private static final double THETA = 0.99;
+    private static final int SWAP_DISTANCE = 16;
+
+    /**
+     * Return the order in which the keys 0, ..., n - 1 are inserted.
+     * @param n The number of keys.
+     * @param seed The seed of the random choices, so that every run sees the same stream.
+     * @return A permutation of 0, ..., n - 1.
+     */
+    public int[] order(int n, long seed) {
+        Random r = new Random(seed);
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        switch (this) {
+            case RANDOM:
+            case ZIPFIAN:
+                for (int i = n - 1; i > 0; i--) {
+                    swap(order, i, r.nextInt(i + 1));
+                }
+                break;
+            case NEAR_SORTED:
+                for (int swaps = n / 100; swaps > 0; swaps--) {
+                    int i = r.nextInt(n);
+                    swap(order, i, Math.min(n - 1, i + 1 + r.nextInt(SWAP_DISTANCE)));
+                }
+                break;
+            default:
+                break;
+        }
+        return order;
+    }
+
+    /**
+     * Return count positions in [0, n), in the order later operations should visit them.
+     * @param n The number of keys.
+     * @param count The number of probes.
+     * @param seed The seed of the random choices, so that every run sees the same stream.
+     * @return The positions, into {@link #order(int, long)}, of the keys to visit.
+     */
+    public int[] probes(int n, int count, long seed) {
+        Random r = new Random(seed);
+        int[] probes = new int[count];
+        switch (this) {
+            case RANDOM:
+                for (int i = 0; i < count; i++) {
+                    probes[i] = r.nextInt(n);
+                }
+                break;
+            case ZIPFIAN:
+                zipf(probes, n, r);
+                break;
+            default:
+                for (int i = 0; i < count; i++) {
+                    probes[i] = i % n;
+                }
+                break;
+        }
+        return probes;
+    }
+
+    /* The generator of Gray et al., "Quickly Generating Billion-Record Synthetic Databases" (SIGMOD '94): after an
+     * O(n) computation of zeta(n), every sample costs O(1). Position 0 is the most popular.
+     */
+    private static void zipf(int[] probes, int n, Random r) {
+        double zetan = 0;
+        for (int i = 1; i <= n; i++) {
+            zetan += 1 / Math.pow(i, THETA);
+        }
+        double zeta2 = 1 + 1 / Math.pow(2, THETA);
+        double alpha = 1 / (1 - THETA);
+        double eta = (1 - Math.pow(2.0 / n, 1 - THETA)) / (1 - zeta2 / zetan);
+        for (int i = 0; i < probes.length; i++) {
+            double u = r.nextDouble(), uz = u * zetan;
+            int p;
+            if (uz < 1) {
+                p = 0;
+            } else if (uz < zeta2) {
+                p = 1;
+            } else {
+                p = (int) (n * Math.pow(eta * u - eta + 1, alpha));
+            }
+            probes[i] = Math.min(p, n - 1);
+        }
+    }
+
+    private static void swap(int[] a, int i, int j) {
+        int temp = a[i];
+        a[i] = a[j];
+        a[j] = temp;
+    }
+}
@@ -0,0 +1,71 @@
+package avlg.bench;
+
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * <p>The {@link TreeMap} baseline of {@link AVLGTreeLookupBenchmark}: the same workloads, on the red-black tree of
+ * the JDK.</p>
+ *
+ * @author Obinna Anadu
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class TreeMapLookupBenchmark {
+
+    @Param({"1000", "100000", "10000000"})
+    public int size;
+
+    @Param({"SEQUENTIAL", "RANDOM", "ZIPFIAN", "NEAR_SORTED"})
+    public KeyStream stream;
+
+    private TreeMap<Integer, Boolean> map;
+    private Integer[] probes;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Workload workload = new Workload(stream, size);
+        map = new TreeMap<>();
+        for (Integer key : workload.present) {
+            map.put(key, Boolean.TRUE);
+        }
+        probes = workload.probes;
+    }
+
+    private Integer probe() {
+        Integer key = probes[next];
+        next = (next + 1) & (Workload.PROBES - 1);
+        return key;
+    }
+
+    @Benchmark
+    public Boolean search() {
+        return map.get(probe());
+    }
+
+    @Benchmark
+    public void rangeScan(Blackhole bh) {
+        Integer lo = probe();
+        for (Integer key : map.subMap(lo, lo + 2 * Workload.SCAN).keySet()) {
+            bh.consume(key);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package avlg.bench;
+
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>The {@link TreeMap} baseline of {@link AVLGTreeUpdateBenchmark}: the same batches of updates, on the
+ * red-black tree of the JDK.</p>
+ *
+ * @author Obinna Anadu
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 50, batchSize = AVLGTreeUpdateBenchmark.BATCH)
+@Measurement(iterations = 500, batchSize = AVLGTreeUpdateBenchmark.BATCH)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class TreeMapUpdateBenchmark {
+
+    @Param({"1000", "100000", "10000000"})
+    public int size;
+
+    @Param({"SEQUENTIAL", "RANDOM", "ZIPFIAN", "NEAR_SORTED"})
+    public KeyStream stream;
+
+    private TreeMap<Integer, Boolean> map;
+    private Workload workload;
+    private int start, next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        workload = new Workload(stream, size);
+        map = new TreeMap<>();
+        for (Integer key : workload.present) {
+            map.put(key, Boolean.TRUE);
+        }
+    }
+
+    @Benchmark
+    public Boolean insert() {
+        return map.put(workload.absent[next++ % size], Boolean.TRUE);
+    }
+
+    @Benchmark
+    public Boolean delete() {
+        return map.remove(workload.present[next++ % size]);
+    }
+
+    @TearDown(Level.Iteration)
+    public void undo() {
+        for (int p = start; p < next; p++) {
+            map.remove(workload.absent[p % size]);
+            map.put(workload.present[p % size], Boolean.TRUE);
+        }
+        start = next % size;
+        next = start;
+    }
+}
@@ -0,0 +1,36 @@
+package avlg.bench;
+
+/**
+ * <p>The keys one benchmark trial works with, boxed ahead of time so that no benchmark measures boxing. The tree
+ * holds the even keys {@code 2 * order[p]}, and every one of them has an odd neighbour {@code 2 * order[p] + 1}
+ * that is not in the tree, so insertions always have fresh keys to insert.</p>
+ *
+ * @author Obinna Anadu
+ */
+final class Workload {
+
+    /** How many probes a trial cycles through; large enough that they do not all stay in the CPU caches. */
+    static final int PROBES = 1 << 20;
+
+    /** How many keys a range scan visits. */
+    static final int SCAN = 100;
+
+    private static final long SEED = 420;
+
+    final Integer[] present, absent, probes;
+
+    Workload(KeyStream stream, int size) {
+        int[] order = stream.order(size, SEED);
+        present = new Integer[size];
+        absent = new Integer[size];
+        for (int p = 0; p < size; p++) {
+            present[p] = 2 * order[p];
+            absent[p] = 2 * order[p] + 1;
+        }
+        int[] positions = stream.probes(size, PROBES, SEED + 1);
+        probes = new Integer[PROBES];
+        for (int i = 0; i < PROBES; i++) {
+            probes[i] = present[positions[i]];
+        }
+    }
+}
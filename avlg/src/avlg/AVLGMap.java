@@ -0,0 +1,1061 @@
+package avlg;
+
+import avlg.exceptions.InvalidBalanceException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * <p>{@link AVLGMap} is the key-value version of {@link AVLGTree}: a {@link NavigableMap} whose entries are kept
+ * in an AVL-G tree, ordered by the natural ordering of the keys. The entries are the nodes of an {@link AVLGTree}
+ * that carry a value next to their key, so the map is balanced by the very same code as the tree: a larger
+ * maxImbalance trades search speed for fewer rotations on updates exactly as it does for the tree, and the map
+ * offers the tree's metrics ({@link #setMetricsEnabled(boolean)}), adaptive maxImbalance
+ * ({@link #setAdaptiveImbalance(int, int)}) and deferred rebalancing ({@link #setDeferredRebalancing(boolean)})
+ * with the same contracts.</p>
+ *
+ * <p>Every update, including {@link #put(Comparable, Object)}, {@link #putIfAbsent(Comparable, Object)},
+ * {@link #computeIfAbsent(Comparable, Function)}, {@link #merge(Comparable, Object, BiFunction)} and
+ * {@link #remove(Object)}, makes a single descent from the root: the nodes it passes are kept on the tree's path
+ * stack, and the same path is used to look at the current value, to hang a new node at the bottom (or remove the
+ * one found), and to rebalance on the way back up. Replacing the value of a key that is already in the map never
+ * changes the shape of the tree.</p>
+ *
+ * <p>Like {@link java.util.TreeMap}, the map does not allow {@code null} keys but does allow {@code null} values,
+ * its views ({@link #subMap(Comparable, boolean, Comparable, boolean)}, {@link #descendingMap()},
+ * {@link #navigableKeySet()}, ...) are backed by the map, and its iterators fail fast. The size of a range view
+ * is counted in O(log n) from the subtree sizes of the tree. It is not thread-safe.</p>
+ *
+ * @param <K> The type of the keys.
+ * @param <V> The type of the values.
+ *
+ * @author Obinna Anadu
+ *
+ * @see AVLGTree
+ */
+public class AVLGMap<K extends Comparable<K>, V> extends AbstractMap<K, V> implements NavigableMap<K, V> {
+
+    private final AVLGTree<K> tree; // Every node of it is an entry of this map; see the map support of AVLGTree.
+    private int descents; // Bumped by every descend(), so that an update can tell whether its path was reused.
+
+    private final View whole = new View(true, null, false, true, null, false, false);
+
+    /**
+     * The class constructor provides the map with the maximum imbalance allowed.
+     * @param maxImbalance The maximum imbalance allowed by the AVL-G Tree of the map.
+     * @throws InvalidBalanceException if maxImbalance is a value smaller than 1.
+     */
+    public AVLGMap(int maxImbalance) throws InvalidBalanceException {
+        tree = new AVLGTree<>(maxImbalance);
+    }
+
+    /**
+     * Retrieves the maximum imbalance parameter.
+     * @return The maximum imbalance parameter provided as a constructor parameter, or the one the map has been
+     * given since by {@link #setMaxImbalance(int)} or chosen for itself in adaptive mode.
+     */
+    public int getMaxImbalance() {
+        return tree.getMaxImbalance();
+    }
+
+    /**
+     * Return the height of the tree holding the entries, or -1 if the map is empty.
+     * @return The height of the tree.
+     */
+    public int getHeight() {
+        return tree.getHeight();
+    }
+
+    /* ******************************************************** *
+     * ************************ BALANCING ********************* *
+     * ******************************************************** */
+
+    /**
+     * Change the maximum imbalance of the map, as {@link AVLGTree#setMaxImbalance(int)} does.
+     * @param maxImbalance The new maximum imbalance allowed by the map.
+     * @throws InvalidBalanceException if maxImbalance is a value smaller than 1.
+     */
+    public void setMaxImbalance(int maxImbalance) throws InvalidBalanceException {
+        tree.setMaxImbalance(maxImbalance);
+    }
+
+    /**
+     * Let the map choose its own maximum imbalance, between min and max, from the mix of its lookups and updates,
+     * as {@link AVLGTree#setAdaptiveImbalance(int, int)} does. Every update that descends the tree counts as a
+     * write, and every lookup by key as a search.
+     * @param min The smallest maximum imbalance the map may choose.
+     * @param max The largest maximum imbalance the map may choose.
+     * @throws InvalidBalanceException if min is smaller than 1 or larger than max.
+     */
+    public void setAdaptiveImbalance(int min, int max) throws InvalidBalanceException {
+        tree.setAdaptiveImbalance(min, max);
+    }
+
+    /**
+     * Stop adapting the maximum imbalance of the map; see {@link AVLGTree#clearAdaptiveImbalance()}.
+     */
+    public void clearAdaptiveImbalance() {
+        tree.clearAdaptiveImbalance();
+    }
+
+    /**
+     * Query the map for whether it chooses its own maximum imbalance.
+     * @return {@code true} if {@link #setAdaptiveImbalance(int, int)} is in effect, {@code false} otherwise.
+     */
+    public boolean isAdaptiveImbalance() {
+        return tree.isAdaptiveImbalance();
+    }
+
+    /**
+     * Turn deferred rebalancing on or off, as {@link AVLGTree#setDeferredRebalancing(boolean)} does: while it is on,
+     * updates never rotate, and {@link #rebalance()} or {@link #rebalance(int)} make the repairs they queued.
+     * @param enabled {@code true} to defer rotations, {@code false} to make them inline again.
+     */
+    public void setDeferredRebalancing(boolean enabled) {
+        tree.setDeferredRebalancing(enabled);
+    }
+
+    /**
+     * Query the map for whether it defers rotations.
+     * @return {@code true} if {@link #setDeferredRebalancing(boolean)} is in effect, {@code false} otherwise.
+     */
+    public boolean isDeferredRebalancing() {
+        return tree.isDeferredRebalancing();
+    }
+
+    /**
+     * Return the number of search paths queued for repair; see {@link AVLGTree#getPendingRebalances()}.
+     * @return How many repairs {@link #rebalance()} still has to make.
+     */
+    public int getPendingRebalances() {
+        return tree.getPendingRebalances();
+    }
+
+    /**
+     * Make every queued repair, so that the tree of the map is AVL-G balanced again.
+     */
+    public void rebalance() {
+        tree.rebalance();
+    }
+
+    /**
+     * Make at most budget of the queued repairs, oldest first; see {@link AVLGTree#rebalance(int)}.
+     * @param budget The largest number of queued paths to repair.
+     * @return The number of paths still queued afterwards.
+     */
+    public int rebalance(int budget) {
+        return tree.rebalance(budget);
+    }
+
+    /**
+     * Turn the counters behind {@link #getMetrics()} on or off; see {@link AVLGTree#setMetricsEnabled(boolean)}.
+     * @param enabled {@code true} to start counting, {@code false} to stop.
+     */
+    public void setMetricsEnabled(boolean enabled) {
+        tree.setMetricsEnabled(enabled);
+    }
+
+    /**
+     * Query the map for whether it is counting rotations and searches.
+     * @return {@code true} if the map's metrics are on, {@code false} otherwise.
+     */
+    public boolean isMetricsEnabled() {
+        return tree.isMetricsEnabled();
+    }
+
+    /**
+     * Set every counter back to 0, if the map is counting.
+     */
+    public void resetMetrics() {
+        tree.resetMetrics();
+    }
+
+    /**
+     * Return an immutable snapshot of the counters of the map's tree, along with its size and height. Lookups by
+     * key count as searches; navigation and iteration do not.
+     * @return The current {@link AVLGTreeMetrics} of the map.
+     */
+    public AVLGTreeMetrics getMetrics() {
+        return tree.getMetrics();
+    }
+
+    /**
+     * Check every invariant of the tree behind the map; see {@link AVLGTree#verify()}.
+     * @return A description of the first violation found, or {@code null} if there is none.
+     */
+    public String verify() {
+        return tree.verify();
+    }
+
+    /* ******************************************************** *
+     * ******************** SINGLE-DESCENT UPDATES ************ *
+     * ******************************************************** */
+
+    @Override
+    public int size() {
+        return tree.getCount();
+    }
+
+    @Override
+    public V get(Object key) {
+        Map.Entry<K, V> n = getNode(key);
+        return (n != null) ? n.getValue() : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return getNode(key) != null;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        Map.Entry<K, V> n = descend(key);
+        if (n != null) {
+            tree.clearPath();
+            return n.setValue(value);
+        }
+        tree.attach(key, value);
+        return null;
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        Map.Entry<K, V> n = descend(key);
+        if (n != null) {
+            tree.clearPath();
+            return (n.getValue() != null) ? n.getValue() : n.setValue(value);
+        }
+        tree.attach(key, value);
+        return null;
+    }
+
+    @Override
+    public V remove(Object key) {
+        Map.Entry<K, V> n = descend(cast(key));
+        if (n == null) {
+            tree.clearPath();
+            return null;
+        }
+        V old = n.getValue();
+        tree.unlinkEntry(n);
+        return old;
+    }
+
+    /**
+     * <p>If key is not mapped to a value (or is mapped to {@code null}), map it to the value computed by
+     * mappingFunction, unless that is {@code null}. The path that finds out that the key is missing is also the one
+     * the new entry is inserted along.</p>
+     * @throws ConcurrentModificationException if mappingFunction changed the structure of this map.
+     */
+    @Override
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        Objects.requireNonNull(mappingFunction);
+        Map.Entry<K, V> n = descend(key);
+        if (n != null && n.getValue() != null) {
+            tree.clearPath();
+            return n.getValue();
+        }
+        int expectedModCount = tree.getModCount(), expectedDescents = descents;
+        V value = mappingFunction.apply(key);
+        n = resume(key, n, expectedModCount, expectedDescents);
+        if (value != null) {
+            if (n != null) {
+                tree.clearPath();
+                n.setValue(value);
+            } else {
+                tree.attach(key, value);
+            }
+        } else {
+            tree.clearPath();
+        }
+        return value;
+    }
+
+    /**
+     * <p>If key is mapped to a non-null value, replace it by the one remappingFunction computes from it, or remove
+     * the entry if that is {@code null}. Done in one descent.</p>
+     * @throws ConcurrentModificationException if remappingFunction changed the structure of this map.
+     */
+    @Override
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(remappingFunction);
+        Map.Entry<K, V> n = descend(key);
+        if (n == null || n.getValue() == null) {
+            tree.clearPath();
+            return null;
+        }
+        int expectedModCount = tree.getModCount(), expectedDescents = descents;
+        V value = remappingFunction.apply(key, n.getValue());
+        n = resume(key, n, expectedModCount, expectedDescents);
+        return replace(n, value);
+    }
+
+    /**
+     * <p>Map key to the value remappingFunction computes from its current value (or {@code null}), or remove the
+     * entry if that is {@code null}. Done in one descent.</p>
+     * @throws ConcurrentModificationException if remappingFunction changed the structure of this map.
+     */
+    @Override
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(remappingFunction);
+        Map.Entry<K, V> n = descend(key);
+        int expectedModCount = tree.getModCount(), expectedDescents = descents;
+        V value = remappingFunction.apply(key, (n != null) ? n.getValue() : null);
+        n = resume(key, n, expectedModCount, expectedDescents);
+        if (n == null) {
+            if (value != null) {
+                tree.attach(key, value);
+            } else {
+                tree.clearPath();
+            }
+            return value;
+        }
+        return replace(n, value);
+    }
+
+    /**
+     * <p>Map key to value if it is not mapped to a non-null value yet; otherwise, map it to the value
+     * remappingFunction computes from the current value and value, or remove it if that is {@code null}. Done in
+     * one descent.</p>
+     * @throws ConcurrentModificationException if remappingFunction changed the structure of this map.
+     */
+    @Override
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(value);
+        Objects.requireNonNull(remappingFunction);
+        Map.Entry<K, V> n = descend(key);
+        if (n == null) {
+            tree.attach(key, value);
+            return value;
+        }
+        if (n.getValue() == null) {
+            tree.clearPath();
+            n.setValue(value);
+            return value;
+        }
+        int expectedModCount = tree.getModCount(), expectedDescents = descents;
+        V merged = remappingFunction.apply(n.getValue(), value);
+        n = resume(key, n, expectedModCount, expectedDescents);
+        return replace(n, merged);
+    }
+
+    @Override
+    public void clear() {
+        tree.clear();
+    }
+
+    // Give n, found by the last descent, the value computed for it, or unlink it if that is null.
+    private V replace(Map.Entry<K, V> n, V value) {
+        if (value == null) {
+            tree.unlinkEntry(n);
+        } else {
+            tree.clearPath();
+            n.setValue(value);
+        }
+        return value;
+    }
+
+    /* Called when a user function has run between a descent and the update it prepared. If the function changed
+     * the structure of the map, the update is abandoned. Otherwise the tree looks exactly as the descent left it,
+     * but the function may have searched or replaced values through the path stack, so the path is rebuilt if
+     * another descent has run since.
+     */
+    private Map.Entry<K, V> resume(K key, Map.Entry<K, V> n, int expectedModCount, int expectedDescents) {
+        if (tree.getModCount() != expectedModCount) {
+            tree.clearPath();
+            throw new ConcurrentModificationException();
+        }
+        return (descents != expectedDescents) ? descend(key) : n;
+    }
+
+    @SuppressWarnings("unchecked")
+    private K cast(Object key) {
+        return (K) Objects.requireNonNull(key);
+    }
+
+    // The nodes of the tree hold values of any type; this map only ever stores values of type V in them.
+    @SuppressWarnings("unchecked")
+    private static <K, V> Map.Entry<K, V> typed(Map.Entry<K, ?> n) {
+        return (Map.Entry<K, V>) n;
+    }
+
+    private Map.Entry<K, V> getNode(Object key) {
+        return typed(tree.getEntry(cast(key)));
+    }
+
+    /* Walk down to key, pushing every node passed on the way. Return the node holding key, which is not pushed,
+     * or null, in which case the path ends at the node the new key should hang from. Every descent must be
+     * followed by attach(), unlinkEntry() or clearPath() on the tree.
+     */
+    private Map.Entry<K, V> descend(K key) {
+        Objects.requireNonNull(key);
+        descents++;
+        return typed(tree.descend(key));
+    }
+
+    /* ******************************************************** *
+     * ************************ NAVIGATION ******************** *
+     * ******************************************************** */
+
+    private static <K, V> Map.Entry<K, V> export(Map.Entry<K, V> n) {
+        return (n != null) ? new AbstractMap.SimpleImmutableEntry<>(n) : null;
+    }
+
+    private static <K> K keyOrNull(Map.Entry<K, ?> n) {
+        return (n != null) ? n.getKey() : null;
+    }
+
+    private static <K> K key(Map.Entry<K, ?> n) {
+        if (n == null) {
+            throw new NoSuchElementException();
+        }
+        return n.getKey();
+    }
+
+    @Override
+    public Comparator<? super K> comparator() {
+        return null;
+    }
+
+    @Override
+    public Map.Entry<K, V> lowerEntry(K key) {
+        return whole.lowerEntry(key);
+    }
+
+    @Override
+    public K lowerKey(K key) {
+        return whole.lowerKey(key);
+    }
+
+    @Override
+    public Map.Entry<K, V> floorEntry(K key) {
+        return whole.floorEntry(key);
+    }
+
+    @Override
+    public K floorKey(K key) {
+        return whole.floorKey(key);
+    }
+
+    @Override
+    public Map.Entry<K, V> ceilingEntry(K key) {
+        return whole.ceilingEntry(key);
+    }
+
+    @Override
+    public K ceilingKey(K key) {
+        return whole.ceilingKey(key);
+    }
+
+    @Override
+    public Map.Entry<K, V> higherEntry(K key) {
+        return whole.higherEntry(key);
+    }
+
+    @Override
+    public K higherKey(K key) {
+        return whole.higherKey(key);
+    }
+
+    @Override
+    public Map.Entry<K, V> firstEntry() {
+        return whole.firstEntry();
+    }
+
+    @Override
+    public Map.Entry<K, V> lastEntry() {
+        return whole.lastEntry();
+    }
+
+    @Override
+    public Map.Entry<K, V> pollFirstEntry() {
+        return whole.pollFirstEntry();
+    }
+
+    @Override
+    public Map.Entry<K, V> pollLastEntry() {
+        return whole.pollLastEntry();
+    }
+
+    @Override
+    public K firstKey() {
+        return whole.firstKey();
+    }
+
+    @Override
+    public K lastKey() {
+        return whole.lastKey();
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return whole.entrySet();
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return navigableKeySet();
+    }
+
+    @Override
+    public NavigableSet<K> navigableKeySet() {
+        return whole.navigableKeySet();
+    }
+
+    @Override
+    public NavigableSet<K> descendingKeySet() {
+        return whole.descendingKeySet();
+    }
+
+    @Override
+    public NavigableMap<K, V> descendingMap() {
+        return whole.descendingMap();
+    }
+
+    @Override
+    public NavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        return whole.subMap(fromKey, fromInclusive, toKey, toInclusive);
+    }
+
+    @Override
+    public NavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+        return whole.headMap(toKey, inclusive);
+    }
+
+    @Override
+    public NavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+        return whole.tailMap(fromKey, inclusive);
+    }
+
+    @Override
+    public SortedMap<K, V> subMap(K fromKey, K toKey) {
+        return subMap(fromKey, true, toKey, false);
+    }
+
+    @Override
+    public SortedMap<K, V> headMap(K toKey) {
+        return headMap(toKey, false);
+    }
+
+    @Override
+    public SortedMap<K, V> tailMap(K fromKey) {
+        return tailMap(fromKey, true);
+    }
+
+    /* ******************************************************** *
+     * ************************** VIEWS *********************** *
+     * ******************************************************** */
+
+    /* A range of the map, seen in ascending or descending order. The map itself is the unbounded ascending view
+     * (whole), so this is the only place where navigation is implemented. Bounds are always in the order of the
+     * keys: lo is the smallest end of the range even when the view is descending.
+     */
+    private final class View extends AbstractMap<K, V> implements NavigableMap<K, V> {
+        private final boolean fromStart, toEnd;
+        private final K lo, hi;
+        private final boolean loInclusive, hiInclusive;
+        private final boolean descending;
+
+        private View(boolean fromStart, K lo, boolean loInclusive, boolean toEnd, K hi, boolean hiInclusive,
+                     boolean descending) {
+            if (!fromStart && !toEnd && lo.compareTo(hi) > 0) {
+                throw new IllegalArgumentException("fromKey > toKey");
+            }
+            this.fromStart = fromStart;
+            this.lo = lo;
+            this.loInclusive = loInclusive;
+            this.toEnd = toEnd;
+            this.hi = hi;
+            this.hiInclusive = hiInclusive;
+            this.descending = descending;
+        }
+
+        private boolean tooLow(K key) {
+            if (fromStart) {
+                return false;
+            }
+            int compare = key.compareTo(lo);
+            return compare < 0 || (compare == 0 && !loInclusive);
+        }
+
+        private boolean tooHigh(K key) {
+            if (toEnd) {
+                return false;
+            }
+            int compare = key.compareTo(hi);
+            return compare > 0 || (compare == 0 && !hiInclusive);
+        }
+
+        private boolean inRange(K key) {
+            return !tooLow(key) && !tooHigh(key);
+        }
+
+        // Like inRange(), but an exclusive bound of a new view may also sit on an exclusive bound of this one.
+        private boolean inRange(K key, boolean inclusive) {
+            if (inclusive) {
+                return inRange(key);
+            }
+            return (fromStart || key.compareTo(lo) >= 0) && (toEnd || key.compareTo(hi) <= 0);
+        }
+
+        private Map.Entry<K, V> absLowest() {
+            Map.Entry<K, V> n = typed(fromStart ? tree.firstEntry() : tree.ceilingEntry(lo, loInclusive));
+            return (n == null || tooHigh(n.getKey())) ? null : n;
+        }
+
+        private Map.Entry<K, V> absHighest() {
+            Map.Entry<K, V> n = typed(toEnd ? tree.lastEntry() : tree.floorEntry(hi, hiInclusive));
+            return (n == null || tooLow(n.getKey())) ? null : n;
+        }
+
+        private Map.Entry<K, V> absCeiling(K key, boolean inclusive) {
+            if (tooLow(key)) {
+                return absLowest();
+            }
+            Map.Entry<K, V> n = typed(tree.ceilingEntry(key, inclusive));
+            return (n == null || tooHigh(n.getKey())) ? null : n;
+        }
+
+        private Map.Entry<K, V> absFloor(K key, boolean inclusive) {
+            if (tooHigh(key)) {
+                return absHighest();
+            }
+            Map.Entry<K, V> n = typed(tree.floorEntry(key, inclusive));
+            return (n == null || tooLow(n.getKey())) ? null : n;
+        }
+
+        private Map.Entry<K, V> first() {
+            return descending ? absHighest() : absLowest();
+        }
+
+        private Map.Entry<K, V> last() {
+            return descending ? absLowest() : absHighest();
+        }
+
+        private Map.Entry<K, V> ceiling(K key, boolean inclusive) {
+            return descending ? absFloor(key, inclusive) : absCeiling(key, inclusive);
+        }
+
+        private Map.Entry<K, V> floor(K key, boolean inclusive) {
+            return descending ? absCeiling(key, inclusive) : absFloor(key, inclusive);
+        }
+
+        /* Walks the entries of the view in its order with the tree's own iterator, which fails fast and, after
+         * remove(), finds its place again by key.
+         */
+        @SuppressWarnings("unchecked")
+        private Iterator<Map.Entry<K, V>> entryIterator() {
+            Iterator<?> entries = tree.entryIterator(fromStart ? null : lo, loInclusive, toEnd ? null : hi,
+                    hiInclusive, descending);
+            return (Iterator<Map.Entry<K, V>>) entries;
+        }
+
+        // The keys up to hi, minus the keys below lo, counted from the subtree sizes in O(log n).
+        @Override
+        public int size() {
+            int upTo = toEnd ? tree.getCount() : tree.rankOf(hi, hiInclusive);
+            int below = fromStart ? 0 : tree.rankOf(lo, !loInclusive);
+            return Math.max(upTo - below, 0);
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return first() == null;
+        }
+
+        @Override
+        public void clear() {
+            if (fromStart && toEnd) {
+                AVLGMap.this.clear();
+            } else {
+                super.clear(); // Removes the entries of the range one by one, through entrySet().
+            }
+        }
+
+        @Override
+        public V get(Object key) {
+            return inRange(cast(key)) ? AVLGMap.this.get(key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return inRange(cast(key)) && AVLGMap.this.containsKey(key);
+        }
+
+        @Override
+        public V put(K key, V value) {
+            if (!inRange(key)) {
+                throw new IllegalArgumentException("key out of range");
+            }
+            return AVLGMap.this.put(key, value);
+        }
+
+        @Override
+        public V remove(Object key) {
+            return inRange(cast(key)) ? AVLGMap.this.remove(key) : null;
+        }
+
+        @Override
+        public Comparator<? super K> comparator() {
+            return descending ? Collections.reverseOrder() : null;
+        }
+
+        @Override
+        public Map.Entry<K, V> lowerEntry(K key) {
+            return export(floor(key, false));
+        }
+
+        @Override
+        public K lowerKey(K key) {
+            return keyOrNull(floor(key, false));
+        }
+
+        @Override
+        public Map.Entry<K, V> floorEntry(K key) {
+            return export(floor(key, true));
+        }
+
+        @Override
+        public K floorKey(K key) {
+            return keyOrNull(floor(key, true));
+        }
+
+        @Override
+        public Map.Entry<K, V> ceilingEntry(K key) {
+            return export(ceiling(key, true));
+        }
+
+        @Override
+        public K ceilingKey(K key) {
+            return keyOrNull(ceiling(key, true));
+        }
+
+        @Override
+        public Map.Entry<K, V> higherEntry(K key) {
+            return export(ceiling(key, false));
+        }
+
+        @Override
+        public K higherKey(K key) {
+            return keyOrNull(ceiling(key, false));
+        }
+
+        @Override
+        public Map.Entry<K, V> firstEntry() {
+            return export(first());
+        }
+
+        @Override
+        public Map.Entry<K, V> lastEntry() {
+            return export(last());
+        }
+
+        @Override
+        public Map.Entry<K, V> pollFirstEntry() {
+            return poll(first());
+        }
+
+        @Override
+        public Map.Entry<K, V> pollLastEntry() {
+            return poll(last());
+        }
+
+        private Map.Entry<K, V> poll(Map.Entry<K, V> n) {
+            Map.Entry<K, V> e = export(n);
+            if (n != null) {
+                AVLGMap.this.remove(n.getKey());
+            }
+            return e;
+        }
+
+        @Override
+        public K firstKey() {
+            return key(first());
+        }
+
+        @Override
+        public K lastKey() {
+            return key(last());
+        }
+
+        @Override
+        public Set<Map.Entry<K, V>> entrySet() {
+            return new EntrySet(this);
+        }
+
+        @Override
+        public Set<K> keySet() {
+            return navigableKeySet();
+        }
+
+        @Override
+        public NavigableSet<K> navigableKeySet() {
+            return new KeySet(this);
+        }
+
+        @Override
+        public NavigableSet<K> descendingKeySet() {
+            return descendingMap().navigableKeySet();
+        }
+
+        @Override
+        public NavigableMap<K, V> descendingMap() {
+            return new View(fromStart, lo, loInclusive, toEnd, hi, hiInclusive, !descending);
+        }
+
+        @Override
+        public NavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+            return descending ? range(toKey, toInclusive, fromKey, fromInclusive)
+                    : range(fromKey, fromInclusive, toKey, toInclusive);
+        }
+
+        @Override
+        public NavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+            return descending ? lowerBounded(toKey, inclusive) : upperBounded(toKey, inclusive);
+        }
+
+        @Override
+        public NavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+            return descending ? upperBounded(fromKey, inclusive) : lowerBounded(fromKey, inclusive);
+        }
+
+        private View range(K from, boolean fromInclusive, K to, boolean toInclusive) {
+            if (!inRange(from, fromInclusive) || !inRange(to, toInclusive)) {
+                throw new IllegalArgumentException("key out of range");
+            }
+            return new View(false, from, fromInclusive, false, to, toInclusive, descending);
+        }
+
+        private View lowerBounded(K from, boolean inclusive) {
+            if (!inRange(from, inclusive)) {
+                throw new IllegalArgumentException("key out of range");
+            }
+            return new View(false, from, inclusive, toEnd, hi, hiInclusive, descending);
+        }
+
+        private View upperBounded(K to, boolean inclusive) {
+            if (!inRange(to, inclusive)) {
+                throw new IllegalArgumentException("key out of range");
+            }
+            return new View(fromStart, lo, loInclusive, false, to, inclusive, descending);
+        }
+
+        @Override
+        public SortedMap<K, V> subMap(K fromKey, K toKey) {
+            return subMap(fromKey, true, toKey, false);
+        }
+
+        @Override
+        public SortedMap<K, V> headMap(K toKey) {
+            return headMap(toKey, false);
+        }
+
+        @Override
+        public SortedMap<K, V> tailMap(K fromKey) {
+            return tailMap(fromKey, true);
+        }
+    }
+
+    private final class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+        private final View view;
+
+        private EntrySet(View view) {
+            this.view = view;
+        }
+
+        @Override
+        public Iterator<Map.Entry<K, V>> iterator() {
+            return view.entryIterator();
+        }
+
+        @Override
+        public int size() {
+            return view.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return view.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            if (e.getKey() == null || !view.inRange(cast(e.getKey()))) {
+                return false;
+            }
+            Map.Entry<K, V> n = getNode(e.getKey());
+            return n != null && Objects.equals(n.getValue(), e.getValue());
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!contains(o)) {
+                return false;
+            }
+            AVLGMap.this.remove(((Map.Entry<?, ?>) o).getKey());
+            return true;
+        }
+    }
+
+    private final class KeySet extends AbstractSet<K> implements NavigableSet<K> {
+        private final View view;
+
+        private KeySet(View view) {
+            this.view = view;
+        }
+
+        @Override
+        public Iterator<K> iterator() {
+            Iterator<Map.Entry<K, V>> entries = view.entryIterator();
+            return new Iterator<K>() {
+                @Override
+                public boolean hasNext() {
+                    return entries.hasNext();
+                }
+
+                @Override
+                public K next() {
+                    return entries.next().getKey();
+                }
+
+                @Override
+                public void remove() {
+                    entries.remove();
+                }
+            };
+        }
+
+        @Override
+        public Iterator<K> descendingIterator() {
+            return descendingSet().iterator();
+        }
+
+        @Override
+        public int size() {
+            return view.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return view.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return view.containsKey(o);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!view.containsKey(o)) {
+                return false;
+            }
+            view.remove(o);
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            view.clear();
+        }
+
+        @Override
+        public Comparator<? super K> comparator() {
+            return view.comparator();
+        }
+
+        @Override
+        public K lower(K key) {
+            return view.lowerKey(key);
+        }
+
+        @Override
+        public K floor(K key) {
+            return view.floorKey(key);
+        }
+
+        @Override
+        public K ceiling(K key) {
+            return view.ceilingKey(key);
+        }
+
+        @Override
+        public K higher(K key) {
+            return view.higherKey(key);
+        }
+
+        @Override
+        public K first() {
+            return view.firstKey();
+        }
+
+        @Override
+        public K last() {
+            return view.lastKey();
+        }
+
+        @Override
+        public K pollFirst() {
+            Map.Entry<K, V> e = view.pollFirstEntry();
+            return (e != null) ? e.getKey() : null;
+        }
+
+        @Override
+        public K pollLast() {
+            Map.Entry<K, V> e = view.pollLastEntry();
+            return (e != null) ? e.getKey() : null;
+        }
+
+        @Override
+        public NavigableSet<K> descendingSet() {
+            return view.descendingMap().navigableKeySet();
+        }
+
+        @Override
+        public NavigableSet<K> subSet(K fromElement, boolean fromInclusive, K toElement, boolean toInclusive) {
+            return view.subMap(fromElement, fromInclusive, toElement, toInclusive).navigableKeySet();
+        }
+
+        @Override
+        public NavigableSet<K> headSet(K toElement, boolean inclusive) {
+            return view.headMap(toElement, inclusive).navigableKeySet();
+        }
+
+        @Override
+        public NavigableSet<K> tailSet(K fromElement, boolean inclusive) {
+            return view.tailMap(fromElement, inclusive).navigableKeySet();
+        }
+
+        @Override
+        public SortedSet<K> subSet(K fromElement, K toElement) {
+            return subSet(fromElement, true, toElement, false);
+        }
+
+        @Override
+        public SortedSet<K> headSet(K toElement) {
+            return headSet(toElement, false);
+        }
+
+        @Override
+        public SortedSet<K> tailSet(K fromElement) {
+            return tailSet(fromElement, true);
+        }
+    }
+}
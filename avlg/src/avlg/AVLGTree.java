@@ -3,8 +3,36 @@ package avlg;
 import avlg.exceptions.UnimplementedMethodException;
 import avlg.exceptions.EmptyTreeException;
 import avlg.exceptions.InvalidBalanceException;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 
 /** <p>{@link AVLGTree}  is a class representing an <a href="https://en.wikipedia.org/wiki/AVL_tree">AVL Tree</a> with
@@ -29,36 +57,229 @@ import java.util.Queue;
  * @see InvalidBalanceException
  * @see StudentTests
  */
-public class AVLGTree<T extends Comparable<T>> {
+public class AVLGTree<T extends Comparable<T>> implements Iterable<T> {
 
     /* ********************************************************* *
      * Write any private data elements or private methods here...*
      * ********************************************************* */
     private int maxImbalance;
     private int size;
+    private int modCount; // Bumped on every structural change, so that iterators can fail fast.
+    private boolean readOnly; // Set on the trees handed out by snapshot().
+    private boolean multiset; // Set on the trees made by multiset(): duplicates bump Node.count instead of being dropped.
+
+    /* Every node remembers the version of the tree that created it. Nodes of the current version belong to
+     * this tree alone and may be changed in place; any other node may be shared with a snapshot, so it is
+     * copied (see own()) before it is changed. snapshot() just starts a new version, which makes it O(1).
+     * Versions are compared by identity, so two trees can never mistake each other's nodes for their own.
+     */
+    private Object version = new Object();
+    private Object adopted; // The version of a tree whose nodes we took over in a join or union; see adopt().
 
 
     private class Node {
 		private T key;
 
          private int height;
-		 private int index;
+		 private int size; // Number of nodes in the subtree rooted here, kept up by update().
+         private int count; // Occurrences of key; always 1 unless the tree is a multiset.
+         private long total; // Sum of the counts in the subtree rooted here, kept up by update().
+         private Object summary; // The aggregator's summary of the subtree rooted here, if the tree has an aggregator.
          private Node left, right;
          private int balance;
 
+         private Object version;
+
          public Node(T k) {
             key = k;
 		    left = null;
             right = null;
-            index = -1;
-            height = -1;
+            size = 1;
+            count = 1;
+            total = 1;
+            summary = (aggregator != null) ? aggregator.lift(k, 1) : null; // Leaves never go through update().
+            height = 0;
             balance = 0;
+            version = AVLGTree.this.version;
+         }
+
+         // A copy of other that belongs to the current version of the tree.
+         private Node(Node other) {
+            key = other.key;
+            left = other.left;
+            right = other.right;
+            size = other.size;
+            count = other.count;
+            total = other.total;
+            summary = other.summary;
+            height = other.height;
+            balance = other.balance;
+            version = AVLGTree.this.version;
+         }
+
+         // A copy of this node that belongs to the current version of the tree; entries copy their value too.
+         Node copy() {
+            return new Node(this);
+         }
+
+         // Take the place of other, which is being removed from the tree: its key and count, and in an entry its value.
+         void takeOver(Node other) {
+            key = other.key;
+            count = other.count;
          }
 
 	}
 
+    /* A node of the tree behind an AVLGMap, which carries the value mapped to its key. Every node of such a tree is
+     * an Entry, and the map hands them out as its entries, so setValue() writes through to the map. Nodes are only
+     * ever copied through copy(), so rotations, rebuilds and deferred repairs keep the values along with the keys.
+     */
+    private final class Entry extends Node implements Map.Entry<T, Object> {
+        private Object value;
+
+        private Entry(T key, Object value) {
+            super(key);
+            this.value = value;
+        }
+
+        private Entry(Entry other) {
+            super(other);
+            value = other.value;
+        }
+
+        @Override
+        Node copy() {
+            return new Entry(this);
+        }
+
+        @Override
+        void takeOver(Node other) {
+            super.takeOver(other);
+            value = ((Entry) other).value;
+        }
+
+        @Override
+        public T getKey() {
+            return super.key;
+        }
+
+        @Override
+        public Object getValue() {
+            return value;
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            Object old = this.value;
+            this.value = value;
+            return old;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return getKey().equals(e.getKey()) && Objects.equals(value, e.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return getKey().hashCode() ^ Objects.hashCode(value);
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + value;
+        }
+    }
+
     private Node root;
 
+    /* The explicit stack of insert and delete: path[i] is the i-th node on the way down from the root, and
+     * wentLeft[i] says which of its children the descent took. It is reused by every update and only grows
+     * (by doubling) when a tree gets taller than it has ever been, so writes never recurse, and the only
+     * objects they allocate are the new node and the copies of nodes still shared with a snapshot.
+     */
+    @SuppressWarnings("unchecked")
+    private Node[] path = (Node[]) new AVLGTree.Node[INITIAL_PATH];
+    private boolean[] wentLeft = new boolean[INITIAL_PATH];
+    private int depth;
+    private static final int INITIAL_PATH = 32;
+
+    /* Live counters behind getMetrics(). The field is null while metrics are off, so the only cost a tree that
+     * does not count pays is one null check per search and per rotation. The JMX thread reads the counters while
+     * the tree's own threads add to them, so the field is volatile and every counter is a LongAdder.
+     */
+    private volatile Counters counters;
+
+    private static final class Counters {
+        private final LongAdder rotationsL = new LongAdder(), rotationsR = new LongAdder(),
+                rotationsLR = new LongAdder(), rotationsRL = new LongAdder();
+        private final LongAdder searches = new LongAdder(), comparisons = new LongAdder();
+        private final LongAdder[] pathLengths = new LongAdder[AVLGTreeMetrics.HISTOGRAM_BUCKETS];
+
+        private Counters() {
+            for (int i = 0; i < pathLengths.length; i++) {
+                pathLengths[i] = new LongAdder();
+            }
+        }
+    }
+
+    /* The state of the adaptive mode; null while maxImbalance is fixed. See setAdaptiveImbalance(). */
+    private Adaptive adaptive;
+
+    private WriteAheadLog<T> log; // Every update that changes the tree is appended here first; see setLog().
+
+    /* Summarizes the subtree of every node into Node.summary, from update(); null if the tree keeps no
+     * summaries. Rotations, joins and rebuilds all go through update(), so the summaries never go stale.
+     */
+    private Aggregator<T, Object> aggregator;
+
+    /* Deferred rebalancing: while deferred is set, updates fix heights and sizes on their way up but never rotate.
+     * An update that leaves a node on its path out of balance queues the key of the deepest node of that path in
+     * dirty, whose search path is then exactly the path to repair; see rebalance(int). Snapshots of a tree with
+     * repairs pending remember that they are out of balance in unbalanced, so that they refuse to be saved.
+     * dirty is only allocated by the first repair queued, so that snapshots and trees that never go out of balance
+     * do without it. Adaptive mode queues repairs in dirty too when it tightens maxImbalance, even if deferred is
+     * not set; later writes then make them a few at a time (see observe()), and dirty goes back to null once it is
+     * drained.
+     */
+    private boolean deferred;
+    private Deque<T> dirty;
+    private boolean unbalanced;
+
+    // A window is never shorter than this many operations, nor than the number of keys in the tree.
+    private static final int ADAPTIVE_WINDOW = 1 << 10;
+
+    // How many repairs queued by tightening maxImbalance every write makes, unless rebalancing is deferred.
+    private static final int ADAPTIVE_REPAIRS = 4;
+
+    /* Searches only count into reads and may set target; they never change the tree, so that several threads can
+     * still search it at once (at worst losing a few counts). The next write applies target. */
+    private static final class Adaptive {
+        private final int min, max;
+        private long reads, writes; // Seen since the window started.
+        private int target; // The maxImbalance chosen at the end of the last window, until a write applies it; or 0.
+
+        private Adaptive(int min, int max) {
+            this.min = min;
+            this.max = max;
+        }
+    }
+
+    // Below this many nodes in both inputs, a set operation is cheaper to finish on the current thread.
+    private static final int SEQUENTIAL_CUTOFF = 1 << 12;
+
+    private enum SetOperation { UNION, INTERSECTION, DIFFERENCE }
+
+    // What a Verify task checks; see verify().
+    private static final int CHECK_ORDER = 1, CHECK_BALANCE = 2, CHECK_FIELDS = 4;
+
+    // Verify tasks fork down to this depth, which gives the pool up to 2^10 subtrees to spread across its threads.
+    private static final int VERIFY_FORK_DEPTH = 10;
+
 
     /* ******************************************************** *
      * ************************ PUBLIC METHODS **************** *
@@ -77,6 +298,125 @@ public class AVLGTree<T extends Comparable<T>> {
         size = 0;
     }
 
+    // An empty tree with the same settings as like; maxImbalance has already been validated.
+    private AVLGTree(AVLGTree<T> like) {
+        this.maxImbalance = like.maxImbalance;
+        this.multiset = like.multiset;
+        this.aggregator = like.aggregator;
+        this.deferred = like.deferred;
+        size = 0;
+    }
+
+    /**
+     * <p>Create an empty AVL-G tree in <em>multiset</em> mode. A multiset keeps one node per distinct key, along with
+     * the number of times that key was inserted, so inserting a key that is already stored costs a single descent
+     * and never rotates anything: it only bumps the key's count and the subtree totals on its search path.
+     * {@link #delete(Comparable)} takes away one occurrence at a time, and only removes the node along with the last
+     * one. {@link #count(Comparable)}, {@link #weightedRank(Comparable)} and {@link #weightedSelect(long)} answer
+     * questions about occurrences in O(log n), while {@link #getCount()}, {@link #rank(Comparable)},
+     * {@link #select(int)} and the iterators keep working on the distinct keys.</p>
+     *
+     * <p>Multisets can be split and joined with other multisets, but union, intersection and difference are
+     * only defined on sets, and neither {@link #save(Path, KeyCodec)} nor {@link #setLog(WriteAheadLog)} can
+     * record counts yet.</p>
+     * @param maxImbalance The maximum imbalance allowed by the AVL-G Tree.
+     * @param <T> The type of the keys.
+     * @return A new, empty multiset.
+     * @throws InvalidBalanceException if maxImbalance is a value smaller than 1.
+     */
+    public static <T extends Comparable<T>> AVLGTree<T> multiset(int maxImbalance) throws InvalidBalanceException {
+        AVLGTree<T> tree = new AVLGTree<>(maxImbalance);
+        tree.multiset = true;
+        return tree;
+    }
+
+    /**
+     * Query the tree for whether it counts duplicate keys.
+     * @return {@code true} if the tree was made by {@link #multiset(int)}, {@code false} otherwise.
+     */
+    public boolean isMultiset() {
+        return multiset;
+    }
+
+    /**
+     * <p>Build an AVL-G tree out of keys that are already sorted, in O(n) time and without any rotations; the only
+     * comparisons made are the n - 1 needed to check the order. The tree is built bottom-up by repeatedly
+     * taking the middle key as the root of its subtree, so it has the smallest possible height for its size,
+     * and therefore satisfies the AVL-G condition for every maxImbalance.</p>
+     * @param keys The keys of the tree, in strictly ascending order.
+     * @param maxImbalance The maximum imbalance allowed by the AVL-G Tree.
+     * @param <T> The type of the keys.
+     * @return A new AVL-G tree holding exactly the provided keys.
+     * @throws InvalidBalanceException if maxImbalance is a value smaller than 1.
+     * @throws IllegalArgumentException if keys are not in strictly ascending order.
+     */
+    public static <T extends Comparable<T>> AVLGTree<T> fromSorted(Iterable<T> keys, int maxImbalance)
+            throws InvalidBalanceException {
+        AVLGTree<T> tree = new AVLGTree<>(maxImbalance);
+        Collection<T> sorted;
+        if (keys instanceof Collection) {
+            sorted = (Collection<T>) keys;
+        } else {
+            sorted = new ArrayList<>();
+            for (T key : keys) {
+                sorted.add(key);
+            }
+        }
+
+        T prev = null;
+        for (T key : sorted) {
+            if (prev != null && prev.compareTo(key) >= 0) {
+                throw new IllegalArgumentException("Keys are not in strictly ascending order: " + prev + " is followed by " + key + ".");
+            }
+            prev = key;
+        }
+
+        tree.root = tree.build(sorted.iterator(), sorted.size());
+        tree.size = sorted.size();
+        return tree;
+    }
+
+    /**
+     * <p>Build an AVL-G tree out of keys in any order. The keys are first sorted with
+     * {@link Arrays#parallelSort(Comparable[])}, which splits the work across the common
+     * {@link java.util.concurrent.ForkJoinPool}, and are then loaded like {@link #fromSorted(Iterable, int)} does.
+     * Duplicate keys are stored only once.</p>
+     * @param keys The keys of the tree.
+     * @param maxImbalance The maximum imbalance allowed by the AVL-G Tree.
+     * @param <T> The type of the keys.
+     * @return A new AVL-G tree holding the distinct provided keys.
+     * @throws InvalidBalanceException if maxImbalance is a value smaller than 1.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends Comparable<T>> AVLGTree<T> fromUnsorted(Collection<? extends T> keys, int maxImbalance)
+            throws InvalidBalanceException {
+        T[] sorted = (T[]) keys.toArray(new Comparable[0]);
+        Arrays.parallelSort(sorted);
+
+        int distinct = 0;
+        for (T key : sorted) {
+            if (distinct == 0 || sorted[distinct - 1].compareTo(key) != 0) {
+                sorted[distinct++] = key;
+            }
+        }
+        List<T> unique = Arrays.asList(sorted).subList(0, distinct);
+        return fromSorted(unique, maxImbalance);
+    }
+
+    // In-order consumption of n keys: the left half, then the root, then the right half.
+    private Node build(Iterator<T> keys, int n) {
+        if (n == 0) {
+            return null;
+        }
+        int leftSize = (n - 1) / 2;
+        Node left = build(keys, leftSize);
+        Node curr = new Node(keys.next());
+        curr.left = left;
+        curr.right = build(keys, n - 1 - leftSize);
+        update(curr);
+        return curr;
+    }
+
     /**
      * Insert key in the tree. You will <b>not</b> be tested on
      * duplicates! This means that in a deletion test, any key that has been
@@ -85,323 +425,2043 @@ public class AVLGTree<T extends Comparable<T>> {
      * @param key The key to insert in the tree.
      */
     public void insert(T key) {
+        checkWritable();
+        if (adaptive != null) {
+            observe(true);
+        }
+        depth = 0;
+        insertBelow(root, key, 0);
+    }
 
-        
-        if (root == null) {
-            root = new Node(key);
-            root.balance = 0;
-            root.height = 0;
-            root.index = 0;
-        } else {
-            root = insertAux(root, key);
+    /* Finish an insertion whose descent has reached curr, with the path above curr already pushed. base is the
+     * number of keys smaller than every key under curr, so that we can return the rank of key in the tree.
+     */
+    private int insertBelow(Node curr, T key, int base) {
+        while (curr != null) {
+            int compare = key.compareTo(curr.key);
+            if (compare == 0) {
+                int rank = base + size(curr.left);
+                if (!multiset) {
+                    clearPath(); // Duplicate: nothing changed, and nothing has been copied yet.
+                    return rank;
+                }
+                Node found = own(curr);
+                found.count++;
+                update(found);
+                retrace(found, -1, null); // No height changes, so this only refreshes the totals above.
+                return rank;
+            }
+            push(curr, compare < 0);
+            if (compare < 0) {
+                curr = curr.left;
+            } else {
+                base += size(curr.left) + 1;
+                curr = curr.right;
+            }
+        }
+        if (log != null) {
+            log.logInsert(key);
+        }
+        size = size + 1;
+        modCount++;
+        retrace(new Node(key), -1, null);
+        return base;
+    }
+
+    /* Only the nodes on the search path are revisited on the way back up, so an update costs O(log n):
+     * each of them is claimed with own(), gets the new subtree hung under it, has its height, balance and
+     * size recomputed from its children and is rotated if it went over maxImbalance. The node at path
+     * index replaceAt (if any) also takes over the key and count of replacement, which is how delete pulls up a
+     * successor.
+     */
+    private void retrace(Node child, int replaceAt, Node replacement) {
+        T bottom = null;
+        boolean outOfBalance = false;
+        while (depth > 0) {
+            depth--;
+            Node curr = own(path[depth]);
+            path[depth] = null; // Don't keep old versions of the nodes reachable from here.
+            if (depth == replaceAt) {
+                curr.takeOver(replacement);
+            }
+            if (wentLeft[depth]) {
+                curr.left = child;
+            } else {
+                curr.right = child;
+            }
+            if (deferred) {
+                if (bottom == null) {
+                    bottom = curr.key;
+                }
+                update(curr);
+                outOfBalance |= Math.abs(curr.balance) > maxImbalance;
+                child = curr;
+            } else {
+                child = rebalance(curr);
+                if (dirty != null) {
+                    queueIfOutOfBalance(child);
+                }
+            }
+        }
+        root = child;
+        if (outOfBalance) {
+            if (dirty == null) {
+                dirty = new ArrayDeque<>();
+            }
+            dirty.add(bottom);
+        }
+    }
+
+    /* While repairs queued by adaptive mode are pending, a rotation may start from a node that was already out of
+     * balance, and then cannot bring every node it moves back within maxImbalance. Those nodes are queued too.
+     */
+    private void queueIfOutOfBalance(Node top) {
+        if (outOfBalance(top)) {
+            dirty.add(top.key);
+        }
+        if (outOfBalance(top.left)) {
+            dirty.add(top.left.key);
+        }
+        if (outOfBalance(top.right)) {
+            dirty.add(top.right.key);
+        }
+    }
 
+    private void push(Node curr, boolean left) {
+        if (depth == path.length) {
+            path = Arrays.copyOf(path, 2 * depth);
+            wentLeft = Arrays.copyOf(wentLeft, 2 * depth);
         }
-         
+        path[depth] = curr;
+        wentLeft[depth] = left;
+        depth++;
+    }
 
-        root = insertAux(root, key);
-        size = size + 1;
-        
-        indexing(root, 0);
-        
-    }
-
-    private Node insertAux(Node current, T key) {
-        if (current == null) {
-            return new Node(key);
-        }
-        if (key.compareTo(current.key) < 0) {
-            current.left = insertAux(current.left, key);
-        }
-
-        if (key.compareTo(current.key) > 0) {
-            current.right = insertAux(current.right, key);
-        }
-    
-        updateHeights(current);
-        updateBalance(current);
-
-        if (Math.abs(current.balance) > maxImbalance) {
-
-            if (current.left != null  && current.balance > maxImbalance && current.left.balance > 0) {
-                    current = rotateR(current);
-                    
-                            
-                } else if (current.left != null  && current.balance > maxImbalance && current.left.balance < 0) {
-                   
-                    current = rotateLR(current);
-
-                } else if (current.left != null  && current.balance > maxImbalance && current.left.balance == 0) {
-                    current = rotateR(current);
-                //right subtree is heavier
-                } else if (current.right != null  && current.balance < maxImbalance && current.right.balance < 0) {
-                    
-                    current = rotateL(current);
-                    
-                    
-                } else if (current.right != null  && current.balance < maxImbalance && current.right.balance > 0) {
-                   
-                    current = rotateRL(current);
-                            
-                } else if ((current.right != null  && current.balance < maxImbalance && current.right.balance == 0)) {
-                    current = rotateL(current);
-                     
+    void clearPath() {
+        Arrays.fill(path, 0, depth, null);
+        depth = 0;
+    }
+
+    /**
+     * Return a new {@link Cursor} over this tree, for insertions that arrive in nearly sorted order.
+     * @return A {@link Cursor} that does not remember any position yet.
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * <p>{@link Cursor} is a finger into an {@link AVLGTree}: it remembers the search path to the key it inserted
+     * last, and starts its next insertion from the lowest node of that path whose subtree has room for the new
+     * key, instead of from the root. When the new key is d positions away from the previous one, that node is
+     * found after O(log d) comparisons on the way up, and the descent below it costs another O(log d) comparisons,
+     * so a stream of keys that arrive almost in ascending (or descending) order is inserted with far fewer calls to
+     * compareTo than {@link AVLGTree#insert(Comparable)} makes.</p>
+     *
+     * <p>What a cursor saves is comparisons, not pointer work. The heights and sizes of every ancestor of the new
+     * key still change, so the tree is retraced up to the root as usual, copying every node of the path that a
+     * {@link AVLGTree#snapshot()} shares, and the cursor then finds its new path again by rank. An insertion
+     * through a cursor therefore still takes O(log n) pointer steps, but only O(log d) calls to compareTo, which is
+     * what dominates when keys are costly to compare. A cursor notices when the tree has been changed by anything
+     * else, and then simply starts its next insertion from the root.</p>
+     */
+    public class Cursor {
+        // The remembered path: nodes[i] is at depth i, wentLeft[i] says where the path goes from it, and
+        // offset[i] is the number of keys in the tree that are smaller than every key under nodes[i].
+        @SuppressWarnings("unchecked")
+        private Node[] nodes = (Node[]) new AVLGTree.Node[INITIAL_PATH];
+        private boolean[] wentLeft = new boolean[INITIAL_PATH];
+        private int[] offset = new int[INITIAL_PATH];
+        private int length;
+        private Node expectedRoot;
+        private int expectedModCount;
+
+        private Cursor() {
+        }
+
+        /**
+         * Insert key in the tree, starting from the position of the key this cursor inserted last. The tree ends up
+         * exactly as {@link AVLGTree#insert(Comparable)} would have left it.
+         * @param key The key to insert in the tree.
+         */
+        public void insert(T key) {
+            checkWritable();
+            if (adaptive != null) {
+                observe(true);
+            }
+            depth = 0;
+            int rank;
+            if (length > 0 && root == expectedRoot && modCount == expectedModCount) {
+                int start = climb(key);
+                for (int i = 0; i < start; i++) {
+                    push(nodes[i], wentLeft[i]);
+                }
+                rank = insertBelow(nodes[start], key, offset[start]);
+            } else {
+                rank = insertBelow(root, key, 0);
+            }
+            refind(rank);
+        }
+
+        /* The subtree of nodes[i] holds every key between its closest ancestors that the path leaves to the right
+         * (a lower bound) and to the left (an upper bound). Going up, the bounds only get looser, so only the
+         * closest bound on either side needs to be compared with key, along with every bound that key turns out
+         * to lie beyond: those are keys between the previous key and this one.
+         */
+        private int climb(T key) {
+            int lastBeyond = -1;
+            boolean lowOk = false, highOk = false;
+            for (int j = length - 2; j >= 0 && !(lowOk && highOk); j--) {
+                if (wentLeft[j] ? highOk : lowOk) {
+                    continue;
+                }
+                int compare = key.compareTo(nodes[j].key);
+                if (compare == 0) {
+                    return j;
+                } else if (wentLeft[j] && compare < 0) {
+                    highOk = true;
+                } else if (!wentLeft[j] && compare > 0) {
+                    lowOk = true;
+                } else {
+                    lastBeyond = j;
+                }
+            }
+            return (lastBeyond >= 0) ? lastBeyond : length - 1;
+        }
+
+        // Find the path to the key of the given rank again, without comparing keys.
+        private void refind(int rank) {
+            int previous = length;
+            length = 0;
+            int base = 0;
+            Node curr = root;
+            while (curr != null) {
+                if (length == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, 2 * length);
+                    wentLeft = Arrays.copyOf(wentLeft, 2 * length);
+                    offset = Arrays.copyOf(offset, 2 * length);
+                }
+                int left = size(curr.left);
+                nodes[length] = curr;
+                offset[length] = base;
+                wentLeft[length] = rank < base + left;
+                length++;
+                if (rank < base + left) {
+                    curr = curr.left;
+                } else if (rank > base + left) {
+                    base += left + 1;
+                    curr = curr.right;
+                } else {
+                    break;
                 }
-                
+            }
+            if (previous > length) {
+                Arrays.fill(nodes, length, previous, null);
+            }
+            expectedRoot = root;
+            expectedModCount = modCount;
+        }
+    }
+
+    /**
+     * <p>Insert a run of keys that is already sorted. When every key of the run is larger than every key of the
+     * tree, which is the common case of appending a batch of new timestamps, the run is built into a perfectly
+     * balanced tree in O(k) time, as by {@link #fromSorted(Iterable, int)}, and joined to the right of the tree in
+     * O(log n), so the whole batch costs O(k + log n) and k comparisons. Otherwise the keys of the run that are
+     * not larger than the largest key of the tree are inserted one after the other through a {@link Cursor},
+     * and the rest of the run is built and joined as above.</p>
+     * @param run The keys to insert, in strictly ascending order.
+     * @throws IllegalArgumentException if run is not in strictly ascending order.
+     */
+    public void bulkAppend(Iterable<T> run) {
+        checkWritable();
+        List<T> keys = new ArrayList<>();
+        T prev = null;
+        for (T key : run) {
+            if (prev != null && prev.compareTo(key) >= 0) {
+                throw new IllegalArgumentException("Keys are not in strictly ascending order: " + prev + " is followed by " + key + ".");
+            }
+            keys.add(key);
+            prev = key;
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        if (root != null) {
+            T last = max(root).key;
+            int overlap = 0;
+            Cursor cursor = new Cursor();
+            while (overlap < keys.size() && keys.get(overlap).compareTo(last) <= 0) {
+                cursor.insert(keys.get(overlap++)); // These never change the largest key of the tree.
+            }
+            keys = keys.subList(overlap, keys.size());
+            if (keys.isEmpty()) {
+                return;
+            }
+        }
+
+        if (adaptive != null) {
+            for (int i = 0; i < keys.size(); i++) {
+                observe(true);
+            }
+        }
+        if (log != null) {
+            for (T key : keys) {
+                log.logInsert(key);
+            }
+        }
+        Node middle = new Node(keys.get(0));
+        Node rest = build(keys.subList(1, keys.size()).iterator(), keys.size() - 1);
+        root = join(root, middle, rest);
+        size = size + keys.size();
+        modCount++;
+    }
+
+    // Return curr itself if we may change it in place, or a private copy of it if it could be shared with a snapshot.
+    private Node own(Node curr) {
+        if (curr == null || curr.version == version || (adopted != null && curr.version == adopted)) {
+            return curr;
+        }
+        return curr.copy();
+    }
+
+    /* Called on a fresh tree that takes over the nodes of a and b, which are then emptied. The nodes of their
+     * current versions are reachable from them alone (snapshots only ever hold older versions), so they
+     * become ours to change in place instead of being copied.
+     */
+    private void adopt(AVLGTree<T> a, AVLGTree<T> b) {
+        version = a.version;
+        adopted = b.version;
+    }
+
+    private int height(Node curr) {
+        return (curr != null) ? curr.height : -1;
+    }
+
+    private int size(Node curr) {
+        return (curr != null) ? curr.size : 0;
+    }
+
+    private long total(Node curr) {
+        return (curr != null) ? curr.total : 0;
+    }
+
+    // O(1): assumes the children of curr already carry correct heights and sizes.
+    private void update(Node curr) {
+        int left = height(curr.left);
+        int right = height(curr.right);
+        curr.height = Math.max(left, right) + 1;
+        curr.balance = left - right;
+        curr.size = size(curr.left) + size(curr.right) + 1;
+        curr.total = total(curr.left) + total(curr.right) + curr.count;
+        if (aggregator != null) {
+            curr.summary = aggregator.combine(aggregator.combine(summary(curr.left),
+                    aggregator.lift(curr.key, curr.count)), summary(curr.right));
         }
+    }
+
+    private Object summary(Node curr) {
+        return (curr != null) ? curr.summary : aggregator.identity();
+    }
 
-        updateHeights(current);
-        updateBalance(current);
+    // current must already be owned; the child we rotate with is claimed by the rotation itself.
+    private Node rebalance(Node current) {
+        update(current);
 
+        Counters c = counters;
+        if (current.balance > maxImbalance) { //left subtree is heavier
+            if (current.left.balance >= 0) {
+                current = rotateR(current);
+                if (c != null) {
+                    c.rotationsR.increment();
+                }
+            } else {
+                current = rotateLR(current);
+                if (c != null) {
+                    c.rotationsLR.increment();
+                }
+            }
+        } else if (current.balance < -maxImbalance) { //right subtree is heavier
+            if (current.right.balance <= 0) {
+                current = rotateL(current);
+                if (c != null) {
+                    c.rotationsL.increment();
+                }
+            } else {
+                current = rotateRL(current);
+                if (c != null) {
+                    c.rotationsRL.increment();
+                }
+            }
+        }
         return current;
     }
 
-    private void updateBalance(Node curr) {
-        if (curr == null) {
-            return;
+
+    private Node rotateLR(Node curr) {
+        curr.left = rotateL(own(curr.left));
+        return rotateR(curr);
+    }
+
+
+    private Node rotateRL(Node curr) {
+        curr.right = rotateR(own(curr.right));
+        return rotateL(curr);
+    }
+
+
+    private Node rotateL(Node curr) {
+        Node temp = own(curr.right);
+        curr.right = temp.left;
+        temp.left = curr;
+
+        update(curr);
+        update(temp);
+        return temp;
+    }
+
+
+    private Node rotateR(Node curr) {
+        Node temp = own(curr.left);
+        curr.left = temp.right;
+        temp.right = curr;
+
+        update(curr);
+        update(temp);
+        return temp;
+    }
+
+
+    /**
+     * Delete the key from the data structure and return it to the caller.
+     * @param key The key to delete from the structure.
+     * @return The key that was removed, or {@code null} if the key was not found.
+     * @throws EmptyTreeException if the tree is empty.
+     */
+    public T delete(T key) throws EmptyTreeException {
+        checkWritable();
+        if (size == 0) {
+            throw new EmptyTreeException("null");
+        }
+
+        return remove(key, false);
+    }
+
+    // Remove one occurrence of key, or its node with every occurrence if everyOccurrence is set.
+    private T remove(T key, boolean everyOccurrence) {
+        if (adaptive != null) {
+            observe(true);
+        }
+        depth = 0;
+        Node curr = root;
+        while (curr != null) {
+            int compare = key.compareTo(curr.key);
+            if (compare == 0) {
+                break;
+            }
+            push(curr, compare < 0);
+            curr = (compare < 0) ? curr.left : curr.right;
+        }
+        if (curr == null) {
+            clearPath(); // key is not in the tree.
+            return null;
+        }
+
+        T found = curr.key;
+        if (curr.count > 1 && !everyOccurrence) {
+            Node fewer = own(curr);
+            fewer.count--;
+            update(fewer);
+            retrace(fewer, -1, null);
+            return found;
+        }
+        if (log != null) {
+            log.logDelete(found);
+        }
+        unlink(curr);
+        return found;
+    }
+
+    // Remove curr from the tree, with the path above it already pushed.
+    private void unlink(Node curr) {
+        if (curr.left == null || curr.right == null) {
+            retrace((curr.left != null) ? curr.left : curr.right, -1, null);
+        } else {
+            //two kids: pull the inorder successor up into this node
+            int at = depth;
+            push(curr, false);
+            Node succ = curr.right;
+            while (succ.left != null) {
+                push(succ, true);
+                succ = succ.left;
+            }
+            retrace(succ.right, at, succ);
+        }
+        size = size - 1;
+        modCount++;
+    }
+
+    private Node deleteMax(Node current) {
+        if (current.right == null) {
+            return current.left;
+        }
+        current = own(current);
+        current.right = deleteMax(current.right);
+        return rebalance(current);
+    }
+
+    /**
+     * <p>Search for key in the tree. Return a reference to it if it's in there,
+     * or {@code null} otherwise.</p>
+     * @param key The key to search for.
+     * @return key if key is in the tree, or {@code null} otherwise.
+     * @throws EmptyTreeException if the tree is empty.
+     */
+    public T search(T key) throws EmptyTreeException {
+        if (size == 0) {
+            throw new EmptyTreeException("empty");
+        }
+        return get(key);
+    }
+
+    /**
+     * <p>Look up key in the tree without caring whether the tree is empty.</p>
+     * @param key The key to search for.
+     * @return The key stored in the tree that compares equal to key, or {@code null} if there is none.
+     */
+    public T get(T key) {
+        Node curr = findNode(key);
+        return (curr != null) ? curr.key : null;
+    }
+
+    /**
+     * Query the tree for membership of key.
+     * @param key The key to search for.
+     * @return {@code true} if a key that compares equal to key is stored in the tree, {@code false} otherwise.
+     */
+    public boolean contains(T key) {
+        return findNode(key) != null;
+    }
+
+    /**
+     * Find the largest key in the tree that is smaller than or equal to key.
+     * @param key The key to search for.
+     * @return The floor of key in the tree, or {@code null} if every stored key is larger than key.
+     */
+    public T floor(T key) {
+        Node curr = floorNode(key, true);
+        return (curr != null) ? curr.key : null;
+    }
+
+    /**
+     * Find the smallest key in the tree that is larger than or equal to key.
+     * @param key The key to search for.
+     * @return The ceiling of key in the tree, or {@code null} if every stored key is smaller than key.
+     */
+    public T ceiling(T key) {
+        Node curr = ceilingNode(key, true);
+        return (curr != null) ? curr.key : null;
+    }
+
+    /**
+     * Find the largest key in the tree that is strictly smaller than key.
+     * @param key The key to search for.
+     * @return The largest key smaller than key, or {@code null} if there is none.
+     */
+    public T lower(T key) {
+        Node curr = floorNode(key, false);
+        return (curr != null) ? curr.key : null;
+    }
+
+    /**
+     * Find the smallest key in the tree that is strictly larger than key.
+     * @param key The key to search for.
+     * @return The smallest key larger than key, or {@code null} if there is none.
+     */
+    public T higher(T key) {
+        Node curr = ceilingNode(key, false);
+        return (curr != null) ? curr.key : null;
+    }
+
+    /* All lookups are a single root-to-leaf descent guided by compareTo, so they cost O(height). */
+    private Node findNode(T key) {
+        Node curr = root;
+        int compares = 0;
+        while (curr != null) {
+            int compare = key.compareTo(curr.key);
+            compares++;
+            if (compare == 0) {
+                break;
+            }
+            curr = (compare < 0) ? curr.left : curr.right;
+        }
+        Counters c = counters;
+        if (c != null) {
+            countSearch(c, compares);
+        }
+        if (adaptive != null) {
+            observe(false);
+        }
+        return curr;
+    }
+
+    private static void countSearch(Counters c, int compares) {
+        c.searches.increment();
+        c.comparisons.add(compares);
+        c.pathLengths[Math.min(compares, AVLGTreeMetrics.HISTOGRAM_BUCKETS - 1)].increment();
+    }
+
+    // The last node where we turned right is the closest key below us.
+    private Node floorNode(T key, boolean inclusive) {
+        Node curr = root, best = null;
+        while (curr != null) {
+            int compare = key.compareTo(curr.key);
+            if (compare > 0 || (inclusive && compare == 0)) {
+                best = curr;
+                if (compare == 0) {
+                    break;
+                }
+                curr = curr.right;
+            } else {
+                curr = curr.left;
+            }
+        }
+        return best;
+    }
+
+    private Node ceilingNode(T key, boolean inclusive) {
+        Node curr = root, best = null;
+        while (curr != null) {
+            int compare = key.compareTo(curr.key);
+            if (compare < 0 || (inclusive && compare == 0)) {
+                best = curr;
+                if (compare == 0) {
+                    break;
+                }
+                curr = curr.left;
+            } else {
+                curr = curr.right;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * <p>Return the rank of key, which is the number of keys in the tree that are strictly smaller than it. key
+     * does not have to be stored in the tree. Runs in O(log n) using the subtree sizes kept in every node.</p>
+     * @param key The key whose rank we want.
+     * @return The number of keys in the tree smaller than key.
+     */
+    public int rank(T key) {
+        return rank(key, false);
+    }
+
+    // Counts keys smaller than key (or not larger, if inclusive) along a single descent.
+    private int rank(T key, boolean inclusive) {
+        int r = 0;
+        Node curr = root;
+        while (curr != null) {
+            int compare = key.compareTo(curr.key);
+            if (compare < 0 || (compare == 0 && !inclusive)) {
+                curr = curr.left;
+            } else {
+                r += size(curr.left) + 1;
+                if (compare == 0) {
+                    break;
+                }
+                curr = curr.right;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * <p>Return the key of rank k, that is, the (k+1)-th smallest key in the tree. {@code select(rank(key)) }
+     * returns key for every stored key. Runs in O(log n).</p>
+     * @param k The zero-based rank of the key we want.
+     * @return The key with exactly k keys smaller than it in the tree.
+     * @throws IndexOutOfBoundsException if k is negative or not smaller than {@link #getCount()}.
+     */
+    public T select(int k) {
+        if (k < 0 || k >= size(root)) {
+            throw new IndexOutOfBoundsException("Rank " + k + " out of range for a tree of " + size(root) + " keys.");
+        }
+        Node curr = root;
+        while (true) {
+            int left = size(curr.left);
+            if (k < left) {
+                curr = curr.left;
+            } else if (k > left) {
+                k -= left + 1;
+                curr = curr.right;
+            } else {
+                return curr.key;
+            }
+        }
+    }
+
+    /**
+     * <p>Count the keys in the closed range [lo, hi] in O(log n), without visiting them.</p>
+     * @param lo The smallest key of the range.
+     * @param hi The largest key of the range.
+     * @return The number of keys k in the tree with lo &le; k &le; hi, or 0 if lo is larger than hi.
+     */
+    public int countRange(T lo, T hi) {
+        if (lo.compareTo(hi) > 0) {
+            return 0;
+        }
+        return rank(hi, true) - rank(lo, false);
+    }
+
+    /**
+     * Return the number of occurrences of key in the tree, in O(log n).
+     * @param key The key to count.
+     * @return How many times key was inserted into a multiset and not deleted since; 1 or 0 in a tree that is
+     * not a multiset.
+     */
+    public int count(T key) {
+        Node curr = findNode(key);
+        return (curr != null) ? curr.count : 0;
+    }
+
+    /**
+     * Return the number of occurrences of all keys in the tree, in O(1).
+     * @return The sum of {@link #count(Comparable)} over the distinct keys, which is {@link #getCount()} in a tree
+     * that is not a multiset.
+     */
+    public long getTotalCount() {
+        return total(root);
+    }
+
+    /**
+     * <p>Return the weighted rank of key: the number of occurrences of keys strictly smaller than it. Like
+     * {@link #rank(Comparable)}, but every key counts as many times as it occurs. Runs in O(log n).</p>
+     * @param key The key whose weighted rank we want. It does not have to be stored in the tree.
+     * @return The total count of the keys smaller than key.
+     */
+    public long weightedRank(T key) {
+        long r = 0;
+        Node curr = root;
+        while (curr != null) {
+            int compare = key.compareTo(curr.key);
+            if (compare <= 0) {
+                curr = curr.left;
+            } else {
+                r += total(curr.left) + curr.count;
+                curr = curr.right;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * <p>Return the key at position k of the tree's occurrences in ascending order, where a key that occurs c
+     * times fills c consecutive positions. {@code weightedSelect(weightedRank(key))} returns key for every stored
+     * key. Runs in O(log n).</p>
+     * @param k The zero-based position of the occurrence we want.
+     * @return The key with at most k occurrences of smaller keys before it and more than k up to and including it.
+     * @throws IndexOutOfBoundsException if k is negative or not smaller than {@link #getTotalCount()}.
+     */
+    public T weightedSelect(long k) {
+        if (k < 0 || k >= total(root)) {
+            throw new IndexOutOfBoundsException("Position " + k + " out of range for a tree of " + total(root) +
+                    " occurrences.");
+        }
+        Node curr = root;
+        while (true) {
+            long left = total(curr.left);
+            if (k < left) {
+                curr = curr.left;
+            } else if (k >= left + curr.count) {
+                k -= left + curr.count;
+                curr = curr.right;
+            } else {
+                return curr.key;
+            }
+        }
+    }
+
+    /**
+     * <p>Make the tree keep, in the root of every subtree, the summary of that subtree's keys computed by
+     * aggregator, so that {@link #aggregate(Aggregator, Comparable, Comparable)} can summarize any range of keys in
+     * O(log n). The summaries are computed once for the whole tree, in O(n), and are then kept up to date by every
+     * update, rotations included, at the price of O(1) calls to the aggregator per node the update revisits.</p>
+     * @param aggregator The {@link Aggregator} to summarize keys with, or {@code null} to stop keeping summaries.
+     * @param <A> The type of the summaries.
+     */
+    @SuppressWarnings("unchecked")
+    public <A> void setAggregator(Aggregator<? super T, A> aggregator) {
+        checkWritable();
+        this.aggregator = (Aggregator<T, Object>) aggregator;
+        if (root == null) {
+            return;
+        }
+        // Reverse preorder visits children before their parents, and the nodes shared with snapshots are copied.
+        List<Node> preorder = new ArrayList<>(size);
+        Deque<Node> stack = new ArrayDeque<>();
+        root = own(root);
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node curr = stack.pop();
+            preorder.add(curr);
+            if (curr.left != null) {
+                curr.left = own(curr.left);
+                stack.push(curr.left);
+            }
+            if (curr.right != null) {
+                curr.right = own(curr.right);
+                stack.push(curr.right);
+            }
+        }
+        for (int i = preorder.size() - 1; i >= 0; i--) {
+            Node curr = preorder.get(i);
+            if (aggregator != null) {
+                update(curr);
+            } else {
+                curr.summary = null;
+            }
+        }
+    }
+
+    /**
+     * <p>Summarize the keys in the closed range [lo, hi] in O(log n). The search paths to lo and hi split the range
+     * into O(log n) whole subtrees and single keys, and their summaries are combined from left to right.</p>
+     * @param aggregator The aggregator the tree was given with {@link #setAggregator(Aggregator)}, which also
+     * fixes the type of the summary.
+     * @param lo The smallest key of the range.
+     * @param hi The largest key of the range.
+     * @param <A> The type of the summaries.
+     * @return The summary of the keys k in the tree with lo &le; k &le; hi, or the identity if there are none.
+     * @throws IllegalArgumentException if aggregator is not the one that the tree keeps summaries for.
+     */
+    @SuppressWarnings("unchecked")
+    public <A> A aggregate(Aggregator<? super T, A> aggregator, T lo, T hi) {
+        if (aggregator == null || aggregator != this.aggregator) {
+            throw new IllegalArgumentException("The tree does not keep summaries for this aggregator.");
+        }
+        Aggregator<T, Object> agg = this.aggregator;
+        // Walk down to the first node inside the range; every other key of the range is below it.
+        Node top = root;
+        while (top != null) {
+            if (top.key.compareTo(lo) < 0) {
+                top = top.right;
+            } else if (top.key.compareTo(hi) > 0) {
+                top = top.left;
+            } else {
+                break;
+            }
+        }
+        if (top == null) {
+            return (A) agg.identity();
+        }
+        // The keys of the range left of top, gathered from right to left.
+        Object before = agg.identity();
+        for (Node curr = top.left; curr != null; ) {
+            if (curr.key.compareTo(lo) >= 0) {
+                before = agg.combine(agg.combine(agg.lift(curr.key, curr.count), summary(curr.right)), before);
+                curr = curr.left;
+            } else {
+                curr = curr.right;
+            }
+        }
+        // And those right of top, gathered from left to right.
+        Object after = agg.identity();
+        for (Node curr = top.right; curr != null; ) {
+            if (curr.key.compareTo(hi) <= 0) {
+                after = agg.combine(agg.combine(after, summary(curr.left)), agg.lift(curr.key, curr.count));
+                curr = curr.right;
+            } else {
+                curr = curr.left;
+            }
+        }
+        return (A) agg.combine(agg.combine(before, agg.lift(top.key, top.count)), after);
+    }
+
+    /**
+     * <p>Return a lazy iterator over the keys of the tree in ascending order. The iterator keeps an explicit
+     * stack of at most {@link #getHeight()} + 1 nodes, so it uses O(log n) memory and every call to
+     * {@link Iterator#next()} costs amortized O(1).</p>
+     *
+     * <p>The iterator is <em>fail-fast</em>: if the tree is structurally modified after the iterator is created,
+     * in any way other than through the iterator's own {@link Iterator#remove()}, it throws a
+     * {@link ConcurrentModificationException}.</p>
+     *
+     * <p>In a {@link #multiset(int)}, the iterator returns every distinct key once, however many times it occurs,
+     * and its {@link Iterator#remove()} removes the key along with all of its occurrences.</p>
+     * @return An {@link Iterator} over the keys of the tree in ascending order.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return new InorderIterator(null, false, null, false, false);
+    }
+
+    /**
+     * Return a lazy, fail-fast iterator over the keys of the tree in descending order.
+     * @return An {@link Iterator} over the keys of the tree in descending order.
+     * @see #iterator()
+     */
+    public Iterator<T> descendingIterator() {
+        return new InorderIterator(null, false, null, false, true);
+    }
+
+    /**
+     * Return a view of the keys in the half-open range [lo, hi).
+     * @param lo The smallest key of the view.
+     * @param hi The key just above the largest key of the view.
+     * @return A {@link RangeView} over the keys k with lo &le; k &lt; hi.
+     */
+    public RangeView subSet(T lo, T hi) {
+        return subSet(lo, true, hi, false);
+    }
+
+    /**
+     * <p>Return a view of the keys between lo and hi. The view does not copy anything: its iterators walk the
+     * tree itself and stop as soon as they leave the range, so a scan costs O(log n + k) time and
+     * O(log n) memory for k keys in the range.</p>
+     * @param lo The lower end of the view.
+     * @param loInclusive Whether lo itself belongs to the view.
+     * @param hi The upper end of the view.
+     * @param hiInclusive Whether hi itself belongs to the view.
+     * @return A {@link RangeView} over the keys between lo and hi.
+     */
+    public RangeView subSet(T lo, boolean loInclusive, T hi, boolean hiInclusive) {
+        return new RangeView(lo, loInclusive, hi, hiInclusive);
+    }
+
+    /**
+     * Return a view of the keys strictly smaller than hi.
+     * @param hi The key just above the largest key of the view.
+     * @return A {@link RangeView} over the keys k with k &lt; hi.
+     */
+    public RangeView headSet(T hi) {
+        return headSet(hi, false);
+    }
+
+    /**
+     * Return a view of the keys smaller than (or, if inclusive, equal to) hi.
+     * @param hi The upper end of the view.
+     * @param inclusive Whether hi itself belongs to the view.
+     * @return A {@link RangeView} over the keys up to hi.
+     */
+    public RangeView headSet(T hi, boolean inclusive) {
+        return new RangeView(null, false, hi, inclusive);
+    }
+
+    /**
+     * Return a view of the keys larger than or equal to lo.
+     * @param lo The smallest key of the view.
+     * @return A {@link RangeView} over the keys k with k &ge; lo.
+     */
+    public RangeView tailSet(T lo) {
+        return tailSet(lo, true);
+    }
+
+    /**
+     * Return a view of the keys larger than (or, if inclusive, equal to) lo.
+     * @param lo The lower end of the view.
+     * @param inclusive Whether lo itself belongs to the view.
+     * @return A {@link RangeView} over the keys from lo upwards.
+     */
+    public RangeView tailSet(T lo, boolean inclusive) {
+        return new RangeView(lo, inclusive, null, false);
+    }
+
+    /**
+     * <p>{@link RangeView} is a live, read-through view of the keys of an {@link AVLGTree} that fall inside a
+     * range. A {@code null} end means that the range is unbounded on that side. Changes to the tree are visible
+     * through views created before them, but iterators obtained from a view fail fast like those of the tree.</p>
+     */
+    public class RangeView implements Iterable<T> {
+        private final T lo, hi;
+        private final boolean loInclusive, hiInclusive;
+
+        private RangeView(T lo, boolean loInclusive, T hi, boolean hiInclusive) {
+            this.lo = lo;
+            this.loInclusive = loInclusive;
+            this.hi = hi;
+            this.hiInclusive = hiInclusive;
+        }
+
+        /**
+         * Return a lazy, fail-fast iterator over the keys of this view in ascending order.
+         * @return An {@link Iterator} over the keys in the range.
+         */
+        @Override
+        public Iterator<T> iterator() {
+            return new InorderIterator(lo, loInclusive, hi, hiInclusive, false);
+        }
+
+        /**
+         * Return a lazy, fail-fast iterator over the keys of this view in descending order.
+         * @return An {@link Iterator} over the keys in the range, largest first.
+         */
+        public Iterator<T> descendingIterator() {
+            return new InorderIterator(lo, loInclusive, hi, hiInclusive, true);
+        }
+
+        /**
+         * Count the keys in this view in O(log n), using the subtree sizes of the tree.
+         * @return The number of keys of the tree that fall inside the range.
+         */
+        public int size() {
+            int upper = (hi != null) ? rank(hi, hiInclusive) : getCount();
+            int lower = (lo != null) ? rank(lo, !loInclusive) : 0;
+            return Math.max(upper - lower, 0);
+        }
+
+        /**
+         * Query the view for emptiness.
+         * @return {@code true} if no key of the tree falls inside the range, {@code false} otherwise.
+         */
+        public boolean isEmpty() {
+            return size() == 0;
+        }
+
+        /**
+         * Query the view for membership of key.
+         * @param key The key to search for.
+         * @return {@code true} if key is in the range and stored in the tree, {@code false} otherwise.
+         */
+        public boolean contains(T key) {
+            return !tooLow(key) && !tooHigh(key) && AVLGTree.this.contains(key);
+        }
+
+        private boolean tooLow(T key) {
+            if (lo == null) {
+                return false;
+            }
+            int compare = key.compareTo(lo);
+            return compare < 0 || (compare == 0 && !loInclusive);
+        }
+
+        private boolean tooHigh(T key) {
+            if (hi == null) {
+                return false;
+            }
+            int compare = key.compareTo(hi);
+            return compare > 0 || (compare == 0 && !hiInclusive);
+        }
+    }
+
+    /* The stack holds the nodes whose key has not been returned yet but whose subtree on the "before" side
+     * has been (or is being) consumed. Only the initial seek compares keys against the lower end of the
+     * range; after that, each next() pushes the near spine of one subtree and checks the far end once.
+     */
+    private class InorderIterator implements Iterator<T> {
+        private final RangeView range;
+        private final boolean descending;
+        private final Deque<Node> stack;
+        private int expectedModCount;
+        private T lastReturned;
+
+        private InorderIterator(T lo, boolean loInclusive, T hi, boolean hiInclusive, boolean descending) {
+            this.range = new RangeView(lo, loInclusive, hi, hiInclusive);
+            this.descending = descending;
+            this.stack = new ArrayDeque<>(height(root) + 2);
+            this.expectedModCount = modCount;
+            if (descending) {
+                seek(hi, hiInclusive);
+            } else {
+                seek(lo, loInclusive);
+            }
+        }
+
+        // Push the path to the first key at or past from, in iteration order.
+        private void seek(T from, boolean inclusive) {
+            stack.clear();
+            Node curr = root;
+            while (curr != null) {
+                if (from != null) {
+                    int compare = curr.key.compareTo(from);
+                    boolean before = descending ? compare > 0 : compare < 0;
+                    if (before || (compare == 0 && !inclusive)) {
+                        curr = descending ? curr.left : curr.right;
+                        continue;
+                    }
+                }
+                stack.push(curr);
+                curr = descending ? curr.right : curr.left;
+            }
+        }
+
+        private void pushSpine(Node curr) {
+            while (curr != null) {
+                stack.push(curr);
+                curr = descending ? curr.right : curr.left;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (stack.isEmpty()) {
+                return false;
+            }
+            T next = stack.peek().key;
+            if (descending ? range.tooLow(next) : range.tooHigh(next)) {
+                stack.clear(); // Past the end of the range; nothing further can be in it.
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public T next() {
+            return nextNode().key;
+        }
+
+        private Node nextNode() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Node curr = stack.pop();
+            pushSpine(descending ? curr.left : curr.right);
+            lastReturned = curr.key;
+            return curr;
+        }
+
+        /* Deleting may rotate nodes that sit on our stack, so we simply seek again past the key
+         * we just removed. That costs one more descent, O(log n). The iterator returns every key once, even in a
+         * multiset, so removing it removes every occurrence.
+         */
+        @Override
+        public void remove() {
+            if (lastReturned == null) {
+                throw new IllegalStateException();
+            }
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            checkWritable();
+            AVLGTree.this.remove(lastReturned, true);
+            expectedModCount = modCount;
+            seek(lastReturned, false);
+            lastReturned = null;
+        }
+    }
+
+    /**
+     * <p>Join two trees around a middle key. Every key of left has to be smaller than key, and every key of right
+     * larger than it. This runs in O(|h(left) - h(right)| + 1): we walk down the spine of the taller tree until we
+     * reach a subtree whose height is within maxImbalance of the shorter tree, hang both of them under key there,
+     * and rebalance on the way back up, exactly as an insertion would.</p>
+     *
+     * <p>Both trees are consumed: their nodes are reused by the result, and they are left empty.</p>
+     * @param left The tree with the smaller keys.
+     * @param key The middle key.
+     * @param right The tree with the larger keys.
+     * @param <T> The type of the keys.
+     * @return A new tree holding the keys of left, key, and the keys of right.
+     * @throws IllegalArgumentException if the trees have different maximum imbalances, or if the keys are not
+     * ordered as described above.
+     */
+    public static <T extends Comparable<T>> AVLGTree<T> join(AVLGTree<T> left, T key, AVLGTree<T> right) {
+        checkCompatible(left, right);
+        left.checkWritable();
+        right.checkWritable();
+        left.rebalance();
+        right.rebalance();
+        if ((left.root != null && left.max(left.root).key.compareTo(key) >= 0) ||
+                (right.root != null && right.min(right.root).key.compareTo(key) <= 0)) {
+            throw new IllegalArgumentException("Every key of left must be smaller than " + key +
+                    " and every key of right larger than it.");
+        }
+        AVLGTree<T> joined = new AVLGTree<>(left);
+        joined.adopt(left, right);
+        joined.root = joined.join(left.root, joined.new Node(key), right.root);
+        joined.size = joined.size(joined.root);
+        left.clear();
+        right.clear();
+        return joined;
+    }
+
+    /**
+     * <p>Split the tree around key in O(log n). Afterwards this tree holds exactly the keys that are smaller than
+     * or equal to key, and the returned tree holds those that are larger. Only nodes shared with a
+     * {@link #snapshot()} are copied: the search path to key is cut, and the pieces hanging off it are joined back together on either side.</p>
+     *
+     * <p>If a {@link WriteAheadLog} is attached, the split is logged, so that recovery drops the larger keys again.
+     * The returned tree has no log.</p>
+     * @param key The key to split around. It does not have to be stored in the tree.
+     * @return A new tree with the keys of this tree that are larger than key.
+     */
+    public AVLGTree<T> split(T key) {
+        checkWritable();
+        if (log != null) {
+            log.logSplit(key);
+        }
+        rebalance();
+        Split parts = split(root, key);
+        AVLGTree<T> upper = new AVLGTree<>(this);
+        upper.root = parts.right;
+        upper.size = size(upper.root);
+        root = (parts.middle != null) ? join(parts.left, parts.middle, null) : parts.left;
+        size = size(root);
+        // Neither tree may keep owning the nodes stamped with the old version: a snapshot of one of them, joined back
+        // into a tree that still owned them, could be written through. Both start over and copy on their first writes.
+        version = new Object();
+        adopted = null;
+        modCount++;
+        return upper;
+    }
+
+    /**
+     * <p>Return the union of two trees. The work is split recursively with {@link #split(Object)} and
+     * {@link #join(AVLGTree, Comparable, AVLGTree)} on the common {@link ForkJoinPool}, so merging trees of sizes
+     * m &le; n costs O(m log(n / m + 1)) work and polylogarithmic span.</p>
+     *
+     * <p>Both trees are consumed: their nodes are reused by the result, and they are left empty.</p>
+     * @param a The first tree.
+     * @param b The second tree.
+     * @param <T> The type of the keys.
+     * @return A new tree with every key that is in a or b.
+     * @throws IllegalArgumentException if the trees have different maximum imbalances.
+     */
+    public static <T extends Comparable<T>> AVLGTree<T> union(AVLGTree<T> a, AVLGTree<T> b) {
+        return combine(SetOperation.UNION, a, b);
+    }
+
+    /**
+     * Return the intersection of two trees, computed in parallel like {@link #union(AVLGTree, AVLGTree)}. Both trees
+     * are consumed.
+     * @param a The first tree.
+     * @param b The second tree.
+     * @param <T> The type of the keys.
+     * @return A new tree with every key that is in both a and b.
+     * @throws IllegalArgumentException if the trees have different maximum imbalances.
+     */
+    public static <T extends Comparable<T>> AVLGTree<T> intersection(AVLGTree<T> a, AVLGTree<T> b) {
+        return combine(SetOperation.INTERSECTION, a, b);
+    }
+
+    /**
+     * Return the difference of two trees, computed in parallel like {@link #union(AVLGTree, AVLGTree)}. Both trees
+     * are consumed.
+     * @param a The tree whose keys we keep.
+     * @param b The tree whose keys we remove.
+     * @param <T> The type of the keys.
+     * @return A new tree with every key that is in a but not in b.
+     * @throws IllegalArgumentException if the trees have different maximum imbalances.
+     */
+    public static <T extends Comparable<T>> AVLGTree<T> difference(AVLGTree<T> a, AVLGTree<T> b) {
+        return combine(SetOperation.DIFFERENCE, a, b);
+    }
+
+    private static <T extends Comparable<T>> AVLGTree<T> combine(SetOperation op, AVLGTree<T> a, AVLGTree<T> b) {
+        checkCompatible(a, b);
+        if (a.multiset) {
+            throw new IllegalArgumentException("Union, intersection and difference are not defined on multisets.");
+        }
+        a.checkWritable();
+        b.checkWritable();
+        a.rebalance();
+        b.rebalance();
+        AVLGTree<T> result = new AVLGTree<>(a);
+        result.adopt(a, b);
+        result.root = ForkJoinPool.commonPool().invoke(result.new SetTask(op, a.root, b.root));
+        result.size = result.size(result.root);
+        a.clear();
+        b.clear();
+        return result;
+    }
+
+    private static void checkCompatible(AVLGTree<?> a, AVLGTree<?> b) {
+        if (a == b) {
+            throw new IllegalArgumentException("A tree cannot be combined with itself.");
+        }
+        if (a.maxImbalance != b.maxImbalance) {
+            throw new IllegalArgumentException("Cannot combine an AVL-" + a.maxImbalance + " tree with an AVL-" +
+                    b.maxImbalance + " tree.");
+        }
+        if (a.multiset != b.multiset) {
+            throw new IllegalArgumentException("Cannot combine a multiset with a set.");
+        }
+        if (a.aggregator != b.aggregator) {
+            throw new IllegalArgumentException("Cannot combine trees with different aggregators.");
+        }
+    }
+
+    /* Hangs l and r under m, descending the spine of the taller one first. Only touches the nodes it is
+     * given and the maxImbalance field, so set tasks can call it concurrently on disjoint subtrees.
+     */
+    private Node join(Node l, Node m, Node r) {
+        int hl = height(l), hr = height(r);
+        if (hl > hr + maxImbalance) {
+            l = own(l);
+            l.right = join(l.right, m, r);
+            return rebalance(l);
+        }
+        if (hr > hl + maxImbalance) {
+            r = own(r);
+            r.left = join(l, m, r.left);
+            return rebalance(r);
+        }
+        m = own(m);
+        m.left = l;
+        m.right = r;
+        update(m);
+        return m;
+    }
+
+    // Like join, but without a middle key: the largest key of l is pulled out and used instead.
+    private Node join2(Node l, Node r) {
+        if (l == null) {
+            return r;
+        }
+        Node m = max(l);
+        return join(deleteMax(l), m, r);
+    }
+
+    private Node min(Node curr) {
+        while (curr.left != null) {
+            curr = curr.left;
+        }
+        return curr;
+    }
+
+    private Node max(Node curr) {
+        while (curr.right != null) {
+            curr = curr.right;
+        }
+        return curr;
+    }
+
+    // The result of cutting a subtree around a key: the smaller keys, the node holding the key (if any), the larger keys.
+    private class Split {
+        private Node left, middle, right;
+    }
+
+    private Split split(Node curr, T key) {
+        if (curr == null) {
+            return new Split();
+        }
+        Node l = curr.left, r = curr.right;
+        int compare = key.compareTo(curr.key);
+        if (compare == 0) {
+            Split parts = new Split();
+            parts.left = l;
+            parts.middle = curr;
+            parts.right = r;
+            return parts;
+        } else if (compare < 0) {
+            Split parts = split(l, key);
+            parts.right = join(parts.right, curr, r);
+            return parts;
+        } else {
+            Split parts = split(r, key);
+            parts.left = join(l, curr, parts.left);
+            return parts;
+        }
+    }
+
+    /* Splits b around the root of a, combines the matching halves (in parallel when they are large enough),
+     * and joins the two results back together around a's root when the operation keeps that key.
+     */
+    private class SetTask extends RecursiveTask<Node> {
+        private final SetOperation op;
+        private final Node a, b;
+
+        private SetTask(SetOperation op, Node a, Node b) {
+            this.op = op;
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        protected Node compute() {
+            if (a == null) {
+                return (op == SetOperation.UNION) ? b : null;
+            }
+            if (b == null) {
+                return (op == SetOperation.INTERSECTION) ? null : a;
+            }
+            Node aLeft = a.left, aRight = a.right;
+            int work = size(a) + size(b);
+            Split parts = split(b, a.key);
+            SetTask leftTask = new SetTask(op, aLeft, parts.left);
+            SetTask rightTask = new SetTask(op, aRight, parts.right);
+
+            Node l, r;
+            if (work > SEQUENTIAL_CUTOFF) {
+                leftTask.fork();
+                r = rightTask.compute();
+                l = leftTask.join();
+            } else {
+                l = leftTask.compute();
+                r = rightTask.compute();
+            }
+
+            boolean keep = (op == SetOperation.UNION) || ((op == SetOperation.INTERSECTION) == (parts.middle != null));
+            return keep ? AVLGTree.this.join(l, a, r) : join2(l, r);
+        }
+    }
+
+    /**
+     * <p>Return a read-only view of the tree as it is right now, in O(1). Nothing is copied up front: the tree
+     * simply starts a new version, and from then on every {@link #insert(Comparable)}, {@link #delete(Comparable)},
+     * split or join copies the nodes it is about to change (the search path and the nodes a rotation moves) instead
+     * of changing them in place. The nodes of a snapshot are therefore never written again, so it can be handed
+     * to other threads through any safely published reference and read by all of them without locks, while the
+     * writer keeps going. Old versions are reclaimed by the garbage collector once no snapshot refers to them.</p>
+     *
+     * <p>The snapshot supports every query of {@link AVLGTree}, iteration included. Methods that would modify it
+     * throw an {@link UnsupportedOperationException}. Taking a snapshot of a snapshot returns it unchanged.</p>
+     * @return An immutable {@link AVLGTree} holding the keys currently stored in this tree.
+     */
+    public AVLGTree<T> snapshot() {
+        if (readOnly) {
+            return this;
+        }
+        AVLGTree<T> frozen = new AVLGTree<>(this);
+        frozen.root = root;
+        frozen.size = size;
+        frozen.readOnly = true;
+        frozen.unbalanced = getPendingRebalances() > 0;
+        version = new Object();
+        adopted = null;
+        return frozen;
+    }
+
+    private void checkWritable() {
+        if (readOnly) {
+            throw new UnsupportedOperationException("This tree is a read-only snapshot.");
+        }
+    }
+
+    /**
+     * <p>Turn deferred rebalancing on or off. While it is on, insertions and deletions still update the heights and
+     * sizes on their search path, but never rotate: when they leave a node out of balance, they only queue the
+     * path to it for repair, in O(1). The repairs are made later, in batches, by {@link #rebalance()} or
+     * {@link #rebalance(int)}, which a background thread may call for the writers (see
+     * {@link CopyOnWriteAVLGTree#setBackgroundRebalancing(boolean)}). Rotations therefore cost the writers nothing,
+     * and how many are made per write no longer depends on the keys they write.</p>
+     *
+     * <p>Every search, rank and iteration stays correct at all times, since only the balance of the tree is
+     * relaxed, never its order; searches are merely slower while long paths are pending. {@link #isAVLGBalanced()}
+     * and {@link #verify()} report the pending imbalance as it is. {@link #save(Path, KeyCodec)}, joins, splits and
+     * set operations rebalance their trees first. Turning deferred rebalancing off makes every pending repair.</p>
+     * @param enabled {@code true} to defer rotations, {@code false} to make them inline again.
+     */
+    public void setDeferredRebalancing(boolean enabled) {
+        checkWritable();
+        if (enabled && !deferred) {
+            deferred = true; // Repairs queued by adaptive mode are kept.
+        } else if (!enabled && deferred) {
+            rebalance();
+            deferred = false;
+            dirty = null;
+        }
+    }
+
+    /**
+     * Query the tree for whether it defers rotations.
+     * @return {@code true} if {@link #setDeferredRebalancing(boolean)} is in effect, {@code false} otherwise.
+     */
+    public boolean isDeferredRebalancing() {
+        return deferred;
+    }
+
+    /**
+     * Return the number of search paths queued for repair by deferred rebalancing. A path may be queued more than
+     * once, and a repair may fix several queued paths at once, so this is an upper bound on the work left.
+     * @return How many repairs {@link #rebalance()} still has to make.
+     */
+    public int getPendingRebalances() {
+        return (dirty != null) ? dirty.size() : 0;
+    }
+
+    /**
+     * Make every repair queued by deferred rebalancing, so that the tree is AVL-G balanced again.
+     * @see #rebalance(int)
+     */
+    public void rebalance() {
+        rebalance(Integer.MAX_VALUE);
+    }
+
+    /**
+     * <p>Make at most budget of the repairs queued by deferred rebalancing, oldest first. A repair walks down the
+     * queued path and back up, rotating every node on it that is out of balance exactly as an insertion would.
+     * A node that a single or double rotation cannot bring back within maxImbalance, because many updates piled up
+     * under it, has its subtree rebuilt perfectly balanced instead, in time linear in its size; since at least as
+     * many updates made it that unbalanced, that costs O(log n) amortized per update. Repairs do not change the keys
+     * of the tree, but they do move its nodes, so they invalidate its iterators.</p>
+     * @param budget The largest number of queued paths to repair.
+     * @return The number of paths still queued afterwards.
+     */
+    public int rebalance(int budget) {
+        return rebalance(budget, Long.MAX_VALUE);
+    }
+
+    /* Make at most budget queued repairs, but stop as soon as the repairs made have visited work nodes, counting
+     * every node of the subtrees they rebuilt. At least one repair is made, however much work it takes. Used by
+     * CopyOnWriteAVLGTree, whose rebalancer holds the write lock for a batch and so bounds it by work done.
+     */
+    int rebalance(int budget, long work) {
+        checkWritable();
+        if (dirty == null || dirty.isEmpty() || budget <= 0) {
+            return getPendingRebalances();
+        }
+        for (long done = 0; budget > 0 && done < work && !dirty.isEmpty(); budget--) {
+            done += repair(dirty.poll());
+        }
+        modCount++;
+        return dirty.size();
+    }
+
+    /* Push the search path to key, the node holding it included, and fix it from the bottom up. Returns the number
+     * of nodes visited: the path, plus the size of every subtree rebuilt. */
+    private long repair(T key) {
+        depth = 0;
+        Node curr = root;
+        while (curr != null) {
+            int compare = key.compareTo(curr.key);
+            push(curr, compare < 0);
+            if (compare == 0) {
+                break;
+            }
+            curr = (compare < 0) ? curr.left : curr.right;
+        }
+        long work = depth;
+        Node child = null;
+        for (boolean bottom = true; depth > 0; bottom = false) {
+            depth--;
+            curr = own(path[depth]);
+            path[depth] = null;
+            if (!bottom) {
+                if (wentLeft[depth]) {
+                    curr.left = child;
+                } else {
+                    curr.right = child;
+                }
+            }
+            Node top = rebalance(curr);
+            if (Math.abs(top.balance) > maxImbalance || (top != curr && (outOfBalance(top.left) || outOfBalance(top.right)))) {
+                work += size(top);
+                top = rebuildBalanced(top);
+            }
+            child = top;
+        }
+        root = child;
+        return work;
+    }
+
+    private boolean outOfBalance(Node curr) {
+        return curr != null && Math.abs(curr.balance) > maxImbalance;
+    }
+
+    /**
+     * <p>Attach a {@link WriteAheadLog} to the tree: from now on, every insertion, deletion and {@link #clear()} that
+     * changes the tree is appended to the log before it is applied, so that the tree can be rebuilt after a crash
+     * by {@link WriteAheadLog#recover(Path, int)}. Insertions of keys that are already stored and deletions of
+     * missing keys change nothing, so they are not logged. If the log cannot be written, the update throws an
+     * {@link java.io.UncheckedIOException} and leaves the tree unchanged.</p>
+     *
+     * <p>A log records a single tree, so it can only be attached to one tree at a time; setting another log, or
+     * {@code null}, releases the previous one.</p>
+     * @param log The log to append to, or {@code null} to stop logging.
+     * @throws UnsupportedOperationException if the tree is a multiset, whose counts the log cannot record.
+     * @throws IllegalStateException if log is attached to another tree.
+     */
+    public void setLog(WriteAheadLog<T> log) {
+        checkWritable();
+        if (multiset && log != null) {
+            throw new UnsupportedOperationException("A multiset cannot be logged.");
+        }
+        if (log != null) {
+            log.attach(this);
+        }
+        if (this.log != null && this.log != log) {
+            this.log.detach(this);
+        }
+        this.log = log;
+    }
+
+    /* ******************************************************** *
+     * ********************** MAP SUPPORT ********************* *
+     * ******************************************************** */
+
+    /* AVLGMap keeps its entries in an AVLGTree whose nodes are all Entry nodes, so that the map shares this tree's
+     * balancing: its rotations, metrics, adaptive maxImbalance and deferred rebalancing. The methods below are the
+     * part of the tree the map needs on top of the public interface. Entries are handed out as Map.Entry, since
+     * Node is private; the map casts their values back to its own type.
+     */
+
+    // The entry of key, found by a search that counts towards metrics and adaptive mode like any other.
+    Map.Entry<T, Object> getEntry(T key) {
+        return (Entry) findNode(key);
+    }
+
+    Map.Entry<T, Object> firstEntry() {
+        return (root != null) ? (Entry) min(root) : null;
+    }
+
+    Map.Entry<T, Object> lastEntry() {
+        return (root != null) ? (Entry) max(root) : null;
+    }
+
+    // The entry with the smallest key larger than (or, if inclusive, equal to) key.
+    Map.Entry<T, Object> ceilingEntry(T key, boolean inclusive) {
+        return (Entry) ceilingNode(key, inclusive);
+    }
+
+    // The entry with the largest key smaller than (or, if inclusive, equal to) key.
+    Map.Entry<T, Object> floorEntry(T key, boolean inclusive) {
+        return (Entry) floorNode(key, inclusive);
+    }
+
+    // The number of keys smaller than key, or not larger than it if inclusive.
+    int rankOf(T key, boolean inclusive) {
+        return rank(key, inclusive);
+    }
+
+    /* Start a write of the map: walk down to key, pushing every node passed on the way. Return the entry holding
+     * key, which is not pushed, or null, in which case the path ends at the node the new entry should hang from.
+     * Every descent must be followed by attach(), unlink() or clearPath().
+     */
+    Map.Entry<T, Object> descend(T key) {
+        checkWritable();
+        if (adaptive != null) {
+            observe(true);
         }
-    
-        Queue<Node> q = new LinkedList<>();
-        q.add(curr);
-    
-        while (!q.isEmpty()) {
-            Node node = q.poll();
-    
-            int left = (node.left != null) ? node.left.height : -1;
-            int right = (node.right != null) ? node.right.height : -1;
-            node.balance = left - right;
-    
-            if (node.left != null) {
-                q.add(node.left);
-            }
-            if (node.right != null) {
-                q.add(node.right);
+        depth = 0;
+        Node curr = root;
+        while (curr != null) {
+            int compare = key.compareTo(curr.key);
+            if (compare == 0) {
+                return (Entry) curr;
             }
+            push(curr, compare < 0);
+            curr = (compare < 0) ? curr.left : curr.right;
         }
+        return null;
     }
 
-    
-    public int updateHeights(Node curr) { 
-
-         if (curr == null) {
-            return -1;
-        }
-
-        int left = updateHeights(curr.left);
-        int right = updateHeights(curr.right);
-        int h = Math.max(left, right) + 1;
-        curr.height = h;
-        return h;
+    // Hang a new entry at the bottom of the path of the last descent, which did not find key.
+    void attach(T key, Object value) {
+        size++;
+        modCount++;
+        retrace(new Entry(key, value), -1, null);
     }
 
-
-    private Node rotateLR(Node curr) {
-        curr.left = rotateL(curr.left);
-        Node temp = curr;
-        curr = rotateR(temp);
-        return curr;
+    // Remove entry, which the last descent found.
+    @SuppressWarnings("unchecked")
+    void unlinkEntry(Map.Entry<T, ?> entry) {
+        unlink((Entry) entry);
     }
 
-
-    private Node rotateRL(Node curr) {
-        curr.right = rotateR(curr.right);
-        Node temp = curr;
-        curr = rotateL(temp);
-        return curr;
+    int getModCount() {
+        return modCount;
     }
-    
 
-    
+    // Iterate over the entries of a range, in the same way and with the same bounds as the iterators of the keys.
+    Iterator<Map.Entry<T, Object>> entryIterator(T lo, boolean loInclusive, T hi, boolean hiInclusive,
+                                                 boolean descending) {
+        InorderIterator nodes = new InorderIterator(lo, loInclusive, hi, hiInclusive, descending);
+        return new Iterator<Map.Entry<T, Object>>() {
+            @Override
+            public boolean hasNext() {
+                return nodes.hasNext();
+            }
 
-    private Node rotateL(Node curr) {
-        
-        Node temp = curr.right;
-        curr.right = temp.left;
-        temp.left = curr;
+            @Override
+            public Map.Entry<T, Object> next() {
+                return (Entry) nodes.nextNode();
+            }
 
-        return temp;
+            @Override
+            public void remove() {
+                nodes.remove();
+            }
+        };
     }
 
+    /* ******************************************************** *
+     * ******************** BINARY SNAPSHOTS ****************** *
+     * ******************************************************** */
 
-    private Node rotateR(Node curr) {
-       
-        Node temp = curr.left;
-        curr.left = temp.right;
-        temp.right = curr;
-
-        return temp;
-    }
+    /* The file format written by save() and read by load(). All numbers are big-endian.
+     *
+     *   int    SAVE_MAGIC ("AVLG")
+     *   int    SAVE_VERSION
+     *   int    maxImbalance
+     *   int    n, the number of keys
+     *   int    w, the width of an encoded key
+     *   byte[] the shape of the tree: 2 bits per node, in preorder, 4 nodes per byte starting from the most
+     *          significant bits; the high bit says whether the node has a left child, the low one a right child
+     *   byte[] n keys of w bytes each, encoded by the KeyCodec, in preorder
+     *   int    the CRC32 of everything before it
+     */
+    private static final int SAVE_MAGIC = 0x41564C47;
+    private static final int SAVE_VERSION = 1;
+    private static final int SAVE_HEADER = 5 * Integer.BYTES;
 
-    public Node parent(Node curr, int i, T key) {
-        if (curr == null) {
-            return null;
+    /**
+     * <p>Write the tree to file in a compact binary format: a versioned header, the shape of the tree (2 bits per
+     * key), every key encoded by codec, and a CRC32 checksum. {@link #load(Path, KeyCodec)} rebuilds the very same
+     * tree from it in a single pass, without comparing or rotating anything.</p>
+     *
+     * <p>The file is written next to its final location and moved over it once it has been forced to disk, so
+     * a crash never leaves a half-written snapshot behind. Snapshots are limited to 2 GB. Calling this method on a
+     * read-only {@link #snapshot()} is a cheap way of saving a tree that other threads keep changing.</p>
+     * @param file The file to write to. It is replaced if it exists.
+     * @param codec The {@link KeyCodec} that encodes the keys.
+     * @throws IOException if the file cannot be written, the snapshot would be larger than 2 GB, or the tree is a
+     * multiset, whose counts the format cannot record.
+     */
+    public void save(Path file, KeyCodec<T> codec) throws IOException {
+        if (multiset) {
+            throw new IOException("Snapshots of multisets are not supported.");
         }
-        if (i == curr.index) {
-            return curr;
-        } else if (curr.left != null && curr.left.key == key) {
-            return curr;
-        } else if (curr.right != null && curr.right.key == key) {
-            return curr;
+        if (!readOnly) {
+            rebalance();
+        } else if (unbalanced) {
+            throw new IOException("This snapshot has deferred rebalancing pending; call rebalance() before taking it.");
+        }
+        int width = codec.width();
+        long length = SAVE_HEADER + (2L * size + 7) / 8 + (long) size * width + Integer.BYTES;
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("A snapshot of " + size + " keys would be larger than 2 GB.");
         }
 
+        byte[] shape = new byte[(int) ((2L * size + 7) / 8)];
+        int i = 0;
+        Deque<Node> stack = new ArrayDeque<>();
+        for (Node curr = root; curr != null || !stack.isEmpty(); i++) {
+            if (curr == null) {
+                curr = stack.pop();
+            }
+            int bits = (curr.left != null ? 2 : 0) | (curr.right != null ? 1 : 0);
+            shape[i >>> 2] |= (byte) (bits << (6 - 2 * (i & 3)));
+            if (curr.right != null) {
+                stack.push(curr.right);
+            }
+            curr = curr.left;
+        }
 
-        Node temp = parent(curr.left, i, key);
-        if (temp != null) {
-            return temp;
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                CRC32 crc = new CRC32();
+                DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), crc));
+                out.writeInt(SAVE_MAGIC);
+                out.writeInt(SAVE_VERSION);
+                out.writeInt(maxImbalance);
+                out.writeInt(size);
+                out.writeInt(width);
+                out.write(shape);
+                ByteBuffer key = ByteBuffer.allocate(width);
+                for (Node curr = root; curr != null || !stack.isEmpty(); ) {
+                    if (curr == null) {
+                        curr = stack.pop();
+                    }
+                    codec.write(key, 0, curr.key);
+                    out.write(key.array());
+                    if (curr.right != null) {
+                        stack.push(curr.right);
+                    }
+                    curr = curr.left;
+                }
+                out.flush();
+                new DataOutputStream(Channels.newOutputStream(channel)).writeInt((int) crc.getValue());
+                channel.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            try {
+                Files.deleteIfExists(tmp); // Don't leave a partial snapshot next to the file.
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
         }
-         return parent(curr.right, i, key);
     }
 
-    private int indexing(Node current, int i) {
-		if (current != null) {
-			
-			current.index = i++;
-			i = indexing(current.left, i);
-			i = indexing(current.right, i);
-		}
-		return i;
-	}
-
-
-
     /**
-     * Delete the key from the data structure and return it to the caller.
-     * @param key The key to delete from the structure.
-     * @return The key that was removed, or {@code null} if the key was not found.
-     * @throws EmptyTreeException if the tree is empty.
+     * <p>Read back a tree written by {@link #save(Path, KeyCodec)}. The file is memory-mapped, its checksum is
+     * verified, and the nodes are then rebuilt in one linear pass over the shape and the keys, in preorder, followed
+     * by one pass over the nodes to compute their heights and sizes. No key is ever compared and no rotation is
+     * made: the tree comes back with exactly the shape and the maxImbalance it was saved with.</p>
+     * @param file The file to read.
+     * @param codec The {@link KeyCodec} that decodes the keys; it must be the one the file was written with.
+     * @param <T> The type of the keys.
+     * @return A new tree holding the keys saved in file.
+     * @throws IOException if the file cannot be read, is not a snapshot of a supported version, was written with a
+     * codec of another width, or is corrupt.
      */
-    public T delete(T key) throws EmptyTreeException {
-
-        if (size == 0) {
-            throw new EmptyTreeException("null");
+    public static <T extends Comparable<T>> AVLGTree<T> load(Path file, KeyCodec<T> codec) throws IOException {
+        MappedByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < SAVE_HEADER + Integer.BYTES || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is not an AVL-G tree snapshot.");
+            }
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        int length = buf.capacity();
+        if (buf.getInt(0) != SAVE_MAGIC) {
+            throw new IOException(file + " is not an AVL-G tree snapshot.");
+        }
+        if (buf.getInt(4) != SAVE_VERSION) {
+            throw new IOException(file + " is a snapshot of unsupported version " + buf.getInt(4) + ".");
+        }
+        int maxImbalance = buf.getInt(8), n = buf.getInt(12), width = buf.getInt(16);
+        if (width != codec.width()) {
+            throw new IOException(file + " holds keys of " + width + " bytes, but the codec reads " +
+                    codec.width() + ".");
+        }
+        int shapeBytes = (int) ((2L * n + 7) / 8);
+        if (n < 0 || maxImbalance < 1 || SAVE_HEADER + shapeBytes + (long) n * width + Integer.BYTES != length) {
+            throw new IOException(file + " is corrupt.");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf.slice(0, length - Integer.BYTES));
+        if ((int) crc.getValue() != buf.getInt(length - Integer.BYTES)) {
+            throw new IOException(file + " is corrupt: its checksum does not match.");
         }
-        
-        Node parent = null;
-        root = delete(root, parent, key);
-
-       
-        size = size - 1;
-        updateHeights(root);
 
-        updateBalance(root);
-        indexing(root, 0);
-        return key;
-        
+        AVLGTree<T> tree;
+        try {
+            tree = new AVLGTree<>(maxImbalance);
+        } catch (InvalidBalanceException e) {
+            throw new IOException(file + " is corrupt.", e);
+        }
+        tree.root = tree.rebuild(buf, n, SAVE_HEADER, SAVE_HEADER + shapeBytes, codec);
+        tree.size = n;
+        return tree;
     }
 
-    public Node delete(Node current, Node parent, T key) {
-        if (current == null) {
-            return current;
+    // Rebuild the n nodes whose preorder shape starts at shapeAt and whose keys start at keysAt.
+    @SuppressWarnings("unchecked")
+    private Node rebuild(ByteBuffer buf, int n, int shapeAt, int keysAt, KeyCodec<T> codec) throws IOException {
+        Node[] nodes = (Node[]) new AVLGTree.Node[n];
+        Deque<Node> needRight = new ArrayDeque<>(); // Nodes whose right subtree comes after their left one.
+        Node top = null, parent = null;
+        boolean asLeft = false;
+        int width = codec.width();
+        for (int i = 0; i < n; i++) {
+            if (i > 0 && parent == null) {
+                throw new IOException("Corrupt snapshot: its shape ends before its keys.");
+            }
+            Node curr = new Node(codec.read(buf, keysAt + i * width));
+            nodes[i] = curr;
+            if (parent == null) {
+                top = curr;
+            } else if (asLeft) {
+                parent.left = curr;
+            } else {
+                parent.right = curr;
+            }
+            int bits = (buf.get(shapeAt + (i >>> 2)) >>> (6 - 2 * (i & 3))) & 3;
+            if ((bits & 1) != 0) {
+                needRight.push(curr);
+            }
+            if ((bits & 2) != 0) {
+                parent = curr;
+                asLeft = true;
+            } else {
+                parent = needRight.poll();
+                asLeft = false;
+            }
         }
+        if (parent != null) {
+            throw new IOException("Corrupt snapshot: its shape has more nodes than keys.");
+        }
+        // In preorder, children come after their parents, so going backwards updates them first.
+        for (int i = n - 1; i >= 0; i--) {
+            update(nodes[i]);
+            if (Math.abs(nodes[i].balance) > maxImbalance) {
+                throw new IOException("Corrupt snapshot: it is not AVL-" + maxImbalance + " balanced.");
+            }
+        }
+        return top;
+    }
 
-        int compare = key.compareTo(current.key);
-        if (compare > 0) {
-            current.right = delete(current.right, current, key);
-        } else if (compare < 0) {
-            current.left = delete(current.left, current, key);
-        } else {
-
-            if (current.right != null) { //there is an inorder successor
-               
-                Node succ = current.right;
-                while (succ.left != null) {//grabbing the inorder successor
-                    succ = succ.left;
-                }
+    /**
+     * Retrieves the maximum imbalance parameter.
+     * @return The maximum imbalance parameter provided as a constructor parameter, or the one the tree has been
+     * given since by {@link #setMaxImbalance(int)} or chosen for itself in adaptive mode.
+     */
+    public int getMaxImbalance(){
+        return maxImbalance;     
+    }
 
-                current.key = succ.key;
+    /**
+     * <p>Change the maximum imbalance of the tree. Loosening it (a larger maxImbalance) is free: every tree that was
+     * AVL-G balanced is also balanced under a larger G. Tightening it costs O(n): the tree is checked against the
+     * new maxImbalance, and rebuilt perfectly balanced from its keys, as by
+     * {@link #fromSorted(Iterable, int)}, if it does not satisfy it. A rebuild invalidates the tree's
+     * iterators.</p>
+     * @param maxImbalance The new maximum imbalance allowed by the tree.
+     * @throws InvalidBalanceException if maxImbalance is a value smaller than 1.
+     */
+    public void setMaxImbalance(int maxImbalance) throws InvalidBalanceException {
+        checkWritable();
+        if (maxImbalance < 1) {
+            throw new InvalidBalanceException("");
+        }
+        retune(maxImbalance);
+    }
 
-                current.right = delete(current.right, current, succ.key);
+    /**
+     * <p>Let the tree choose its own maximum imbalance, between min and max, from the mix of operations it
+     * sees. Writes are cheaper with a large maxImbalance (fewer rotations) and searches are cheaper with a small one
+     * (a shorter tree), so the tree watches the fraction of its operations that are insertions and deletions, as
+     * opposed to searches by key, and moves maxImbalance accordingly: towards max when writing only and towards
+     * min when searching only.</p>
+     *
+     * <p>The mix is measured over windows of at least 1024 operations and at least as many operations as there are
+     * keys in the tree. Searches only count: they never change maxImbalance or the tree, so they stay safe to run
+     * from several threads at once, as on any tree nobody writes to (a few of their counts may then be lost). The
+     * maxImbalance chosen at the end of a window is applied by the next insertion or deletion. Loosening it is
+     * free. Tightening it does not rebuild the tree as {@link #setMaxImbalance(int)} does: the nodes the new bound
+     * leaves out of balance are found in one O(n) pass, which is O(1) amortized over a window of at least n
+     * operations, and queued for repair like the ones of {@link #setDeferredRebalancing(boolean)}. Every write then
+     * makes a few of the queued repairs before its own update, so the tree gets back to AVL-G balance over the
+     * following writes, and {@link #isAVLGBalanced()} reports false until it does. {@link #rebalance()} makes the
+     * remaining repairs at once; if rebalancing is deferred, only it makes them. Repairs invalidate iterators, as
+     * any other write does.</p>
+     * @param min The smallest maximum imbalance the tree may choose.
+     * @param max The largest maximum imbalance the tree may choose.
+     * @throws InvalidBalanceException if min is smaller than 1 or larger than max.
+     */
+    public void setAdaptiveImbalance(int min, int max) throws InvalidBalanceException {
+        checkWritable();
+        if (min < 1 || min > max) {
+            throw new InvalidBalanceException("");
+        }
+        adaptive = new Adaptive(min, max);
+        retune(Math.max(min, Math.min(max, maxImbalance)));
+    }
 
-            } else { //no inorder successor
-            
-                Node kid = (current.left != null) ? current.left : null;
+    /**
+     * Stop adapting the maximum imbalance of the tree; it keeps the one it has now. Repairs still queued by a
+     * tightening are made right away, unless rebalancing is deferred.
+     */
+    public void clearAdaptiveImbalance() {
+        adaptive = null;
+        if (!deferred && dirty != null) {
+            rebalance(); // Without adaptive mode, no write would make the repairs it queued.
+            dirty = null;
+        }
+    }
 
-                if (kid == null) { //no kids
-                    kid = current;
-                    current = null;
-                } else { //1 kid (left one)
-                    current = kid;  
-                }
-                kid = null;
+    /**
+     * Query the tree for whether it chooses its own maximum imbalance.
+     * @return {@code true} if {@link #setAdaptiveImbalance(int, int)} is in effect, {@code false} otherwise.
+     */
+    public boolean isAdaptiveImbalance() {
+        return adaptive != null;
+    }
 
+    // Called at the start of every search and write in adaptive mode; only writes change anything but the counts.
+    private void observe(boolean write) {
+        Adaptive a = adaptive;
+        if (write) {
+            a.writes++;
+        } else {
+            a.reads++;
+        }
+        long ops = a.reads + a.writes;
+        if (ops >= Math.max(ADAPTIVE_WINDOW, size)) {
+            a.target = a.min + (int) Math.round((double) a.writes / ops * (a.max - a.min));
+            a.reads = 0;
+            a.writes = 0;
+        }
+        if (!write) {
+            return;
+        }
+        if (a.target != 0) {
+            int target = a.target;
+            a.target = 0;
+            if (target < maxImbalance) {
+                maxImbalance = target;
+                queueOutOfBalance();
+            } else {
+                maxImbalance = target;
             }
-
-        }          
-        return rotateAfterDelete(current);
+        }
+        if (!deferred && dirty != null && rebalance(ADAPTIVE_REPAIRS) == 0) {
+            dirty = null;
+        }
     }
 
-    private Node rotateAfterDelete(Node current) {//the same stuff that was in my insert method
-        if (current == null) {
-            return null;
+    /* Queue the key of every node that is out of balance, children before their parents, so that repairs work
+     * from the bottom up and a parent is only repaired once its subtrees are balanced. A preorder walk that visits
+     * right subtrees before left ones is a postorder walk backwards.
+     */
+    private void queueOutOfBalance() {
+        List<T> keys = new ArrayList<>();
+        Deque<Node> stack = new ArrayDeque<>();
+        if (root != null) {
+            stack.push(root);
         }
-        updateHeights(current);
-        updateBalance(current);
-
-        if (Math.abs(current.balance) > maxImbalance) {
-
-            if (current.left != null  && current.balance > maxImbalance && current.left.balance > 0) {
-                    current = rotateR(current);
-                    
-                            
-                } else if (current.left != null  && current.balance > maxImbalance && current.left.balance < 0) {
-                   
-                    current = rotateLR(current);
-
-                } else if (current.left != null  && current.balance > maxImbalance && current.left.balance == 0) {
-                    current = rotateR(current);
-                //right subtree is heavier
-                } else if (current.right != null  && current.balance < maxImbalance && current.right.balance < 0) {
-                    
-                    current = rotateL(current);
-                    
-                    
-                } else if (current.right != null  && current.balance < maxImbalance && current.right.balance > 0) {
-                   
-                    current = rotateRL(current);
-                            
-                } else if ((current.right != null  && current.balance < maxImbalance && current.right.balance == 0)) {
-                    current = rotateL(current);
-                     
-                }
-           
+        while (!stack.isEmpty()) {
+            Node curr = stack.pop();
+            if (outOfBalance(curr)) {
+                keys.add(curr.key);
+            }
+            if (curr.left != null) {
+                stack.push(curr.left);
+            }
+            if (curr.right != null) {
+                stack.push(curr.right);
+            }
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        if (dirty == null) {
+            dirty = new ArrayDeque<>(keys.size());
+        }
+        for (int i = keys.size() - 1; i >= 0; i--) {
+            dirty.add(keys.get(i));
         }
-        return current;
     }
 
-    /**
-     * <p>Search for key in the tree. Return a reference to it if it's in there,
-     * or {@code null} otherwise.</p>
-     * @param key The key to search for.
-     * @return key if key is in the tree, or {@code null} otherwise.
-     * @throws EmptyTreeException if the tree is empty.
-     */
-    public T search(T key) throws EmptyTreeException {
-        if (size == 0) {
-            throw new EmptyTreeException("empty");
+    private void retune(int target) {
+        boolean tighter = target < maxImbalance;
+        maxImbalance = target;
+        if (tighter && !isAVLGBalanced()) {
+            root = rebuildBalanced(root);
+            modCount++;
+            dirty = null;
         }
-        return searchHelp(key, root);
     }
 
-    private T searchHelp(T key, Node curr) {
-        if (curr != null) {
-            if (curr.key == key) {
-                T temp = curr.key;
-                return temp;
-            }
-            T left = searchHelp(key, curr.left);
-            if (left != null) {
-                return left;
+    // Rebuild a subtree perfectly balanced out of copies of its own nodes, so that multisets keep their counts.
+    @SuppressWarnings("unchecked")
+    private Node rebuildBalanced(Node top) {
+        int n = size(top);
+        Node[] nodes = (Node[]) new AVLGTree.Node[n];
+        Deque<Node> stack = new ArrayDeque<>();
+        int i = 0;
+        Node curr = top;
+        while (curr != null || !stack.isEmpty()) {
+            while (curr != null) {
+                stack.push(curr);
+                curr = curr.left;
             }
-            return searchHelp(key, curr.right);
+            curr = stack.pop();
+            nodes[i++] = curr;
+            curr = curr.right;
         }
-        return null;
+        return build(nodes, 0, n);
     }
 
-    /**
-     * Retrieves the maximum imbalance parameter.
-     * @return The maximum imbalance parameter provided as a constructor parameter.
-     */
-    public int getMaxImbalance(){
-        return maxImbalance;     
+    // Same shape as build(Iterator, int): the left half gets the smaller share of nodes[from..to).
+    private Node build(Node[] nodes, int from, int to) {
+        if (from == to) {
+            return null;
+        }
+        int mid = from + (to - from - 1) / 2;
+        Node curr = nodes[mid].copy();
+        curr.left = build(nodes, from, mid);
+        curr.right = build(nodes, mid + 1, to);
+        update(curr);
+        return curr;
     }
 
 
@@ -448,68 +2508,245 @@ public class AVLGTree<T extends Comparable<T>> {
      * {@code false} otherwise.
      */
     public boolean isBST() {
-        Node temp = root;
-        boolean b = bstAux(temp, true);
-        return b;
-    }
-
-    private boolean bstAux(Node curr, boolean b) {
-        if (curr != null) {
-            T left = (curr.left != null) ? curr.left.key : null;
-            T right = (curr.right != null) ? curr.right.key: null;
-               
-            if (left != null && right != null && (left.compareTo(curr.key) > 0 || right.compareTo(curr.key) < 0)) {      
-                b = false;
-                return b;
-            } else {
-                b = bstAux(curr.left, b);
-                if (b != false) {
-                    b = bstAux(curr.right, b);
-                }
-            }
-        }
-
-        return b;
+        return verify(CHECK_ORDER) == null;
     }
 
 
     /**
      * <p>Establishes whether the AVL-G tree <em>globally</em> satisfies the AVL-G condition. This method is
-     * <b>terrifically useful for testing!</b></p>
+     * <b>terrifically useful for testing!</b> The heights are recomputed from scratch, in parallel as by
+     * {@link #verify()}, instead of trusting the ones cached in the nodes.</p>
      * @return {@code true} if the tree satisfies the balance requirements of an AVLG tree, {@code false}
      * otherwise.
      */
     public boolean isAVLGBalanced() {
-        Node temp = root;
-        boolean b = balancedAux(temp, true);
-        return b;
+        return verify(CHECK_BALANCE) == null;
     }
 
-    private boolean balancedAux(Node curr, boolean b) {
-        if (curr != null) {
-            if (Math.abs(curr.balance) > maxImbalance) {
-                b = false;
-                return b;
-            } else {
-                b = balancedAux(curr.left, b);
-                b = balancedAux(curr.right, b);
+    /**
+     * <p>Check every invariant of the tree in a single pass: every key lies strictly between the bounds set by all
+     * of its ancestors, not just its parent; the height of every subtree, recomputed from its leaves, differs by at
+     * most {@link #getMaxImbalance()} between its two sides; the height, balance, size and total count cached in every
+     * node match the recomputed ones; and the size of the whole tree matches {@link #getCount()}. The top levels of the
+     * tree are split into subtrees that are checked in parallel on the common {@link ForkJoinPool}, and every subtree
+     * is walked with an explicit stack, so the check costs O(n) work, O(n / p + log n) time on p threads and never
+     * recurses deeper than a few levels.</p>
+     * @return {@code null} if the tree is sound, or a description of the first violation in postorder, along with the
+     * path from the root to the node where it was found.
+     */
+    public String verify() {
+        String violation = verify(CHECK_ORDER | CHECK_BALANCE | CHECK_FIELDS);
+        if (violation == null && size(root) != size) {
+            return "The tree holds " + size(root) + " nodes, but counts " + size + ".";
+        }
+        return violation;
+    }
+
+    private String verify(int checks) {
+        if (size <= SEQUENTIAL_CUTOFF) {
+            return new Verify(checks, root, null, null, null, 0, 0).compute();
+        }
+        return ForkJoinPool.commonPool().invoke(new Verify(checks, root, null, null, null, 0, VERIFY_FORK_DEPTH));
+    }
+
+    /* Checks the subtree of top, whose keys must lie strictly between the keys of the nodes lower and upper (a null
+     * bound is open), and leaves its recomputed height, size and total count behind for the task above. Above
+     * forkDepth it forks a task per child; below, it walks its whole subtree in postorder with an explicit stack.
+     * Either way it reports the first violation in postorder, however the work was split.
+     */
+    private class Verify extends RecursiveTask<String> {
+        private final int checks;
+        private final Node top, lower, upper;
+        private final Verify parent;
+        private final int depth, forkDepth;
+        private int height = -1, size;
+        private long total;
+
+        private Verify(int checks, Node top, Node lower, Node upper, Verify parent, int depth, int forkDepth) {
+            this.checks = checks;
+            this.top = top;
+            this.lower = lower;
+            this.upper = upper;
+            this.parent = parent;
+            this.depth = depth;
+            this.forkDepth = forkDepth;
+        }
+
+        @Override
+        protected String compute() {
+            if (top == null) {
+                return null;
+            }
+            if (depth >= forkDepth) {
+                return walk();
+            }
+            Verify left = new Verify(checks, top.left, lower, top, this, depth + 1, forkDepth);
+            Verify right = new Verify(checks, top.right, top, upper, this, depth + 1, forkDepth);
+            left.fork();
+            String r = right.compute();
+            String l = left.join();
+            if (l != null || r != null) {
+                return (l != null) ? l : r;
+            }
+            String violation = check(top, lower, upper, left.height, right.height, left.size, right.size,
+                    left.total, right.total);
+            if (violation != null) {
+                return violation + " " + path(null, 0);
+            }
+            height = Math.max(left.height, right.height) + 1;
+            size = left.size + right.size + 1;
+            total = left.total + right.total + top.count;
+            return null;
+        }
+
+        // The frames of the walk live in parallel arrays, which only grow when the subtree is taller than expected.
+        @SuppressWarnings("unchecked")
+        private String walk() {
+            int capacity = INITIAL_PATH;
+            Node[] nodes = (Node[]) new AVLGTree.Node[capacity];
+            Node[] lowers = (Node[]) new AVLGTree.Node[capacity];
+            Node[] uppers = (Node[]) new AVLGTree.Node[capacity];
+            byte[] phases = new byte[capacity];
+            int[] leftHeights = new int[capacity], leftSizes = new int[capacity];
+            long[] leftTotals = new long[capacity];
+
+            nodes[0] = top;
+            lowers[0] = lower;
+            uppers[0] = upper;
+            phases[0] = 0;
+            int sp = 1;
+            int h = -1, s = 0; // The height and size of the subtree finished last.
+            long t = 0;
+            while (sp > 0) {
+                int i = sp - 1;
+                Node curr = nodes[i];
+                Node child = null;
+                if (phases[i] == 0) {
+                    phases[i] = 1;
+                    child = curr.left;
+                    h = -1;
+                    s = 0;
+                    t = 0;
+                } else if (phases[i] == 1) {
+                    leftHeights[i] = h;
+                    leftSizes[i] = s;
+                    leftTotals[i] = t;
+                    phases[i] = 2;
+                    child = curr.right;
+                    h = -1;
+                    s = 0;
+                    t = 0;
+                } else {
+                    String violation = check(curr, lowers[i], uppers[i], leftHeights[i], h, leftSizes[i], s,
+                            leftTotals[i], t);
+                    if (violation != null) {
+                        return violation + " " + path(nodes, i);
+                    }
+                    h = Math.max(leftHeights[i], h) + 1;
+                    s = leftSizes[i] + s + 1;
+                    t = leftTotals[i] + t + curr.count;
+                    nodes[i] = null;
+                    sp--;
+                    continue;
+                }
+                if (child == null) {
+                    continue; // An empty side: h, s and t already describe it.
+                }
+                if (sp == capacity) {
+                    capacity *= 2;
+                    nodes = Arrays.copyOf(nodes, capacity);
+                    lowers = Arrays.copyOf(lowers, capacity);
+                    uppers = Arrays.copyOf(uppers, capacity);
+                    phases = Arrays.copyOf(phases, capacity);
+                    leftHeights = Arrays.copyOf(leftHeights, capacity);
+                    leftSizes = Arrays.copyOf(leftSizes, capacity);
+                    leftTotals = Arrays.copyOf(leftTotals, capacity);
+                }
+                boolean isLeft = phases[i] == 1;
+                nodes[sp] = child;
+                lowers[sp] = isLeft ? lowers[i] : curr;
+                uppers[sp] = isLeft ? curr : uppers[i];
+                phases[sp] = 0;
+                sp++;
+            }
+            height = h;
+            size = s;
+            total = t;
+            return null;
+        }
+
+        private String check(Node curr, Node lower, Node upper, int hl, int hr, int sl, int sr, long tl, long tr) {
+            if ((checks & CHECK_ORDER) != 0) {
+                if (lower != null && curr.key.compareTo(lower.key) <= 0) {
+                    return "Key " + curr.key + " is not larger than its ancestor " + lower.key + ".";
+                }
+                if (upper != null && curr.key.compareTo(upper.key) >= 0) {
+                    return "Key " + curr.key + " is not smaller than its ancestor " + upper.key + ".";
+                }
+            }
+            if ((checks & CHECK_BALANCE) != 0 && Math.abs(hl - hr) > maxImbalance) {
+                return "Key " + curr.key + " has subtrees of heights " + hl + " and " + hr + ", more than " +
+                        maxImbalance + " apart.";
+            }
+            if ((checks & CHECK_FIELDS) != 0) {
+                if (curr.height != Math.max(hl, hr) + 1 || curr.balance != hl - hr) {
+                    return "Key " + curr.key + " caches height " + curr.height + " and balance " + curr.balance +
+                            " instead of " + (Math.max(hl, hr) + 1) + " and " + (hl - hr) + ".";
+                }
+                if (curr.size != sl + sr + 1) {
+                    return "Key " + curr.key + " caches size " + curr.size + " instead of " + (sl + sr + 1) + ".";
+                }
+                if (curr.count < 1 || (!multiset && curr.count != 1) || curr.total != tl + tr + curr.count) {
+                    return "Key " + curr.key + " caches count " + curr.count + " and total " + curr.total +
+                            " for a subtree of " + (tl + tr) + " occurrences below it.";
+                }
+            }
+            return null;
+        }
+
+        // The path from the root to nodes[i] of the walk of this task, or to top if nodes is null.
+        private String path(Node[] nodes, int i) {
+            Deque<Node> chain = new ArrayDeque<>();
+            if (nodes != null) {
+                for (int j = i; j > 0; j--) {
+                    chain.push(nodes[j]);
+                }
+            }
+            for (Verify task = this; task != null; task = task.parent) {
+                chain.push(task.top);
             }
+            StringBuilder path = new StringBuilder("Path:");
+            Node prev = null;
+            for (Node curr : chain) {
+                path.append(prev == null ? " root " : (prev.left == curr) ? " left " : " right ").append(curr.key);
+                prev = curr;
+            }
+            return path.toString();
         }
-        return b;
     }
 
+
     /**
      * <p>Empties the AVL-G Tree of all its elements. After a call to this method, the
      * tree should have <b>0</b> elements.</p>
      */
     public void clear(){
+        checkWritable();
+        if (log != null) {
+            log.logClear();
+        }
         root = null;
-        size = 0;      
+        size = 0;
+        modCount++;
+        dirty = null;
+        version = new Object(); // Whatever we built so far may now belong to someone else (see adopt).
+        adopted = null;      
     }
 
 
     /**
-     * <p>Return the number of elements in the tree.</p>
+     * <p>Return the number of elements in the tree. In a {@link #multiset(int)} this is the number of distinct
+     * keys; see {@link #getTotalCount()} for the number of occurrences.</p>
      * @return  The number of elements in the tree.
      */
     public int getCount(){
@@ -518,25 +2755,166 @@ public class AVLGTree<T extends Comparable<T>> {
 
 
 
+    /**
+     * <p>Turn the counters behind {@link #getMetrics()} on or off. They are off by default, and a tree that does not
+     * count pays next to nothing for them. Turning them on starts every counter from 0; turning them off drops
+     * them.</p>
+     * @param enabled {@code true} to start counting, {@code false} to stop.
+     */
+    public void setMetricsEnabled(boolean enabled) {
+        if (!enabled) {
+            counters = null;
+        } else if (counters == null) {
+            counters = new Counters();
+        }
+    }
+
+    /**
+     * Query the tree for whether it is counting rotations and searches.
+     * @return {@code true} if the tree's metrics are on, {@code false} otherwise.
+     */
+    public boolean isMetricsEnabled() {
+        return counters != null;
+    }
+
+    /**
+     * Set every counter back to 0, if the tree is counting.
+     */
+    public void resetMetrics() {
+        if (counters != null) {
+            counters = new Counters();
+        }
+    }
+
+    /**
+     * <p>Return an immutable snapshot of the tree's counters, along with its current size and height. If the tree is
+     * not counting (see {@link #setMetricsEnabled(boolean)}), the counters of the snapshot are all 0.</p>
+     *
+     * <p>It may be called from any thread, such as the one serving JMX, while the tree is in use: the counters are
+     * safe to read concurrently, and reflect every search and rotation that completed before the call. The size and
+     * height are read without synchronization, so they may lag behind a write still running on another thread.</p>
+     * @return The current {@link AVLGTreeMetrics} of the tree.
+     */
+    public AVLGTreeMetrics getMetrics() {
+        Counters c = counters;
+        boolean enabled = c != null;
+        if (!enabled) {
+            c = new Counters();
+        }
+        long[] pathLengths = new long[c.pathLengths.length];
+        for (int i = 0; i < pathLengths.length; i++) {
+            pathLengths[i] = c.pathLengths[i].sum();
+        }
+        return new AVLGTreeMetrics(enabled, maxImbalance, getHeight(), size, c.rotationsL.sum(), c.rotationsR.sum(),
+                c.rotationsLR.sum(), c.rotationsRL.sum(), c.searches.sum(), c.comparisons.sum(), pathLengths);
+    }
+
+    /**
+     * <p>Register an {@link AVLGTreeMXBean} for this tree with the platform MBean server, under the name
+     * {@code avlg:type=AVLGTree,name=<name>}. The bean reads the tree's metrics every time it is asked for an
+     * attribute, and can turn them on and off. Registering does not turn them on.</p>
+     * @param name The name that tells this tree apart from the other registered ones.
+     * @return The {@link ObjectName} the bean was registered under, to unregister it with.
+     * @throws JMException if name is not a valid key property or a bean is already registered under it.
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName("avlg:type=AVLGTree,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MXBean(), objectName);
+        return objectName;
+    }
+
+    private class MXBean implements AVLGTreeMXBean {
+        @Override
+        public boolean isMetricsEnabled() {
+            return AVLGTree.this.isMetricsEnabled();
+        }
+
+        @Override
+        public void setMetricsEnabled(boolean enabled) {
+            AVLGTree.this.setMetricsEnabled(enabled);
+        }
+
+        @Override
+        public void resetMetrics() {
+            AVLGTree.this.resetMetrics();
+        }
+
+        @Override
+        public int getMaxImbalance() {
+            return getMetrics().getMaxImbalance();
+        }
+
+        @Override
+        public int getHeight() {
+            return getMetrics().getHeight();
+        }
+
+        @Override
+        public int getIdealHeight() {
+            return getMetrics().getIdealHeight();
+        }
+
+        @Override
+        public int getCount() {
+            return getMetrics().getCount();
+        }
+
+        @Override
+        public long getRotationsL() {
+            return getMetrics().getRotationsL();
+        }
+
+        @Override
+        public long getRotationsR() {
+            return getMetrics().getRotationsR();
+        }
+
+        @Override
+        public long getRotationsLR() {
+            return getMetrics().getRotationsLR();
+        }
+
+        @Override
+        public long getRotationsRL() {
+            return getMetrics().getRotationsRL();
+        }
+
+        @Override
+        public long getSearches() {
+            return getMetrics().getSearches();
+        }
+
+        @Override
+        public long getComparisons() {
+            return getMetrics().getComparisons();
+        }
+
+        @Override
+        public double getComparisonsPerSearch() {
+            return getMetrics().getComparisonsPerSearch();
+        }
+
+        @Override
+        public long[] getPathLengthHistogram() {
+            return getMetrics().getPathLengthHistogram();
+        }
+    }
+
+
     //helps me visualize tree in my tests
     public void printList(){
-		aux(0);
+		aux(root, null);
 	}
 
 
-	private void aux(int i){
-		if (i < size) {
-			Node curr = parent(root, i, null);
-            if (curr != null) {
-			System.out.println("Current Node: " + curr.key + " Parent: " + ((parent(root, -5, curr.key) != null ? parent(root, -5, curr.key).key : "None")) +
+	private void aux(Node curr, Node parent){
+		if (curr != null) {
+			System.out.println("Current Node: " + curr.key + " Parent: " + (parent != null ? parent.key : "None") +
 			" Left Child: " +(curr.left != null ? curr.left.key : "None") +
-			" Right Child: " + (curr.right != null ? curr.right.key : "None")  + " Index: " + curr.index + " Height: " + curr.height +
+			" Right Child: " + (curr.right != null ? curr.right.key : "None") + " Height: " + curr.height +
             " Balance: " + curr.balance);
-            }
-			aux(i + 1);
-
-		} else {
-			return;
+			aux(curr.left, curr);
+			aux(curr.right, curr);
 		}
 	}
 }
@@ -0,0 +1,70 @@
+package avlg;
+
+/**
+ * <p>The JMX view of an {@link AVLGTree}, registered by {@link AVLGTree#registerMBean(String)}. Its attributes are
+ * those of the tree's current {@link AVLGTreeMetrics}, so that they can be watched from JConsole or any other JMX
+ * client while the application runs.</p>
+ *
+ * <p>An {@link AVLGTree} is not thread-safe, and JMX reads its counters from another thread without any locking.
+ * The values it reports may therefore be slightly stale, but they are never reset or corrupted by being read.</p>
+ *
+ * @author Obinna Anadu
+ *
+ * @see AVLGTreeMetrics
+ */
+public interface AVLGTreeMXBean {
+
+    /**
+     * @return {@code true} if the tree is counting, {@code false} otherwise.
+     * @see AVLGTree#isMetricsEnabled()
+     */
+    boolean isMetricsEnabled();
+
+    /**
+     * @param enabled Whether the tree should count.
+     * @see AVLGTree#setMetricsEnabled(boolean)
+     */
+    void setMetricsEnabled(boolean enabled);
+
+    /**
+     * Set every counter back to 0.
+     * @see AVLGTree#resetMetrics()
+     */
+    void resetMetrics();
+
+    /** @return See {@link AVLGTreeMetrics#getMaxImbalance()}. */
+    int getMaxImbalance();
+
+    /** @return See {@link AVLGTreeMetrics#getHeight()}. */
+    int getHeight();
+
+    /** @return See {@link AVLGTreeMetrics#getIdealHeight()}. */
+    int getIdealHeight();
+
+    /** @return See {@link AVLGTreeMetrics#getCount()}. */
+    int getCount();
+
+    /** @return See {@link AVLGTreeMetrics#getRotationsL()}. */
+    long getRotationsL();
+
+    /** @return See {@link AVLGTreeMetrics#getRotationsR()}. */
+    long getRotationsR();
+
+    /** @return See {@link AVLGTreeMetrics#getRotationsLR()}. */
+    long getRotationsLR();
+
+    /** @return See {@link AVLGTreeMetrics#getRotationsRL()}. */
+    long getRotationsRL();
+
+    /** @return See {@link AVLGTreeMetrics#getSearches()}. */
+    long getSearches();
+
+    /** @return See {@link AVLGTreeMetrics#getComparisons()}. */
+    long getComparisons();
+
+    /** @return See {@link AVLGTreeMetrics#getComparisonsPerSearch()}. */
+    double getComparisonsPerSearch();
+
+    /** @return See {@link AVLGTreeMetrics#getPathLengthHistogram()}. */
+    long[] getPathLengthHistogram();
+}
@@ -0,0 +1,174 @@
+package avlg;
+
+import java.util.Arrays;
+
+/**
+ * <p>{@link AVLGTreeMetrics} is an immutable snapshot of the counters kept by an {@link AVLGTree} whose metrics
+ * have been turned on with {@link AVLGTree#setMetricsEnabled(boolean)}. It is what lets us see, on real traffic,
+ * the trade-off that maxImbalance controls: a larger maxImbalance means fewer rotations on every insertion and
+ * deletion, but taller trees and therefore longer searches.</p>
+ *
+ * <p>Rotations are counted by kind, exactly as the tree rebalances: a single left or right rotation, or a double
+ * LR or RL rotation (which counts once, as a double rotation, and not as two single ones). Searches are the
+ * lookups by key ({@link AVLGTree#search(Comparable)}, {@link AVLGTree#get(Comparable)} and
+ * {@link AVLGTree#contains(Comparable)}); for each of them we record the number of key comparisons it made,
+ * which is also the length of the path it walked, in a histogram.</p>
+ *
+ * @author Obinna Anadu
+ *
+ * @see AVLGTree#getMetrics()
+ * @see AVLGTreeMXBean
+ */
+public final class AVLGTreeMetrics {
+
+    /**
+     * The number of buckets of {@link #getPathLengthHistogram()}. The last bucket counts every search whose path
+     * was at least this long, minus one.
+     */
+    public static final int HISTOGRAM_BUCKETS = 64;
+
+    private final boolean enabled;
+    private final int maxImbalance, height, count;
+    private final long rotationsL, rotationsR, rotationsLR, rotationsRL;
+    private final long searches, comparisons;
+    private final long[] pathLengths;
+
+    AVLGTreeMetrics(boolean enabled, int maxImbalance, int height, int count, long rotationsL, long rotationsR,
+                    long rotationsLR, long rotationsRL, long searches, long comparisons, long[] pathLengths) {
+        this.enabled = enabled;
+        this.maxImbalance = maxImbalance;
+        this.height = height;
+        this.count = count;
+        this.rotationsL = rotationsL;
+        this.rotationsR = rotationsR;
+        this.rotationsLR = rotationsLR;
+        this.rotationsRL = rotationsRL;
+        this.searches = searches;
+        this.comparisons = comparisons;
+        this.pathLengths = pathLengths.clone();
+    }
+
+    /**
+     * Query whether the tree was counting when this snapshot was taken. If it was not, every counter is 0.
+     * @return {@code true} if the tree's metrics were turned on, {@code false} otherwise.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Return the maximum imbalance of the tree.
+     * @return The maxImbalance of the tree when this snapshot was taken.
+     */
+    public int getMaxImbalance() {
+        return maxImbalance;
+    }
+
+    /**
+     * Return the height of the tree, or -1 if it was empty.
+     * @return The height of the tree when this snapshot was taken.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Return the height of the shortest binary tree with as many keys as the tree, that is, the floor of
+     * log<sub>2</sub>(n), or -1 if the tree was empty. Comparing it with {@link #getHeight()} shows how much search
+     * cost the relaxed balance condition is costing us.
+     * @return The smallest height possible for the number of keys in the tree.
+     */
+    public int getIdealHeight() {
+        return (count == 0) ? -1 : 31 - Integer.numberOfLeadingZeros(count);
+    }
+
+    /**
+     * Return the number of keys in the tree.
+     * @return The number of keys in the tree when this snapshot was taken.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Return the number of single left rotations.
+     * @return The number of single left rotations made by the tree.
+     */
+    public long getRotationsL() {
+        return rotationsL;
+    }
+
+    /**
+     * Return the number of single right rotations.
+     * @return The number of single right rotations made by the tree.
+     */
+    public long getRotationsR() {
+        return rotationsR;
+    }
+
+    /**
+     * Return the number of LR (left-right) double rotations.
+     * @return The number of LR rotations made by the tree.
+     */
+    public long getRotationsLR() {
+        return rotationsLR;
+    }
+
+    /**
+     * Return the number of RL (right-left) double rotations.
+     * @return The number of RL rotations made by the tree.
+     */
+    public long getRotationsRL() {
+        return rotationsRL;
+    }
+
+    /**
+     * Return the number of rotations of every kind.
+     * @return The total number of single and double rotations made by the tree.
+     */
+    public long getRotations() {
+        return rotationsL + rotationsR + rotationsLR + rotationsRL;
+    }
+
+    /**
+     * Return the number of searches by key.
+     * @return The number of searches made on the tree.
+     */
+    public long getSearches() {
+        return searches;
+    }
+
+    /**
+     * Return the number of key comparisons made by all searches.
+     * @return The total number of key comparisons made by searches.
+     */
+    public long getComparisons() {
+        return comparisons;
+    }
+
+    /**
+     * Return the average number of key comparisons per search.
+     * @return The number of key comparisons per search, or 0 if there were no searches.
+     */
+    public double getComparisonsPerSearch() {
+        return (searches == 0) ? 0 : (double) comparisons / searches;
+    }
+
+    /**
+     * Return the histogram of search path lengths: element i is the number of searches that compared key with
+     * exactly i keys of the tree, except for the last element, which also counts all the longer searches.
+     * @return A new array of {@link #HISTOGRAM_BUCKETS} counters.
+     */
+    public long[] getPathLengthHistogram() {
+        return pathLengths.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "AVLGTreeMetrics{maxImbalance=" + maxImbalance + ", count=" + count + ", height=" + height +
+                ", idealHeight=" + getIdealHeight() + ", rotations=[L=" + rotationsL + ", R=" + rotationsR +
+                ", LR=" + rotationsLR + ", RL=" + rotationsRL + "], searches=" + searches +
+                ", comparisonsPerSearch=" + getComparisonsPerSearch() + ", pathLengths=" +
+                Arrays.toString(pathLengths) + "}";
+    }
+}
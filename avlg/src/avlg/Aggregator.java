@@ -0,0 +1,136 @@
+package avlg;
+
+import java.util.function.ToLongFunction;
+
+/**
+ * <p>{@link Aggregator} describes a <a href="https://en.wikipedia.org/wiki/Monoid">monoid</a> over the keys of an
+ * {@link AVLGTree}: a way of summarizing a run of consecutive keys into a single value, such as their number, the
+ * sum of some field of theirs, or their minimum. Once it is given one with
+ * {@link AVLGTree#setAggregator(Aggregator)}, the tree keeps the summary of every one of its subtrees in the root
+ * of that subtree, and can then summarize any range of keys in O(log n) with
+ * {@link AVLGTree#aggregate(Aggregator, Comparable, Comparable)}.</p>
+ *
+ * <p>{@link #combine(Object, Object)} has to be associative, and {@link #identity()} has to be neutral for it, but
+ * it does not have to be commutative: the tree always combines summaries in ascending order of their keys.
+ * Set operations on the tree compute summaries on several threads at once, so implementations must not keep any
+ * mutable state.</p>
+ *
+ * @param <T> The type of the keys.
+ * @param <A> The type of the summaries.
+ *
+ * @author Obinna Anadu
+ *
+ * @see AVLGTree#setAggregator(Aggregator)
+ */
+public interface Aggregator<T, A> {
+
+    /**
+     * Return the summary of no keys at all.
+     * @return The identity element of {@link #combine(Object, Object)}.
+     */
+    A identity();
+
+    /**
+     * Summarize a single key.
+     * @param key The key to summarize.
+     * @param count The number of times key is stored in the tree: always 1, unless the tree is a
+     * {@link AVLGTree#multiset(int) multiset}.
+     * @return The summary of count occurrences of key.
+     */
+    A lift(T key, int count);
+
+    /**
+     * Summarize two runs of keys, where every key of the first run is smaller than every key of the second.
+     * @param left The summary of the smaller keys.
+     * @param right The summary of the larger keys.
+     * @return The summary of both runs together.
+     */
+    A combine(A left, A right);
+
+    /**
+     * An {@link Aggregator} that counts keys, occurrences included.
+     * @param <T> The type of the keys.
+     * @return An aggregator whose summaries are the number of keys summarized.
+     */
+    static <T> Aggregator<T, Long> count() {
+        return sum(key -> 1);
+    }
+
+    /**
+     * An {@link Aggregator} that adds up a value of every key, once per occurrence.
+     * @param value The value of a key, such as a field of a record.
+     * @param <T> The type of the keys.
+     * @return An aggregator whose summaries are the sum of the values of the keys summarized.
+     */
+    static <T> Aggregator<T, Long> sum(ToLongFunction<? super T> value) {
+        return new Aggregator<T, Long>() {
+            @Override
+            public Long identity() {
+                return 0L;
+            }
+
+            @Override
+            public Long lift(T key, int count) {
+                return value.applyAsLong(key) * count;
+            }
+
+            @Override
+            public Long combine(Long left, Long right) {
+                return left + right;
+            }
+        };
+    }
+
+    /**
+     * An {@link Aggregator} that finds the smallest value of the keys, such as the lowest reading among a window of
+     * timestamped samples.
+     * @param value The value of a key, such as a field of a record.
+     * @param <T> The type of the keys.
+     * @return An aggregator whose summaries are the smallest value of the keys summarized, or
+     * {@link Long#MAX_VALUE} if there are none.
+     */
+    static <T> Aggregator<T, Long> min(ToLongFunction<? super T> value) {
+        return new Aggregator<T, Long>() {
+            @Override
+            public Long identity() {
+                return Long.MAX_VALUE;
+            }
+
+            @Override
+            public Long lift(T key, int count) {
+                return value.applyAsLong(key);
+            }
+
+            @Override
+            public Long combine(Long left, Long right) {
+                return Math.min(left, right);
+            }
+        };
+    }
+
+    /**
+     * An {@link Aggregator} that finds the largest value of the keys.
+     * @param value The value of a key, such as a field of a record.
+     * @param <T> The type of the keys.
+     * @return An aggregator whose summaries are the largest value of the keys summarized, or
+     * {@link Long#MIN_VALUE} if there are none.
+     */
+    static <T> Aggregator<T, Long> max(ToLongFunction<? super T> value) {
+        return new Aggregator<T, Long>() {
+            @Override
+            public Long identity() {
+                return Long.MIN_VALUE;
+            }
+
+            @Override
+            public Long lift(T key, int count) {
+                return value.applyAsLong(key);
+            }
+
+            @Override
+            public Long combine(Long left, Long right) {
+                return Math.max(left, right);
+            }
+        };
+    }
+}
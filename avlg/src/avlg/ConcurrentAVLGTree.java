@@ -0,0 +1,535 @@
+package avlg;
+
+import avlg.exceptions.EmptyTreeException;
+import avlg.exceptions.InvalidBalanceException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>{@link ConcurrentAVLGTree} is a thread-safe sorted set that any number of threads can read and write at once.
+ * It splits its key space into ranges, or <em>shards</em>, like a {@link ShardedAVLGTree}, and publishes every shard
+ * as an immutable {@link AVLGTree#snapshot()} after each write to it, like a {@link CopyOnWriteAVLGTree}.</p>
+ *
+ * <p>Reads never lock. A lookup of a single key reads the {@code volatile} reference to the latest version of its
+ * shard and searches it, so lookups scale with the number of cores and never wait for a writer. Queries that span
+ * shards, such as {@link #rank(Comparable)}, {@link #select(int)} and {@link #getCount()}, are optimistic: they read
+ * the versions of the shards they need, read them again, and use them only if none changed in between, in which case
+ * all of them were current at the same moment. Only after a few failed attempts do they lock those shards.</p>
+ *
+ * <p>Writes lock only the shard their key falls in, so writers working on different parts of the key space run
+ * alongside each other, and each of them holds its lock for one search path of copies plus the nodes its rotations
+ * move. A larger maxImbalance means fewer rotations, so shorter critical sections and less contention. Shard
+ * boundaries move by themselves as in a {@link ShardedAVLGTree}: a shard that grows past twice the average size is
+ * split around its median, and the smallest adjacent pair is merged back, in O(log n).</p>
+ *
+ * <p>Iterators walk the latest version of one shard at a time. They are therefore weakly consistent: they never
+ * throw a {@link java.util.ConcurrentModificationException}, and may or may not see writes made after they were
+ * created.</p>
+ *
+ * @param <T> The type of the keys.
+ *
+ * @author Obinna Anadu
+ *
+ * @see AVLGTree
+ * @see CopyOnWriteAVLGTree
+ * @see ShardedAVLGTree
+ */
+public class ConcurrentAVLGTree<T extends Comparable<T>> implements Iterable<T> {
+
+    // Shards smaller than this are never split: a split would cost more than the contention it saves.
+    private static final int MIN_SHARD_SIZE = 1 << 10;
+
+    // How many times a query that spans shards reads their versions optimistically before it locks them.
+    private static final int OPTIMISTIC_ATTEMPTS = 4;
+
+    /* shards is never changed in place: resharding builds a new array and publishes it. Writers read it without any
+     * lock, lock the shard their key falls in and check that it was not retired meanwhile; if it was, they unlock and
+     * start over with the new array. Resharding locks every shard of the array it replaces, and retires the shards it
+     * drops before publishing the new array, so the published versions of a retired shard never change again.
+     * Everything that locks several shards locks them in ascending order, and writers lock only one, so none of
+     * them deadlock.
+     */
+    private volatile Shard<T>[] shards;
+    private final AtomicBoolean resharding = new AtomicBoolean();
+    private final int maxImbalance;
+    private final int target;
+
+    private static final class Shard<T extends Comparable<T>> {
+        private final AVLGTree<T> tree; // Only ever touched while holding lock.
+        private final T lower; // The smallest key the shard may hold, or null for the first shard.
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile AVLGTree<T> published;
+        private boolean retired; // Set by resharding once the shard is no longer in use; guarded by lock.
+
+        private Shard(AVLGTree<T> tree, T lower) {
+            this.tree = tree;
+            this.lower = lower;
+            this.published = tree.snapshot();
+        }
+    }
+
+    /**
+     * Create an empty tree that will spread its keys over the given number of shards as it grows.
+     * @param maxImbalance The maximum imbalance allowed by the AVL-G tree of every shard.
+     * @param shards The number of shards to aim for; the number of cores that write is a good choice.
+     * @throws InvalidBalanceException if maxImbalance is a value smaller than 1.
+     * @throws IllegalArgumentException if shards is smaller than 1.
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentAVLGTree(int maxImbalance, int shards) throws InvalidBalanceException {
+        if (shards < 1) {
+            throw new IllegalArgumentException("A tree needs at least one shard, not " + shards + ".");
+        }
+        this.maxImbalance = maxImbalance;
+        this.target = shards;
+        this.shards = new Shard[] { new Shard<>(new AVLGTree<T>(maxImbalance), null) };
+    }
+
+    // The index of the shard of current whose range holds key: the last one whose lower bound is not larger than key.
+    private static <T extends Comparable<T>> int route(Shard<T>[] current, T key) {
+        int lo = 1, hi = current.length - 1, found = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (current[mid].lower.compareTo(key) <= 0) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    // Lock and return the live shard whose range holds key.
+    private Shard<T> lockShard(T key) {
+        while (true) {
+            Shard<T>[] current = shards;
+            Shard<T> shard = current[route(current, key)];
+            shard.lock.lock();
+            if (!shard.retired) {
+                return shard;
+            }
+            shard.lock.unlock();
+        }
+    }
+
+    /* Return versions of the shards from the first one up to the one whose range holds key, or of all of them if
+     * key is null, that were all current at the same moment. The versions are read twice, with the shards array in
+     * between: if neither the array nor any version changed, they were all current when the array was read.
+     */
+    @SuppressWarnings("unchecked")
+    private AVLGTree<T>[] versions(T key) {
+        for (int attempt = 0; ; attempt++) {
+            Shard<T>[] current = shards;
+            int last = (key == null) ? current.length - 1 : route(current, key);
+            AVLGTree<T>[] seen = new AVLGTree[last + 1];
+            if (attempt < OPTIMISTIC_ATTEMPTS) {
+                for (int i = 0; i <= last; i++) {
+                    seen[i] = current[i].published;
+                }
+                boolean valid = shards == current;
+                for (int i = 0; i <= last && valid; i++) {
+                    valid = current[i].published == seen[i];
+                }
+                if (valid) {
+                    return seen;
+                }
+                continue;
+            }
+            int locked = 0;
+            while (locked <= last) {
+                current[locked].lock.lock();
+                if (current[locked].retired) {
+                    current[locked].lock.unlock();
+                    break;
+                }
+                locked++;
+            }
+            if (locked > last) {
+                for (int i = 0; i <= last; i++) {
+                    seen[i] = current[i].published;
+                }
+            }
+            for (int i = locked - 1; i >= 0; i--) {
+                current[i].lock.unlock();
+            }
+            if (locked > last) {
+                return seen;
+            }
+        }
+    }
+
+    /**
+     * Insert key in the tree. Only the shard that key falls in is locked, and the new key is visible to every read
+     * that starts after this method returns.
+     * @param key The key to insert in the tree.
+     */
+    public void insert(T key) {
+        boolean split = false;
+        Shard<T> shard = lockShard(key);
+        try {
+            int before = shard.tree.getCount();
+            shard.tree.insert(key);
+            if (shard.tree.getCount() != before) {
+                shard.published = shard.tree.snapshot();
+                split = isSkewed(shard.tree.getCount());
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        if (split) {
+            reshard();
+        }
+    }
+
+    /**
+     * Delete the key from the tree and return it to the caller. Only the shard that key falls in is locked.
+     * @param key The key to delete from the structure.
+     * @return The key that was removed, or {@code null} if the key was not found.
+     * @throws EmptyTreeException if the tree is empty.
+     */
+    public T delete(T key) throws EmptyTreeException {
+        Shard<T> shard = lockShard(key);
+        try {
+            if (shard.tree.isEmpty()) {
+                if (approximateCount() == 0) {
+                    throw new EmptyTreeException("empty");
+                }
+                return null;
+            }
+            T removed = shard.tree.delete(key);
+            if (removed != null) {
+                shard.published = shard.tree.snapshot();
+            }
+            return removed;
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Empties the tree of all its elements. The shards keep their boundaries.</p>
+     */
+    public void clear() {
+        while (true) {
+            Shard<T>[] current = shards;
+            int locked = 0;
+            while (locked < current.length) {
+                current[locked].lock.lock();
+                if (current[locked].retired) {
+                    current[locked].lock.unlock();
+                    break;
+                }
+                locked++;
+            }
+            if (locked == current.length) {
+                for (Shard<T> shard : current) {
+                    shard.tree.clear();
+                    shard.published = shard.tree.snapshot();
+                }
+            }
+            for (int i = locked - 1; i >= 0; i--) {
+                current[i].lock.unlock();
+            }
+            if (locked == current.length) {
+                return;
+            }
+        }
+    }
+
+    // Called while holding the lock of one shard at most, so it only reads the published versions.
+    private boolean isSkewed(int size) {
+        if (size <= MIN_SHARD_SIZE) {
+            return false;
+        }
+        Shard<T>[] current = shards;
+        return current.length < target || size > 2 * (approximateCount() / current.length);
+    }
+
+    private long approximateCount() {
+        long count = 0;
+        for (Shard<T> shard : shards) {
+            count += shard.published.getCount();
+        }
+        return count;
+    }
+
+    /* Split the largest shard around its median and, if that makes one shard too many, merge the adjacent pair with
+     * the fewest keys. Only one thread reshards at a time; the others carry on instead of queueing up behind it.
+     */
+    @SuppressWarnings("unchecked")
+    private void reshard() {
+        if (!resharding.compareAndSet(false, true)) {
+            return;
+        }
+        Shard<T>[] current = shards; // Only this method replaces the array, and only one thread runs it at a time.
+        for (Shard<T> shard : current) {
+            shard.lock.lock();
+        }
+        try {
+            int largest = 0;
+            for (int i = 1; i < current.length; i++) {
+                if (current[i].tree.getCount() > current[largest].tree.getCount()) {
+                    largest = i;
+                }
+            }
+            if (!isSkewed(current[largest].tree.getCount())) {
+                return;
+            }
+            List<Shard<T>> next = new ArrayList<>(List.of(current));
+            Shard<T> big = next.get(largest);
+            AVLGTree<T> upper = big.tree.split(big.tree.select(big.tree.getCount() / 2 - 1));
+            next.set(largest, new Shard<>(big.tree, big.lower));
+            next.add(largest + 1, new Shard<>(upper, upper.select(0)));
+
+            if (next.size() > target) {
+                int pair = -1;
+                for (int i = 0; i + 1 < next.size(); i++) {
+                    if (i != largest && (pair < 0 || pairSize(next, i) < pairSize(next, pair))) {
+                        pair = i;
+                    }
+                }
+                next.set(pair, merge(next.get(pair), next.get(pair + 1)));
+                next.remove(pair + 1);
+            }
+            for (Shard<T> shard : current) {
+                shard.retired = !next.contains(shard);
+            }
+            shards = next.toArray(new Shard[0]);
+        } finally {
+            for (int i = current.length - 1; i >= 0; i--) {
+                current[i].lock.unlock();
+            }
+            resharding.set(false);
+        }
+    }
+
+    private static <T extends Comparable<T>> int pairSize(List<Shard<T>> shards, int i) {
+        return shards.get(i).tree.getCount() + shards.get(i + 1).tree.getCount();
+    }
+
+    // Always a new shard, even if b is empty, since the range of a live shard never changes.
+    private Shard<T> merge(Shard<T> a, Shard<T> b) {
+        if (b.tree.isEmpty()) {
+            return new Shard<>(a.tree, a.lower);
+        }
+        if (a.tree.isEmpty()) {
+            return new Shard<>(b.tree, a.lower);
+        }
+        T middle = b.tree.select(0);
+        try {
+            b.tree.delete(middle);
+        } catch (EmptyTreeException e) {
+            throw new IllegalStateException(e); // b is not empty.
+        }
+        return new Shard<>(AVLGTree.join(a.tree, middle, b.tree), a.lower);
+    }
+
+    /**
+     * <p>Search for key in the tree. Return a reference to it if it's in there,
+     * or {@code null} otherwise.</p>
+     * @param key The key to search for.
+     * @return key if key is in the tree, or {@code null} otherwise.
+     * @throws EmptyTreeException if the tree is empty.
+     */
+    public T search(T key) throws EmptyTreeException {
+        T found = get(key);
+        if (found == null && isEmpty()) {
+            throw new EmptyTreeException("empty");
+        }
+        return found;
+    }
+
+    /**
+     * Look up key in the tree without caring whether the tree is empty. Never locks.
+     * @param key The key to search for.
+     * @return The key stored in the tree that compares equal to key, or {@code null} if there is none.
+     */
+    public T get(T key) {
+        Shard<T>[] current = shards;
+        return current[route(current, key)].published.get(key);
+    }
+
+    /**
+     * Query the tree for membership of key. Never locks.
+     * @param key The key to search for.
+     * @return {@code true} if a key that compares equal to key is stored in the tree, {@code false} otherwise.
+     */
+    public boolean contains(T key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Find the largest key in the tree that is smaller than or equal to key, looking into the shards below key's
+     * own if it has none.
+     * @param key The key to search for.
+     * @return The floor of key in the tree, or {@code null} if every stored key is larger than key.
+     */
+    public T floor(T key) {
+        Shard<T>[] current = shards;
+        T found = current[route(current, key)].published.floor(key);
+        if (found != null) {
+            return found;
+        }
+        AVLGTree<T>[] seen = versions(key);
+        for (int i = seen.length - 1; i >= 0 && found == null; i--) {
+            found = seen[i].floor(key);
+        }
+        return found;
+    }
+
+    /**
+     * Find the smallest key in the tree that is larger than or equal to key, looking into the shards above key's
+     * own if it has none.
+     * @param key The key to search for.
+     * @return The ceiling of key in the tree, or {@code null} if every stored key is smaller than key.
+     */
+    public T ceiling(T key) {
+        Shard<T>[] current = shards;
+        T found = current[route(current, key)].published.ceiling(key);
+        if (found != null) {
+            return found;
+        }
+        AVLGTree<T>[] seen = versions(null);
+        for (int i = 0; i < seen.length && found == null; i++) {
+            found = seen[i].ceiling(key);
+        }
+        return found;
+    }
+
+    /**
+     * <p>Return the number of keys in the tree that are strictly smaller than key: the sizes of the shards below
+     * key's own, plus the rank of key within its shard, all taken from versions that were current at the same
+     * moment. Runs in O(s + log n) for s shards.</p>
+     * @param key The key whose rank we want.
+     * @return The number of keys in the tree smaller than key.
+     */
+    public int rank(T key) {
+        AVLGTree<T>[] seen = versions(key);
+        int rank = 0;
+        for (int i = 0; i < seen.length - 1; i++) {
+            rank += seen[i].getCount();
+        }
+        return rank + seen[seen.length - 1].rank(key);
+    }
+
+    /**
+     * Return the key of rank k, that is, the (k+1)-th smallest key in the tree, in O(s + log n) for s shards.
+     * @param k The zero-based rank of the key we want.
+     * @return The key with exactly k keys smaller than it in the tree.
+     * @throws IndexOutOfBoundsException if k is negative or not smaller than {@link #getCount()}.
+     */
+    public T select(int k) {
+        int skipped = 0;
+        for (AVLGTree<T> version : versions(null)) {
+            int count = version.getCount();
+            if (k >= skipped && k - skipped < count) {
+                return version.select(k - skipped);
+            }
+            skipped += count;
+        }
+        throw new IndexOutOfBoundsException("Rank " + k + " out of range for a tree of " + skipped + " keys.");
+    }
+
+    /**
+     * Count the keys in the closed range [lo, hi].
+     * @param lo The smallest key of the range.
+     * @param hi The largest key of the range.
+     * @return The number of keys k in the tree with lo &le; k &le; hi, or 0 if lo is larger than hi.
+     */
+    public int countRange(T lo, T hi) {
+        int count = 0;
+        for (AVLGTree<T> version : versions(hi)) {
+            count += version.countRange(lo, hi);
+        }
+        return count;
+    }
+
+    /**
+     * <p>Return the number of elements in the tree, counted across all shards at once.</p>
+     * @return The number of elements in the tree.
+     */
+    public int getCount() {
+        int count = 0;
+        for (AVLGTree<T> version : versions(null)) {
+            count += version.getCount();
+        }
+        return count;
+    }
+
+    /**
+     * Query the tree for emptiness.
+     * @return {@code true} if the tree is empty, {@code false} otherwise.
+     */
+    public boolean isEmpty() {
+        return getCount() == 0;
+    }
+
+    /**
+     * Return the number of shards the key space is currently split into.
+     * @return The number of shards.
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Retrieves the maximum imbalance parameter.
+     * @return The maximum imbalance parameter of the tree of every shard.
+     */
+    public int getMaxImbalance() {
+        return maxImbalance;
+    }
+
+    /**
+     * Return a weakly consistent iterator over the keys of the tree in ascending order.
+     * @return An {@link Iterator} that walks the latest version of one shard at a time.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return new ShardIterator();
+    }
+
+    /* Walks the latest version of one shard at a time. Once a shard is done, the next one is found by routing its
+     * upper bound through the current shards, so the iterator keeps going in order even if the boundaries move.
+     */
+    private class ShardIterator implements Iterator<T> {
+        private Iterator<T> current;
+        private T from; // Every key below from has been visited; null before the first shard.
+        private boolean last; // Whether current walks the last shard.
+
+        @Override
+        public boolean hasNext() {
+            while (current == null || !current.hasNext()) {
+                if (last) {
+                    return false;
+                }
+                advance();
+            }
+            return true;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        private void advance() {
+            Shard<T>[] all = shards;
+            int i = (from == null) ? 0 : route(all, from);
+            AVLGTree<T> version = all[i].published;
+            current = (from == null) ? version.iterator() : version.tailSet(from).iterator();
+            last = i == all.length - 1;
+            if (!last) {
+                from = all[i + 1].lower;
+            }
+        }
+    }
+}
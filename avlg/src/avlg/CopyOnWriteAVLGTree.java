@@ -0,0 +1,367 @@
+package avlg;
+
+import avlg.exceptions.EmptyTreeException;
+import avlg.exceptions.InvalidBalanceException;
+import java.util.Iterator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>{@link CopyOnWriteAVLGTree} is a thread-safe {@link AVLGTree} for workloads that read far more than they write:
+ * any number of threads can read it without locking, while writes are applied one at a time.</p>
+ *
+ * <p>Readers never lock and never wait. Every write is applied to a private {@link AVLGTree} and then
+ * <em>published</em> as an immutable {@link AVLGTree#snapshot()} through a {@code volatile} reference. A read
+ * simply picks up the latest published version and searches it, so lookups scale with the number of cores and
+ * are never slowed down by writers. A read always sees a complete tree: either the one before a write, or the one
+ * after it, but never a half-rotated one.</p>
+ *
+ * <p>Writers are <em>not</em> concurrent with each other: a single lock serializes them, however far apart the
+ * keys they write are. Since the tree copies only the nodes that a write touches once a snapshot of them exists, a
+ * write costs one search path of copies plus the nodes its rotations move, and the lock is held just that long.
+ * A larger maxImbalance means fewer rotations, so fewer copies and shorter critical sections.
+ * {@link #insertAll(Iterable)} applies many keys under a single lock acquisition and publishes them once. When
+ * several threads write at a high rate, use a {@link ConcurrentAVLGTree} instead, which keeps reads just as
+ * lock-free but splits its keys into ranges whose writers do not wait for each other.</p>
+ *
+ * <p>Iterators walk the version that was current when they were created. They are therefore weakly consistent:
+ * they never throw a {@link java.util.ConcurrentModificationException}, and they do not see later writes.</p>
+ *
+ * <p>With {@link #setBackgroundRebalancing(boolean)}, writers do not rotate at all: the tree defers its rotations
+ * (see {@link AVLGTree#setDeferredRebalancing(boolean)}) and a background thread makes them in small batches,
+ * taking the write lock between writes. That thread keeps the tree reachable until it is stopped, so
+ * {@link #close()} the tree, or turn background rebalancing off, when done with it.</p>
+ *
+ * @author Obinna Anadu
+ *
+ * @see AVLGTree
+ * @see ConcurrentAVLGTree
+ * @see ShardedAVLGTree
+ */
+public class CopyOnWriteAVLGTree<T extends Comparable<T>> implements Iterable<T>, AutoCloseable {
+
+    private final AVLGTree<T> tree; // Only ever touched while holding writeLock.
+    private final ReentrantLock writeLock;
+    private volatile AVLGTree<T> published;
+
+    /* How many nodes the repairs of the background rebalancer visit per acquisition of the write lock, counting
+     * every node of the subtrees they rebuild; see AVLGTree.rebalance(int, long). */
+    private static final long REBALANCE_WORK = 1 << 12;
+
+    private final Condition pending; // Signalled by writers that leave repairs queued for the rebalancer.
+    private Thread rebalancer; // Only ever touched while holding writeLock.
+
+    /**
+     * The class constructor provides the tree with the maximum imbalance allowed.
+     * @param maxImbalance The maximum imbalance allowed by the AVL-G Tree.
+     * @throws InvalidBalanceException if maxImbalance is a value smaller than 1.
+     */
+    public CopyOnWriteAVLGTree(int maxImbalance) throws InvalidBalanceException {
+        tree = new AVLGTree<>(maxImbalance);
+        writeLock = new ReentrantLock();
+        pending = writeLock.newCondition();
+        published = tree.snapshot();
+    }
+
+    /**
+     * <p>Move the rotations of the tree off the writers' threads. While it is on, every write only updates heights
+     * and sizes on its search path, queues the paths it left out of balance, publishes, and signals a daemon
+     * thread; that thread then repairs the queued paths in batches that visit a few thousand nodes each, releasing
+     * the write lock between batches so that writers never wait for more than one batch. A batch only runs over
+     * when a single repair has to rebuild a larger subtree, which the many writes that unbalanced it pay for. Reads
+     * stay correct throughout: every published version is a valid search tree, just not always an AVL-G balanced
+     * one.</p>
+     *
+     * <p>Turning it off stops the thread, makes every repair still pending and publishes the balanced tree.</p>
+     * @param enabled {@code true} to rebalance in the background, {@code false} to rotate inline again.
+     */
+    public void setBackgroundRebalancing(boolean enabled) {
+        Thread stopped;
+        writeLock.lock();
+        try {
+            if (enabled == (rebalancer != null)) {
+                return;
+            }
+            if (enabled) {
+                tree.setDeferredRebalancing(true);
+                rebalancer = new Thread(this::rebalanceLoop, "avlg-rebalancer");
+                rebalancer.setDaemon(true);
+                rebalancer.start();
+                return;
+            }
+            stopped = rebalancer;
+            rebalancer = null;
+            pending.signalAll();
+        } finally {
+            writeLock.unlock();
+        }
+        try {
+            stopped.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writeLock.lock();
+        try {
+            if (rebalancer == null) {
+                tree.setDeferredRebalancing(false);
+                published = tree.snapshot();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Query the tree for whether a background thread makes its rotations.
+     * @return {@code true} if {@link #setBackgroundRebalancing(boolean)} is in effect, {@code false} otherwise.
+     */
+    public boolean isBackgroundRebalancing() {
+        writeLock.lock();
+        try {
+            return rebalancer != null;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Stop the background rebalancer, if there is one, exactly as {@link #setBackgroundRebalancing(boolean)
+     * setBackgroundRebalancing(false)} does. The tree stays usable, and closing it again does nothing.
+     */
+    @Override
+    public void close() {
+        setBackgroundRebalancing(false);
+    }
+
+    private void rebalanceLoop() {
+        Thread self = Thread.currentThread();
+        writeLock.lock();
+        try {
+            while (rebalancer == self) {
+                if (tree.getPendingRebalances() == 0) {
+                    pending.awaitUninterruptibly();
+                    continue;
+                }
+                tree.rebalance(Integer.MAX_VALUE, REBALANCE_WORK);
+                published = tree.snapshot();
+                writeLock.unlock();
+                if (writeLock.hasQueuedThreads()) {
+                    Thread.yield(); // Let the writers queued on the lock in before the next batch.
+                }
+                writeLock.lock();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Called with writeLock held, after a write.
+    private void publish() {
+        published = tree.snapshot();
+        if (rebalancer != null && tree.getPendingRebalances() > 0) {
+            pending.signal();
+        }
+    }
+
+    /**
+     * Insert key in the tree. The new key is visible to every read that starts after this method returns.
+     * @param key The key to insert in the tree.
+     */
+    public void insert(T key) {
+        writeLock.lock();
+        try {
+            int before = tree.getCount();
+            tree.insert(key);
+            if (tree.getCount() != before) {
+                publish();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Insert every key of keys under a single acquisition of the write lock, and publish them all at once.
+     * Readers see either none or all of them.
+     * @param keys The keys to insert in the tree.
+     */
+    public void insertAll(Iterable<? extends T> keys) {
+        writeLock.lock();
+        try {
+            for (T key : keys) {
+                tree.insert(key);
+            }
+            publish();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Delete the key from the data structure and return it to the caller.
+     * @param key The key to delete from the structure.
+     * @return The key that was removed, or {@code null} if the key was not found.
+     * @throws EmptyTreeException if the tree is empty.
+     */
+    public T delete(T key) throws EmptyTreeException {
+        writeLock.lock();
+        try {
+            T removed = tree.delete(key);
+            if (removed != null) {
+                publish();
+            }
+            return removed;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * <p>Empties the tree of all its elements.</p>
+     */
+    public void clear() {
+        writeLock.lock();
+        try {
+            tree.clear();
+            published = tree.snapshot();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * <p>Return the latest published version of the tree. The snapshot is immutable, so a caller that needs several
+     * queries to agree with each other (for example a {@link #rank(Comparable)} followed by a
+     * {@link #select(int)}) should run all of them against the same snapshot.</p>
+     * @return A read-only {@link AVLGTree} holding the keys currently stored in this tree.
+     */
+    public AVLGTree<T> snapshot() {
+        return published;
+    }
+
+    /**
+     * <p>Search for key in the tree. Return a reference to it if it's in there,
+     * or {@code null} otherwise.</p>
+     * @param key The key to search for.
+     * @return key if key is in the tree, or {@code null} otherwise.
+     * @throws EmptyTreeException if the tree is empty.
+     */
+    public T search(T key) throws EmptyTreeException {
+        return published.search(key);
+    }
+
+    /**
+     * Look up key in the tree without caring whether the tree is empty.
+     * @param key The key to search for.
+     * @return The key stored in the tree that compares equal to key, or {@code null} if there is none.
+     */
+    public T get(T key) {
+        return published.get(key);
+    }
+
+    /**
+     * Query the tree for membership of key.
+     * @param key The key to search for.
+     * @return {@code true} if a key that compares equal to key is stored in the tree, {@code false} otherwise.
+     */
+    public boolean contains(T key) {
+        return published.contains(key);
+    }
+
+    /**
+     * Find the largest key in the tree that is smaller than or equal to key.
+     * @param key The key to search for.
+     * @return The floor of key in the tree, or {@code null} if every stored key is larger than key.
+     */
+    public T floor(T key) {
+        return published.floor(key);
+    }
+
+    /**
+     * Find the smallest key in the tree that is larger than or equal to key.
+     * @param key The key to search for.
+     * @return The ceiling of key in the tree, or {@code null} if every stored key is smaller than key.
+     */
+    public T ceiling(T key) {
+        return published.ceiling(key);
+    }
+
+    /**
+     * Return the number of keys in the tree that are strictly smaller than key.
+     * @param key The key whose rank we want.
+     * @return The number of keys in the tree smaller than key.
+     */
+    public int rank(T key) {
+        return published.rank(key);
+    }
+
+    /**
+     * Return the key of rank k, that is, the (k+1)-th smallest key in the tree.
+     * @param k The zero-based rank of the key we want.
+     * @return The key with exactly k keys smaller than it in the tree.
+     * @throws IndexOutOfBoundsException if k is negative or not smaller than {@link #getCount()}.
+     */
+    public T select(int k) {
+        return published.select(k);
+    }
+
+    /**
+     * Count the keys in the closed range [lo, hi].
+     * @param lo The smallest key of the range.
+     * @param hi The largest key of the range.
+     * @return The number of keys k in the tree with lo &le; k &le; hi, or 0 if lo is larger than hi.
+     */
+    public int countRange(T lo, T hi) {
+        return published.countRange(lo, hi);
+    }
+
+    /**
+     * Return a weakly consistent iterator over the keys of the tree in ascending order.
+     * @return An {@link Iterator} over the keys of the latest published version of the tree.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return published.iterator();
+    }
+
+    /**
+     * Retrieves the maximum imbalance parameter.
+     * @return The maximum imbalance parameter provided as a constructor parameter.
+     */
+    public int getMaxImbalance() {
+        return published.getMaxImbalance();
+    }
+
+    /**
+     * Return the height of the tree, or -1 if it is empty.
+     * @return The height of the tree.
+     */
+    public int getHeight() {
+        return published.getHeight();
+    }
+
+    /**
+     * Query the tree for emptiness.
+     * @return {@code true} if the tree is empty, {@code false} otherwise.
+     */
+    public boolean isEmpty() {
+        return published.isEmpty();
+    }
+
+    /**
+     * Return the key at the tree's root node.
+     * @return The key at the tree's root node.
+     * @throws EmptyTreeException if the tree is empty.
+     */
+    public T getRoot() throws EmptyTreeException {
+        return published.getRoot();
+    }
+
+    /**
+     * <p>Return the number of elements in the tree.</p>
+     * @return The number of elements in the tree.
+     */
+    public int getCount() {
+        return published.getCount();
+    }
+}
@@ -0,0 +1,217 @@
+package avlg;
+
+import avlg.exceptions.EmptyTreeException;
+import java.util.Iterator;
+import java.util.function.ToLongFunction;
+
+/**
+ * <p>{@link FrozenAVLGTree} is an immutable copy of the keys of an {@link AVLGTree}, laid out for fast reads. The keys
+ * are stored in a single array in <a href="https://arxiv.org/abs/1509.05053">Eytzinger order</a>: the root of a
+ * perfectly balanced search tree at index 1 and the children of index {@code i} at {@code 2i} and {@code 2i + 1}.
+ * A search therefore chases no pointers at all: it walks down the array with {@code i = 2i + (keys[i] < key ? 1 : 0)},
+ * which the JIT compiles without a branch, and the few top levels that every search visits share a handful of cache
+ * lines. The position of the answer is then recovered from the bits of {@code i}.</p>
+ *
+ * <p>Built with a {@link ToLongFunction} that maps keys to {@code long}s in the same order, the copy also keeps the
+ * flattened keys in a {@code long[]} and compares those instead, so that a search costs one call to the function
+ * and then reads nothing but consecutive primitives. Without one, keys are compared with
+ * {@link Comparable#compareTo(Object)}, like the tree does.</p>
+ *
+ * <p>Building the copy takes one in-order pass over the tree, O(n). It never changes afterwards, so it can be read by
+ * any number of threads without locks; to freeze a tree that is still being written, freeze a
+ * {@link AVLGTree#snapshot()} of it.</p>
+ *
+ * @param <T> The type of the keys.
+ *
+ * @author Obinna Anadu
+ *
+ * @see AVLGTree
+ */
+public final class FrozenAVLGTree<T extends Comparable<T>> {
+
+    /**
+     * The largest number of keys a {@link FrozenAVLGTree} can hold. A search ends at an index between {@code n + 1}
+     * and {@code 2n + 1}, which has to fit in an {@code int}.
+     */
+    public static final int MAX_COUNT = (1 << 30) - 1;
+
+    private final int n;
+    private final T[] keys; // keys[1..n] in Eytzinger order; keys[0] is unused.
+    private final int[] ranks; // ranks[i] is the number of keys smaller than keys[i].
+    private final long[] flat; // flat[i] = flatten(keys[i]), or null if keys are compared directly.
+    private final ToLongFunction<? super T> flatten;
+
+    @SuppressWarnings("unchecked")
+    private FrozenAVLGTree(AVLGTree<T> tree, ToLongFunction<? super T> flatten) {
+        n = tree.getCount();
+        if (n > MAX_COUNT) {
+            throw new IllegalArgumentException("Cannot freeze " + n + " keys; at most " + MAX_COUNT + " fit.");
+        }
+        keys = (T[]) new Comparable[n + 1];
+        ranks = new int[n + 1];
+        this.flatten = flatten;
+        flat = (flatten != null) ? new long[n + 1] : null;
+        layout(1, tree.iterator(), 0);
+    }
+
+    /**
+     * Freeze the keys that tree holds right now.
+     * @param tree The tree to copy.
+     * @param <T> The type of the keys.
+     * @return A {@link FrozenAVLGTree} holding the keys of tree, compared with their
+     * {@link Comparable#compareTo(Object)}.
+     * @throws IllegalArgumentException if tree holds more than {@link #MAX_COUNT} keys.
+     */
+    public static <T extends Comparable<T>> FrozenAVLGTree<T> of(AVLGTree<T> tree) {
+        return new FrozenAVLGTree<>(tree, null);
+    }
+
+    /**
+     * Freeze the keys that tree holds right now, along with their flattened form.
+     * @param tree The tree to copy.
+     * @param flatten A function that maps keys to {@code long}s in the same order: a key is smaller than another
+     * exactly when its {@code long} is, as {@code Integer::longValue} does for {@link Integer} keys.
+     * @param <T> The type of the keys.
+     * @return A {@link FrozenAVLGTree} holding the keys of tree, compared by their flattened form.
+     * @throws IllegalArgumentException if flatten does not map the keys of tree to strictly ascending
+     * {@code long}s, or if tree holds more than {@link #MAX_COUNT} keys.
+     */
+    public static <T extends Comparable<T>> FrozenAVLGTree<T> of(AVLGTree<T> tree,
+            ToLongFunction<? super T> flatten) {
+        if (flatten == null) {
+            throw new NullPointerException("flatten");
+        }
+        return new FrozenAVLGTree<>(tree, flatten);
+    }
+
+    /* The in-order traversal of the implicit tree rooted at i consumes the keys in ascending order. prev is the
+     * index of the key placed last, whose flattened form the next one has to exceed.
+     */
+    private int layout(int i, Iterator<T> in, int prev) {
+        if (i > n) {
+            return prev;
+        }
+        prev = layout(2 * i, in, prev);
+        keys[i] = in.next();
+        ranks[i] = (prev != 0) ? ranks[prev] + 1 : 0;
+        if (flat != null) {
+            flat[i] = flatten.applyAsLong(keys[i]);
+            if (prev != 0 && flat[prev] >= flat[i]) {
+                throw new IllegalArgumentException("flatten maps " + keys[prev] + " and " + keys[i] + " to " +
+                        flat[prev] + " and " + flat[i] + ", which are out of order.");
+            }
+        }
+        return layout(2 * i + 1, in, i);
+    }
+
+    /* Walk down to a leaf, turning right past every key that is smaller than key (or not larger, if inclusive).
+     * The bits of the result below its leading 1 are the turns taken: the last left turn is the first key we
+     * did not pass, and the last right turn is the last key we did.
+     */
+    private int descend(T key, boolean inclusive) {
+        int i = 1;
+        if (flat != null) {
+            long x = flatten.applyAsLong(key);
+            if (inclusive) {
+                while (i <= n) {
+                    i = 2 * i + (flat[i] <= x ? 1 : 0);
+                }
+            } else {
+                while (i <= n) {
+                    i = 2 * i + (flat[i] < x ? 1 : 0);
+                }
+            }
+        } else {
+            int limit = inclusive ? 0 : -1;
+            while (i <= n) {
+                i = 2 * i + (keys[i].compareTo(key) <= limit ? 1 : 0);
+            }
+        }
+        return i;
+    }
+
+    private static int lastLeft(int i) {
+        return i >>> (Integer.numberOfTrailingZeros(~i) + 1);
+    }
+
+    private static int lastRight(int i) {
+        return i >>> (Integer.numberOfTrailingZeros(i) + 1);
+    }
+
+    /**
+     * <p>Search for key. Return a reference to it if it's in there, or {@code null} otherwise.</p>
+     * @param key The key to search for.
+     * @return The stored key that compares equal to key, or {@code null} if there is none.
+     * @throws EmptyTreeException if the tree is empty.
+     */
+    public T search(T key) throws EmptyTreeException {
+        if (n == 0) {
+            throw new EmptyTreeException("empty");
+        }
+        int i = lastLeft(descend(key, false));
+        return (i != 0 && keys[i].compareTo(key) == 0) ? keys[i] : null;
+    }
+
+    /**
+     * Query the tree for membership of key.
+     * @param key The key to search for.
+     * @return {@code true} if a key that compares equal to key is stored, {@code false} otherwise.
+     */
+    public boolean contains(T key) {
+        int i = lastLeft(descend(key, false));
+        return i != 0 && keys[i].compareTo(key) == 0;
+    }
+
+    /**
+     * Find the largest stored key that is smaller than or equal to key.
+     * @param key The key to search for.
+     * @return The floor of key, or {@code null} if every stored key is larger than key.
+     */
+    public T floor(T key) {
+        return keys[lastRight(descend(key, true))];
+    }
+
+    /**
+     * Find the smallest stored key that is larger than or equal to key.
+     * @param key The key to search for.
+     * @return The ceiling of key, or {@code null} if every stored key is smaller than key.
+     */
+    public T ceiling(T key) {
+        return keys[lastLeft(descend(key, false))];
+    }
+
+    /**
+     * Return the rank of key, which is the number of stored keys that are strictly smaller than it. key does not
+     * have to be stored.
+     * @param key The key whose rank we want.
+     * @return The number of stored keys smaller than key.
+     */
+    public int rank(T key) {
+        int i = lastLeft(descend(key, false));
+        return (i != 0) ? ranks[i] : n;
+    }
+
+    /**
+     * Return the number of keys.
+     * @return The number of keys the tree held when it was frozen.
+     */
+    public int getCount() {
+        return n;
+    }
+
+    /**
+     * Query the tree for emptiness.
+     * @return {@code true} if there are no keys, {@code false} otherwise.
+     */
+    public boolean isEmpty() {
+        return n == 0;
+    }
+
+    /**
+     * Query the tree for whether it compares flattened keys.
+     * @return {@code true} if it was built with a {@link ToLongFunction}, {@code false} otherwise.
+     */
+    public boolean isFlattened() {
+        return flat != null;
+    }
+}
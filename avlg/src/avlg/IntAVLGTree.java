@@ -0,0 +1,335 @@
+package avlg;
+
+import avlg.exceptions.EmptyTreeException;
+import avlg.exceptions.InvalidBalanceException;
+import java.util.Arrays;
+
+/**
+ * <p>{@link IntAVLGTree} is an {@link AVLGTree} specialized for {@code int} keys. Instead of one object per node
+ * and one boxed {@link Integer} per key, it keeps its nodes in parallel arrays: node {@code i} has its key in
+ * {@code keys[i]}, its children in {@code left[i]} and {@code right[i]} and its height in {@code height[i]}.
+ * A node therefore costs 16 bytes and no object headers, and keys are compared with plain {@code <}, without any
+ * call to {@link Comparable#compareTo(Object)}. Lookups make no allocations at all.</p>
+ *
+ * <p>Children are array indices, with {@code NIL} standing for the empty subtree. The slots of deleted nodes are
+ * chained together into a free list through {@code left[]} and reused by later insertions, and the arrays only
+ * grow (by doubling) when that list is empty. The balance of a node is not stored: it is the difference of the
+ * heights of its children.</p>
+ *
+ * @author Obinna Anadu
+ *
+ * @see AVLGTree
+ * @see LongAVLGTree
+ */
+public class IntAVLGTree {
+
+    private static final int NIL = -1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int maxImbalance;
+    private int[] keys;
+    private int[] left, right, height;
+    private int root;
+    private int size;
+    private int used; // Slots [0, used) have been handed out at least once.
+    private int free; // Head of the free list of deleted slots, chained through left[].
+
+    /**
+     * The class constructor provides the tree with the maximum imbalance allowed.
+     * @param maxImbalance The maximum imbalance allowed by the AVL-G Tree.
+     * @throws InvalidBalanceException if maxImbalance is a value smaller than 1.
+     */
+    public IntAVLGTree(int maxImbalance) throws InvalidBalanceException {
+        if (maxImbalance < 1) {
+            throw new InvalidBalanceException("");
+        }
+        this.maxImbalance = maxImbalance;
+        keys = new int[INITIAL_CAPACITY];
+        left = new int[INITIAL_CAPACITY];
+        right = new int[INITIAL_CAPACITY];
+        height = new int[INITIAL_CAPACITY];
+        root = NIL;
+        free = NIL;
+    }
+
+    /**
+     * Insert key in the tree. Inserting a key that is already stored has no effect.
+     * @param key The key to insert in the tree.
+     */
+    public void insert(int key) {
+        root = insert(root, key);
+    }
+
+    /* The arrays may be replaced by allocate(), so a child link is always written only after the
+     * recursive call has returned, never through an array reference read before it.
+     */
+    private int insert(int node, int key) {
+        if (node == NIL) {
+            size++;
+            return allocate(key);
+        }
+        if (key < keys[node]) {
+            int child = insert(left[node], key);
+            left[node] = child;
+        } else if (key > keys[node]) {
+            int child = insert(right[node], key);
+            right[node] = child;
+        } else {
+            return node;
+        }
+        return rebalance(node);
+    }
+
+    private int allocate(int key) {
+        int node;
+        if (free != NIL) {
+            node = free;
+            free = left[node];
+        } else {
+            if (used == keys.length) {
+                int capacity = keys.length * 2;
+                keys = Arrays.copyOf(keys, capacity);
+                left = Arrays.copyOf(left, capacity);
+                right = Arrays.copyOf(right, capacity);
+                height = Arrays.copyOf(height, capacity);
+            }
+            node = used++;
+        }
+        keys[node] = key;
+        left[node] = NIL;
+        right[node] = NIL;
+        height[node] = 0;
+        return node;
+    }
+
+    private void release(int node) {
+        left[node] = free;
+        free = node;
+    }
+
+    private int height(int node) {
+        return (node != NIL) ? height[node] : -1;
+    }
+
+    private int balance(int node) {
+        return height(left[node]) - height(right[node]);
+    }
+
+    private void update(int node) {
+        height[node] = Math.max(height(left[node]), height(right[node])) + 1;
+    }
+
+    private int rebalance(int node) {
+        update(node);
+        int balance = balance(node);
+        if (balance > maxImbalance) {
+            if (balance(left[node]) >= 0) {
+                node = rotateR(node);
+            } else {
+                left[node] = rotateL(left[node]);
+                node = rotateR(node);
+            }
+        } else if (balance < -maxImbalance) {
+            if (balance(right[node]) <= 0) {
+                node = rotateL(node);
+            } else {
+                right[node] = rotateR(right[node]);
+                node = rotateL(node);
+            }
+        }
+        return node;
+    }
+
+    private int rotateL(int node) {
+        int temp = right[node];
+        right[node] = left[temp];
+        left[temp] = node;
+        update(node);
+        update(temp);
+        return temp;
+    }
+
+    private int rotateR(int node) {
+        int temp = left[node];
+        left[node] = right[temp];
+        right[temp] = node;
+        update(node);
+        update(temp);
+        return temp;
+    }
+
+    /**
+     * Delete the key from the data structure.
+     * @param key The key to delete from the structure.
+     * @return {@code true} if key was in the tree, {@code false} otherwise.
+     * @throws EmptyTreeException if the tree is empty.
+     */
+    public boolean delete(int key) throws EmptyTreeException {
+        if (size == 0) {
+            throw new EmptyTreeException("null");
+        }
+        int before = size;
+        root = delete(root, key);
+        return size != before;
+    }
+
+    private int delete(int node, int key) {
+        if (node == NIL) {
+            return NIL;
+        }
+        if (key < keys[node]) {
+            left[node] = delete(left[node], key);
+        } else if (key > keys[node]) {
+            right[node] = delete(right[node], key);
+        } else {
+            size--;
+            if (left[node] == NIL || right[node] == NIL) {
+                int child = (left[node] != NIL) ? left[node] : right[node];
+                release(node);
+                return child;
+            }
+            int succ = right[node];
+            while (left[succ] != NIL) {
+                succ = left[succ];
+            }
+            keys[node] = keys[succ];
+            right[node] = deleteMin(right[node]);
+        }
+        return rebalance(node);
+    }
+
+    private int deleteMin(int node) {
+        if (left[node] == NIL) {
+            int child = right[node];
+            release(node);
+            return child;
+        }
+        left[node] = deleteMin(left[node]);
+        return rebalance(node);
+    }
+
+    /**
+     * Search for key in the tree.
+     * @param key The key to search for.
+     * @return {@code true} if key is in the tree, {@code false} otherwise.
+     * @throws EmptyTreeException if the tree is empty.
+     */
+    public boolean search(int key) throws EmptyTreeException {
+        if (size == 0) {
+            throw new EmptyTreeException("empty");
+        }
+        return contains(key);
+    }
+
+    /**
+     * Query the tree for membership of key, without caring whether the tree is empty.
+     * @param key The key to search for.
+     * @return {@code true} if key is in the tree, {@code false} otherwise.
+     */
+    public boolean contains(int key) {
+        int node = root;
+        while (node != NIL) {
+            int k = keys[node];
+            if (key == k) {
+                return true;
+            }
+            node = (key < k) ? left[node] : right[node];
+        }
+        return false;
+    }
+
+    /**
+     * Retrieves the maximum imbalance parameter.
+     * @return The maximum imbalance parameter provided as a constructor parameter.
+     */
+    public int getMaxImbalance() {
+        return maxImbalance;
+    }
+
+    /**
+     * Return the height of the tree, or -1 if it is empty.
+     * @return The height of the tree.
+     */
+    public int getHeight() {
+        return height(root);
+    }
+
+    /**
+     * Query the tree for emptiness.
+     * @return {@code true} if the tree is empty, {@code false} otherwise.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Return the key at the tree's root node.
+     * @return The key at the tree's root node.
+     * @throws EmptyTreeException if the tree is empty.
+     */
+    public int getRoot() throws EmptyTreeException {
+        if (isEmpty()) {
+            throw new EmptyTreeException("empty tree");
+        }
+        return keys[root];
+    }
+
+    /**
+     * <p>Return the number of elements in the tree.</p>
+     * @return The number of elements in the tree.
+     */
+    public int getCount() {
+        return size;
+    }
+
+    /**
+     * <p>Empties the tree of all its elements. The arrays keep their capacity.</p>
+     */
+    public void clear() {
+        root = NIL;
+        size = 0;
+        used = 0;
+        free = NIL;
+    }
+
+    /**
+     * Establishes whether the tree <em>globally</em> satisfies the BST condition.
+     * @return {@code true} if the tree satisfies the Binary Search Tree property, {@code false} otherwise.
+     */
+    public boolean isBST() {
+        return isBST(root, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    // Every key in the subtree must lie in [lo, hi].
+    private boolean isBST(int node, int lo, int hi) {
+        if (node == NIL) {
+            return true;
+        }
+        int key = keys[node];
+        if (key < lo || key > hi) {
+            return false;
+        }
+        return (left[node] == NIL || (key > Integer.MIN_VALUE && isBST(left[node], lo, key - 1))) &&
+                (right[node] == NIL || (key < Integer.MAX_VALUE && isBST(right[node], key + 1, hi)));
+    }
+
+    /**
+     * Establishes whether the tree <em>globally</em> satisfies the AVL-G condition.
+     * @return {@code true} if the tree satisfies the balance requirements of an AVL-G tree, {@code false} otherwise.
+     */
+    public boolean isAVLGBalanced() {
+        return checkedHeight(root) != Integer.MIN_VALUE;
+    }
+
+    // The recomputed height of the subtree, or Integer.MIN_VALUE if some node in it is out of balance.
+    private int checkedHeight(int node) {
+        if (node == NIL) {
+            return -1;
+        }
+        int l = checkedHeight(left[node]), r = checkedHeight(right[node]);
+        if (l == Integer.MIN_VALUE || r == Integer.MIN_VALUE || Math.abs(l - r) > maxImbalance) {
+            return Integer.MIN_VALUE;
+        }
+        return Math.max(l, r) + 1;
+    }
+}
@@ -0,0 +1,111 @@
+package avlg;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>{@link KeyCodec} turns the keys of a tree into a fixed number of bytes and back. It is what lets an
+ * {@link OffHeapAVLGTree} keep its keys inside a {@link ByteBuffer} instead of on the Java heap.</p>
+ *
+ * <p>Every key must be encoded into exactly {@link #width()} bytes. All offsets are absolute, so implementations
+ * must not move the position of the buffers they are given.</p>
+ *
+ * @param <T> The type of the keys.
+ *
+ * @author Obinna Anadu
+ *
+ * @see OffHeapAVLGTree
+ */
+public interface KeyCodec<T extends Comparable<T>> {
+
+    /**
+     * Return the number of bytes every encoded key takes.
+     * @return The width of an encoded key, in bytes.
+     */
+    int width();
+
+    /**
+     * Encode key into buf, starting at offset.
+     * @param buf The buffer to write to.
+     * @param offset The absolute offset of the first byte of the key.
+     * @param key The key to encode.
+     */
+    void write(ByteBuffer buf, int offset, T key);
+
+    /**
+     * Decode the key stored in buf at offset.
+     * @param buf The buffer to read from.
+     * @param offset The absolute offset of the first byte of the key.
+     * @return The decoded key.
+     */
+    T read(ByteBuffer buf, int offset);
+
+    /**
+     * <p>Compare key with the key stored in buf at offset, as {@link Comparable#compareTo(Object)} would. Searches
+     * call this once per node they visit, so codecs should override it to compare the bytes in place instead of
+     * decoding a new key every time.</p>
+     * @param key The key we are looking for.
+     * @param buf The buffer holding the stored key.
+     * @param offset The absolute offset of the first byte of the stored key.
+     * @return A negative number, zero or a positive number if key is smaller than, equal to or larger than the
+     * stored key.
+     */
+    default int compare(T key, ByteBuffer buf, int offset) {
+        return key.compareTo(read(buf, offset));
+    }
+
+    /**
+     * A {@link KeyCodec} that stores {@link Integer} keys in 4 bytes.
+     * @return A codec for {@link Integer} keys.
+     */
+    static KeyCodec<Integer> ints() {
+        return new KeyCodec<Integer>() {
+            @Override
+            public int width() {
+                return Integer.BYTES;
+            }
+
+            @Override
+            public void write(ByteBuffer buf, int offset, Integer key) {
+                buf.putInt(offset, key);
+            }
+
+            @Override
+            public Integer read(ByteBuffer buf, int offset) {
+                return buf.getInt(offset);
+            }
+
+            @Override
+            public int compare(Integer key, ByteBuffer buf, int offset) {
+                return Integer.compare(key, buf.getInt(offset));
+            }
+        };
+    }
+
+    /**
+     * A {@link KeyCodec} that stores {@link Long} keys in 8 bytes.
+     * @return A codec for {@link Long} keys.
+     */
+    static KeyCodec<Long> longs() {
+        return new KeyCodec<Long>() {
+            @Override
+            public int width() {
+                return Long.BYTES;
+            }
+
+            @Override
+            public void write(ByteBuffer buf, int offset, Long key) {
+                buf.putLong(offset, key);
+            }
+
+            @Override
+            public Long read(ByteBuffer buf, int offset) {
+                return buf.getLong(offset);
+            }
+
+            @Override
+            public int compare(Long key, ByteBuffer buf, int offset) {
+                return Long.compare(key, buf.getLong(offset));
+            }
+        };
+    }
+}
@@ -0,0 +1,817 @@
+package avlg;
+
+import avlg.exceptions.EmptyTreeException;
+import avlg.exceptions.InvalidBalanceException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * <p>{@link OffHeapAVLGTree} is an {@link AVLGTree} whose nodes live outside the Java heap, in direct
+ * {@link ByteBuffer}s. However large the tree grows, the garbage collector only ever sees a handful of buffer
+ * objects, so GC pauses do not grow with the size of the index.</p>
+ *
+ * <p>It supports {@link AVLGTree}'s interface for reading and updating a single tree, with the same contracts:
+ * insert, delete and clear; search, get, contains, floor, ceiling, lower and higher; rank, select and
+ * {@link #countRange(Comparable, Comparable)}; fail-fast iterators in both directions; the range views
+ * {@link #subSet(Comparable, boolean, Comparable, boolean)}, {@link #headSet(Comparable, boolean)} and
+ * {@link #tailSet(Comparable, boolean)}; and the queries on the shape of the tree. It does <em>not</em> support
+ * {@code snapshot}, {@code split} and {@code join} and the set operations built on them, multisets, aggregates,
+ * metrics, deferred or adaptive rebalancing, and write-ahead logs. They all rely on nodes being shared between
+ * trees or carrying more than a key, which the fixed-size nodes of the arena do not allow.</p>
+ *
+ * <p>Keys are stored with a {@link KeyCodec}, so they must have a fixed width. Every node takes
+ * {@code 16 + codec.width()} bytes: the indices of its two children, its height, the size of its subtree (for
+ * {@link #rank(Comparable)} and {@link #select(int)}) and its key. Nodes are allocated from an arena of chunks of
+ * {@code 2^16} nodes each, which is only ever extended one chunk at a time; the slots of deleted nodes are
+ * chained into a free list and reused before the arena grows. {@link #clear()} drops every chunk, and their
+ * memory is returned once the buffers are collected.</p>
+ *
+ * <p>Searches compare keys in place through {@link KeyCodec#compare(Comparable, ByteBuffer, int)}, so they only
+ * decode the key they end up returning.</p>
+ *
+ * @author Obinna Anadu
+ *
+ * @see AVLGTree
+ * @see KeyCodec
+ */
+public class OffHeapAVLGTree<T extends Comparable<T>> implements Iterable<T> {
+
+    private static final int NIL = -1;
+    private static final int CHUNK_SHIFT = 16;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+    // Layout of a node inside its chunk.
+    private static final int LEFT = 0, RIGHT = 4, HEIGHT = 8, SIZE = 12, KEY = 16;
+
+    private final int maxImbalance;
+    private final KeyCodec<T> codec;
+    private final int nodeBytes;
+    private ByteBuffer[] chunks;
+    private int root;
+    private int used; // Slots [0, used) have been handed out at least once.
+    private int free; // Head of the free list of deleted slots, chained through the left links.
+    private int modCount;
+    private T removed; // Set by delete(int, T) when it finds the key.
+
+    /**
+     * The class constructor provides the tree with the maximum imbalance allowed and the codec of its keys.
+     * @param maxImbalance The maximum imbalance allowed by the AVL-G Tree.
+     * @param codec The {@link KeyCodec} that stores the keys in the arena.
+     * @throws InvalidBalanceException if maxImbalance is a value smaller than 1.
+     */
+    public OffHeapAVLGTree(int maxImbalance, KeyCodec<T> codec) throws InvalidBalanceException {
+        if (maxImbalance < 1) {
+            throw new InvalidBalanceException("");
+        }
+        this.maxImbalance = maxImbalance;
+        this.codec = codec;
+        this.nodeBytes = KEY + codec.width();
+        chunks = new ByteBuffer[1];
+        root = NIL;
+        free = NIL;
+    }
+
+    /* ******************************************************** *
+     * ************************* ARENA ********************** *
+     * ******************************************************** */
+
+    private ByteBuffer chunk(int node) {
+        return chunks[node >>> CHUNK_SHIFT];
+    }
+
+    private int offset(int node) {
+        return (node & CHUNK_MASK) * nodeBytes;
+    }
+
+    private int left(int node) {
+        return chunk(node).getInt(offset(node) + LEFT);
+    }
+
+    private int right(int node) {
+        return chunk(node).getInt(offset(node) + RIGHT);
+    }
+
+    private void setLeft(int node, int child) {
+        chunk(node).putInt(offset(node) + LEFT, child);
+    }
+
+    private void setRight(int node, int child) {
+        chunk(node).putInt(offset(node) + RIGHT, child);
+    }
+
+    private int height(int node) {
+        return (node != NIL) ? chunk(node).getInt(offset(node) + HEIGHT) : -1;
+    }
+
+    private int size(int node) {
+        return (node != NIL) ? chunk(node).getInt(offset(node) + SIZE) : 0;
+    }
+
+    private T key(int node) {
+        return codec.read(chunk(node), offset(node) + KEY);
+    }
+
+    private int compare(T key, int node) {
+        return codec.compare(key, chunk(node), offset(node) + KEY);
+    }
+
+    private int allocate(T key) {
+        int node;
+        if (free != NIL) {
+            node = free;
+            free = left(node);
+        } else {
+            int index = used >>> CHUNK_SHIFT;
+            if (index == chunks.length) {
+                ByteBuffer[] grown = new ByteBuffer[chunks.length * 2];
+                System.arraycopy(chunks, 0, grown, 0, chunks.length);
+                chunks = grown;
+            }
+            if (chunks[index] == null) {
+                chunks[index] = ByteBuffer.allocateDirect(nodeBytes << CHUNK_SHIFT).order(ByteOrder.nativeOrder());
+            }
+            node = used++;
+        }
+        ByteBuffer buf = chunk(node);
+        int off = offset(node);
+        buf.putInt(off + LEFT, NIL);
+        buf.putInt(off + RIGHT, NIL);
+        buf.putInt(off + HEIGHT, 0);
+        buf.putInt(off + SIZE, 1);
+        codec.write(buf, off + KEY, key);
+        return node;
+    }
+
+    private void release(int node) {
+        setLeft(node, free);
+        free = node;
+    }
+
+    /* ******************************************************** *
+     * ************************ UPDATES *********************** *
+     * ******************************************************** */
+
+    /**
+     * Insert key in the tree. Inserting a key that is already stored has no effect.
+     * @param key The key to insert in the tree.
+     */
+    public void insert(T key) {
+        root = insert(root, key);
+    }
+
+    private int insert(int node, T key) {
+        if (node == NIL) {
+            modCount++;
+            return allocate(key);
+        }
+        int compare = compare(key, node);
+        if (compare < 0) {
+            setLeft(node, insert(left(node), key));
+        } else if (compare > 0) {
+            setRight(node, insert(right(node), key));
+        } else {
+            return node;
+        }
+        return rebalance(node);
+    }
+
+    private void update(int node) {
+        int l = left(node), r = right(node);
+        ByteBuffer buf = chunk(node);
+        int off = offset(node);
+        buf.putInt(off + HEIGHT, Math.max(height(l), height(r)) + 1);
+        buf.putInt(off + SIZE, size(l) + size(r) + 1);
+    }
+
+    private int balance(int node) {
+        return height(left(node)) - height(right(node));
+    }
+
+    private int rebalance(int node) {
+        update(node);
+        int balance = balance(node);
+        if (balance > maxImbalance) {
+            if (balance(left(node)) >= 0) {
+                node = rotateR(node);
+            } else {
+                setLeft(node, rotateL(left(node)));
+                node = rotateR(node);
+            }
+        } else if (balance < -maxImbalance) {
+            if (balance(right(node)) <= 0) {
+                node = rotateL(node);
+            } else {
+                setRight(node, rotateR(right(node)));
+                node = rotateL(node);
+            }
+        }
+        return node;
+    }
+
+    private int rotateL(int node) {
+        int temp = right(node);
+        setRight(node, left(temp));
+        setLeft(temp, node);
+        update(node);
+        update(temp);
+        return temp;
+    }
+
+    private int rotateR(int node) {
+        int temp = left(node);
+        setLeft(node, right(temp));
+        setRight(temp, node);
+        update(node);
+        update(temp);
+        return temp;
+    }
+
+    /**
+     * Delete the key from the data structure and return it to the caller.
+     * @param key The key to delete from the structure.
+     * @return The key that was removed, or {@code null} if the key was not found.
+     * @throws EmptyTreeException if the tree is empty.
+     */
+    public T delete(T key) throws EmptyTreeException {
+        if (root == NIL) {
+            throw new EmptyTreeException("null");
+        }
+        removed = null;
+        root = delete(root, key);
+        if (removed != null) {
+            modCount++;
+        }
+        return removed;
+    }
+
+    private int delete(int node, T key) {
+        if (node == NIL) {
+            return NIL;
+        }
+        int compare = compare(key, node);
+        if (compare < 0) {
+            setLeft(node, delete(left(node), key));
+        } else if (compare > 0) {
+            setRight(node, delete(right(node), key));
+        } else {
+            removed = key(node);
+            int l = left(node), r = right(node);
+            if (l == NIL || r == NIL) {
+                release(node);
+                return (l != NIL) ? l : r;
+            }
+            int succ = r;
+            while (left(succ) != NIL) {
+                succ = left(succ);
+            }
+            ByteBuffer to = chunk(node), from = chunk(succ);
+            int toOff = offset(node) + KEY, fromOff = offset(succ) + KEY;
+            for (int i = 0; i < codec.width(); i++) {
+                to.put(toOff + i, from.get(fromOff + i));
+            }
+            setRight(node, deleteMin(r));
+        }
+        return rebalance(node);
+    }
+
+    private int deleteMin(int node) {
+        if (left(node) == NIL) {
+            int child = right(node);
+            release(node);
+            return child;
+        }
+        setLeft(node, deleteMin(left(node)));
+        return rebalance(node);
+    }
+
+    /**
+     * <p>Empties the tree of all its elements and drops its arena. The off-heap memory is returned to the operating
+     * system once the garbage collector has reclaimed the old buffers.</p>
+     */
+    public void clear() {
+        chunks = new ByteBuffer[1];
+        root = NIL;
+        used = 0;
+        free = NIL;
+        modCount++;
+    }
+
+    /* ******************************************************** *
+     * ************************ QUERIES *********************** *
+     * ******************************************************** */
+
+    /**
+     * <p>Search for key in the tree. Return a reference to it if it's in there,
+     * or {@code null} otherwise.</p>
+     * @param key The key to search for.
+     * @return The stored key equal to key (decoded from the arena), or {@code null} otherwise.
+     * @throws EmptyTreeException if the tree is empty.
+     */
+    public T search(T key) throws EmptyTreeException {
+        if (root == NIL) {
+            throw new EmptyTreeException("empty");
+        }
+        return get(key);
+    }
+
+    /**
+     * Look up key in the tree without caring whether the tree is empty.
+     * @param key The key to search for.
+     * @return The stored key equal to key (decoded from the arena), or {@code null} if there is none.
+     */
+    public T get(T key) {
+        int node = findNode(key);
+        return (node != NIL) ? key(node) : null;
+    }
+
+    /**
+     * Query the tree for membership of key.
+     * @param key The key to search for.
+     * @return {@code true} if a key that compares equal to key is stored in the tree, {@code false} otherwise.
+     */
+    public boolean contains(T key) {
+        return findNode(key) != NIL;
+    }
+
+    private int findNode(T key) {
+        int node = root;
+        while (node != NIL) {
+            int compare = compare(key, node);
+            if (compare == 0) {
+                return node;
+            }
+            node = (compare < 0) ? left(node) : right(node);
+        }
+        return NIL;
+    }
+
+    /**
+     * Find the largest key in the tree that is smaller than or equal to key.
+     * @param key The key to search for.
+     * @return The floor of key in the tree, or {@code null} if every stored key is larger than key.
+     */
+    public T floor(T key) {
+        int node = floorNode(key, true);
+        return (node != NIL) ? key(node) : null;
+    }
+
+    /**
+     * Find the smallest key in the tree that is larger than or equal to key.
+     * @param key The key to search for.
+     * @return The ceiling of key in the tree, or {@code null} if every stored key is smaller than key.
+     */
+    public T ceiling(T key) {
+        int node = ceilingNode(key, true);
+        return (node != NIL) ? key(node) : null;
+    }
+
+    /**
+     * Find the largest key in the tree that is strictly smaller than key.
+     * @param key The key to search for.
+     * @return The largest key smaller than key, or {@code null} if there is none.
+     */
+    public T lower(T key) {
+        int node = floorNode(key, false);
+        return (node != NIL) ? key(node) : null;
+    }
+
+    /**
+     * Find the smallest key in the tree that is strictly larger than key.
+     * @param key The key to search for.
+     * @return The smallest key larger than key, or {@code null} if there is none.
+     */
+    public T higher(T key) {
+        int node = ceilingNode(key, false);
+        return (node != NIL) ? key(node) : null;
+    }
+
+    // The node of the largest key smaller than key, or equal to it if inclusive; NIL if there is none.
+    private int floorNode(T key, boolean inclusive) {
+        int node = root, best = NIL;
+        while (node != NIL) {
+            int compare = compare(key, node);
+            if (compare == 0 && inclusive) {
+                return node;
+            } else if (compare > 0) {
+                best = node;
+                node = right(node);
+            } else {
+                node = left(node);
+            }
+        }
+        return best;
+    }
+
+    // The node of the smallest key larger than key, or equal to it if inclusive; NIL if there is none.
+    private int ceilingNode(T key, boolean inclusive) {
+        int node = root, best = NIL;
+        while (node != NIL) {
+            int compare = compare(key, node);
+            if (compare == 0 && inclusive) {
+                return node;
+            } else if (compare < 0) {
+                best = node;
+                node = left(node);
+            } else {
+                node = right(node);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Return the number of keys in the tree that are strictly smaller than key, in O(log n).
+     * @param key The key whose rank we want.
+     * @return The number of keys in the tree smaller than key.
+     */
+    public int rank(T key) {
+        return rank(key, false);
+    }
+
+    // The number of keys smaller than key, or smaller than or equal to it if inclusive.
+    private int rank(T key, boolean inclusive) {
+        int r = 0, node = root;
+        while (node != NIL) {
+            int compare = compare(key, node);
+            if (compare <= 0) {
+                if (compare == 0) {
+                    return r + size(left(node)) + (inclusive ? 1 : 0);
+                }
+                node = left(node);
+            } else {
+                r += size(left(node)) + 1;
+                node = right(node);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Count the keys in the closed range [lo, hi] in O(log n), with two rank queries.
+     * @param lo The smallest key of the range.
+     * @param hi The largest key of the range.
+     * @return The number of keys k in the tree with lo &le; k &le; hi, or 0 if lo is larger than hi.
+     */
+    public int countRange(T lo, T hi) {
+        if (lo.compareTo(hi) > 0) {
+            return 0;
+        }
+        return rank(hi, true) - rank(lo, false);
+    }
+
+    /**
+     * Return the key of rank k, that is, the (k+1)-th smallest key in the tree, in O(log n).
+     * @param k The zero-based rank of the key we want.
+     * @return The key with exactly k keys smaller than it in the tree.
+     * @throws IndexOutOfBoundsException if k is negative or not smaller than {@link #getCount()}.
+     */
+    public T select(int k) {
+        if (k < 0 || k >= size(root)) {
+            throw new IndexOutOfBoundsException("Rank " + k + " out of range for a tree of " + size(root) + " keys.");
+        }
+        int node = root;
+        while (true) {
+            int l = size(left(node));
+            if (k < l) {
+                node = left(node);
+            } else if (k > l) {
+                k -= l + 1;
+                node = right(node);
+            } else {
+                return key(node);
+            }
+        }
+    }
+
+    /**
+     * <p>Return a lazy, fail-fast iterator over the keys of the tree in ascending order. Keys are decoded from the
+     * arena one at a time, as they are returned.</p>
+     * @return An {@link Iterator} over the keys of the tree in ascending order.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return new ArenaIterator(null, false, null, false, false);
+    }
+
+    /**
+     * Return a lazy, fail-fast iterator over the keys of the tree in descending order.
+     * @return An {@link Iterator} over the keys of the tree in descending order.
+     * @see #iterator()
+     */
+    public Iterator<T> descendingIterator() {
+        return new ArenaIterator(null, false, null, false, true);
+    }
+
+    /**
+     * Return a view of the keys in the half-open range [lo, hi).
+     * @param lo The smallest key of the view.
+     * @param hi The key just above the largest key of the view.
+     * @return A {@link RangeView} over the keys k with lo &le; k &lt; hi.
+     */
+    public RangeView subSet(T lo, T hi) {
+        return subSet(lo, true, hi, false);
+    }
+
+    /**
+     * <p>Return a view of the keys between lo and hi. The view does not copy anything: its iterators walk the
+     * arena itself and stop as soon as they leave the range, so a scan costs O(log n + k) time and
+     * O(log n) memory for k keys in the range.</p>
+     * @param lo The lower end of the view.
+     * @param loInclusive Whether lo itself belongs to the view.
+     * @param hi The upper end of the view.
+     * @param hiInclusive Whether hi itself belongs to the view.
+     * @return A {@link RangeView} over the keys between lo and hi.
+     */
+    public RangeView subSet(T lo, boolean loInclusive, T hi, boolean hiInclusive) {
+        return new RangeView(lo, loInclusive, hi, hiInclusive);
+    }
+
+    /**
+     * Return a view of the keys strictly smaller than hi.
+     * @param hi The key just above the largest key of the view.
+     * @return A {@link RangeView} over the keys k with k &lt; hi.
+     */
+    public RangeView headSet(T hi) {
+        return headSet(hi, false);
+    }
+
+    /**
+     * Return a view of the keys smaller than (or, if inclusive, equal to) hi.
+     * @param hi The upper end of the view.
+     * @param inclusive Whether hi itself belongs to the view.
+     * @return A {@link RangeView} over the keys up to hi.
+     */
+    public RangeView headSet(T hi, boolean inclusive) {
+        return new RangeView(null, false, hi, inclusive);
+    }
+
+    /**
+     * Return a view of the keys larger than or equal to lo.
+     * @param lo The smallest key of the view.
+     * @return A {@link RangeView} over the keys k with k &ge; lo.
+     */
+    public RangeView tailSet(T lo) {
+        return tailSet(lo, true);
+    }
+
+    /**
+     * Return a view of the keys larger than (or, if inclusive, equal to) lo.
+     * @param lo The lower end of the view.
+     * @param inclusive Whether lo itself belongs to the view.
+     * @return A {@link RangeView} over the keys from lo upwards.
+     */
+    public RangeView tailSet(T lo, boolean inclusive) {
+        return new RangeView(lo, inclusive, null, false);
+    }
+
+    /**
+     * <p>{@link RangeView} is a live, read-through view of the keys of an {@link OffHeapAVLGTree} that fall inside
+     * a range. A {@code null} end means that the range is unbounded on that side. Changes to the tree are visible
+     * through views created before them, but iterators obtained from a view fail fast like those of the tree.</p>
+     */
+    public class RangeView implements Iterable<T> {
+        private final T lo, hi;
+        private final boolean loInclusive, hiInclusive;
+
+        private RangeView(T lo, boolean loInclusive, T hi, boolean hiInclusive) {
+            this.lo = lo;
+            this.loInclusive = loInclusive;
+            this.hi = hi;
+            this.hiInclusive = hiInclusive;
+        }
+
+        /**
+         * Return a lazy, fail-fast iterator over the keys of this view in ascending order.
+         * @return An {@link Iterator} over the keys in the range.
+         */
+        @Override
+        public Iterator<T> iterator() {
+            return new ArenaIterator(lo, loInclusive, hi, hiInclusive, false);
+        }
+
+        /**
+         * Return a lazy, fail-fast iterator over the keys of this view in descending order.
+         * @return An {@link Iterator} over the keys in the range, largest first.
+         */
+        public Iterator<T> descendingIterator() {
+            return new ArenaIterator(lo, loInclusive, hi, hiInclusive, true);
+        }
+
+        /**
+         * Count the keys in this view in O(log n), using the subtree sizes of the tree.
+         * @return The number of keys of the tree that fall inside the range.
+         */
+        public int size() {
+            int upper = (hi != null) ? rank(hi, hiInclusive) : getCount();
+            int lower = (lo != null) ? rank(lo, !loInclusive) : 0;
+            return Math.max(upper - lower, 0);
+        }
+
+        /**
+         * Query the view for emptiness.
+         * @return {@code true} if no key of the tree falls inside the range, {@code false} otherwise.
+         */
+        public boolean isEmpty() {
+            return size() == 0;
+        }
+
+        /**
+         * Query the view for membership of key.
+         * @param key The key to search for.
+         * @return {@code true} if key is in the range and stored in the tree, {@code false} otherwise.
+         */
+        public boolean contains(T key) {
+            return !tooLow(key) && !tooHigh(key) && OffHeapAVLGTree.this.contains(key);
+        }
+
+        private boolean tooLow(T key) {
+            if (lo == null) {
+                return false;
+            }
+            int compare = key.compareTo(lo);
+            return compare < 0 || (compare == 0 && !loInclusive);
+        }
+
+        private boolean tooHigh(T key) {
+            if (hi == null) {
+                return false;
+            }
+            int compare = key.compareTo(hi);
+            return compare > 0 || (compare == 0 && !hiInclusive);
+        }
+    }
+
+    /* Same walk as AVLGTree's iterators, over arena indices: the stack holds the nodes whose key has not been
+     * returned yet but whose subtree on the "before" side has been (or is being) consumed. Only the initial seek
+     * compares keys in place against the near end of the range; after that, each next() decodes one key and checks
+     * it against the far end.
+     */
+    private class ArenaIterator implements Iterator<T> {
+        private final RangeView range;
+        private final boolean descending;
+        private final int[] stack = new int[height(root) + 1];
+        private final int expectedModCount = modCount;
+        private int top;
+
+        private ArenaIterator(T lo, boolean loInclusive, T hi, boolean hiInclusive, boolean descending) {
+            this.range = new RangeView(lo, loInclusive, hi, hiInclusive);
+            this.descending = descending;
+            if (descending) {
+                seek(hi, hiInclusive);
+            } else {
+                seek(lo, loInclusive);
+            }
+        }
+
+        // Push the path to the first key at or past from, in iteration order.
+        private void seek(T from, boolean inclusive) {
+            int node = root;
+            while (node != NIL) {
+                if (from != null) {
+                    int compare = compare(from, node);
+                    boolean before = descending ? compare < 0 : compare > 0;
+                    if (before || (compare == 0 && !inclusive)) {
+                        node = descending ? left(node) : right(node);
+                        continue;
+                    }
+                }
+                stack[top++] = node;
+                node = descending ? right(node) : left(node);
+            }
+        }
+
+        private void pushSpine(int node) {
+            while (node != NIL) {
+                stack[top++] = node;
+                node = descending ? right(node) : left(node);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (top == 0) {
+                return false;
+            }
+            T bound = descending ? range.lo : range.hi;
+            if (bound != null) {
+                int compare = compare(bound, stack[top - 1]);
+                boolean past = descending ? compare > 0 : compare < 0;
+                boolean open = descending ? !range.loInclusive : !range.hiInclusive;
+                if (past || (compare == 0 && open)) {
+                    top = 0; // Past the end of the range; nothing further can be in it.
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public T next() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int node = stack[--top];
+            pushSpine(descending ? left(node) : right(node));
+            return key(node);
+        }
+    }
+
+    /**
+     * Retrieves the maximum imbalance parameter.
+     * @return The maximum imbalance parameter provided as a constructor parameter.
+     */
+    public int getMaxImbalance() {
+        return maxImbalance;
+    }
+
+    /**
+     * Return the height of the tree, or -1 if it is empty.
+     * @return The height of the tree.
+     */
+    public int getHeight() {
+        return height(root);
+    }
+
+    /**
+     * Query the tree for emptiness.
+     * @return {@code true} if the tree is empty, {@code false} otherwise.
+     */
+    public boolean isEmpty() {
+        return root == NIL;
+    }
+
+    /**
+     * Return the key at the tree's root node.
+     * @return The key at the tree's root node.
+     * @throws EmptyTreeException if the tree is empty.
+     */
+    public T getRoot() throws EmptyTreeException {
+        if (isEmpty()) {
+            throw new EmptyTreeException("empty tree");
+        }
+        return key(root);
+    }
+
+    /**
+     * <p>Return the number of elements in the tree.</p>
+     * @return The number of elements in the tree.
+     */
+    public int getCount() {
+        return size(root);
+    }
+
+    /**
+     * Return the number of bytes of off-heap memory that the arena currently holds, free slots included.
+     * @return The size of the arena, in bytes.
+     */
+    public long getArenaBytes() {
+        long bytes = 0;
+        for (ByteBuffer chunk : chunks) {
+            if (chunk != null) {
+                bytes += chunk.capacity();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Establishes whether the tree <em>globally</em> satisfies the BST condition.
+     * @return {@code true} if the tree satisfies the Binary Search Tree property, {@code false} otherwise.
+     */
+    public boolean isBST() {
+        T prev = null;
+        for (T key : this) {
+            if (prev != null && prev.compareTo(key) >= 0) {
+                return false;
+            }
+            prev = key;
+        }
+        return true;
+    }
+
+    /**
+     * Establishes whether the tree <em>globally</em> satisfies the AVL-G condition.
+     * @return {@code true} if the tree satisfies the balance requirements of an AVL-G tree, {@code false} otherwise.
+     */
+    public boolean isAVLGBalanced() {
+        return checkedHeight(root) != Integer.MIN_VALUE;
+    }
+
+    // The recomputed height of the subtree, or Integer.MIN_VALUE if some node in it is out of balance.
+    private int checkedHeight(int node) {
+        if (node == NIL) {
+            return -1;
+        }
+        int l = checkedHeight(left(node)), r = checkedHeight(right(node));
+        if (l == Integer.MIN_VALUE || r == Integer.MIN_VALUE || Math.abs(l - r) > maxImbalance) {
+            return Integer.MIN_VALUE;
+        }
+        return Math.max(l, r) + 1;
+    }
+}
@@ -0,0 +1,568 @@
+package avlg;
+
+import avlg.exceptions.EmptyTreeException;
+import avlg.exceptions.InvalidBalanceException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>{@link ShardedAVLGTree} is a thread-safe sorted set that splits its key space into ranges, or <em>shards</em>,
+ * each held by its own {@link AVLGTree} behind its own lock. A write locks only the shard its key falls in, so
+ * writers working on different parts of the key space never wait for each other, and throughput grows with the
+ * number of cores as long as the writes spread over the shards. Reads of a single shard take its read lock and
+ * run alongside each other.</p>
+ *
+ * <p>Shard boundaries move by themselves. A shard that grows past twice the average size is split in two around
+ * its median, and the two adjacent shards with the fewest keys between them are merged back into one, both with
+ * {@link AVLGTree#split(Comparable)} and {@link AVLGTree#join(AVLGTree, Comparable, AVLGTree)}, so moving a
+ * boundary costs O(log n) no matter how many keys change shards. The tree starts with a single shard and splits it
+ * like that until it reaches the number of shards it was asked for; a constructor also takes initial boundaries
+ * for key spaces whose distribution is known in advance.</p>
+ *
+ * <p>Queries that span shards, such as {@link #rank(Comparable)}, {@link #select(int)} and
+ * {@link #getCount()}, lock the shards they read in ascending order and see a consistent state of all of them.
+ * Iterators are weakly consistent: they walk a {@link AVLGTree#snapshot()} of one shard at a time, never throw a
+ * {@link java.util.ConcurrentModificationException}, and may or may not see writes made after they were created.</p>
+ *
+ * @param <T> The type of the keys.
+ *
+ * @author Obinna Anadu
+ *
+ * @see AVLGTree
+ * @see ConcurrentAVLGTree
+ * @see CopyOnWriteAVLGTree
+ */
+public class ShardedAVLGTree<T extends Comparable<T>> implements Iterable<T> {
+
+    // Shards smaller than this are never split: a split would cost more than the contention it saves.
+    private static final int MIN_SHARD_SIZE = 1 << 10;
+
+    /* shards is never changed in place: resharding builds a new array and publishes it. Operations read it without
+     * any lock, so that they share nothing but the shards they touch, then lock the shards they need and check that
+     * none of them was retired meanwhile; if one was, they unlock and start over with the new array. Resharding
+     * write-locks every shard of the array it replaces, and retires the shards it drops before publishing the new
+     * array, so a shard that is still live holds the same range of keys as in the latest array. Operations that lock
+     * several shards, and resharding, always lock them in ascending order, and writers lock only one, so none of
+     * them deadlock.
+     */
+    private volatile Shard<T>[] shards;
+    private final AtomicBoolean resharding = new AtomicBoolean();
+    private final int maxImbalance;
+    private final int target;
+
+    private static final class Shard<T extends Comparable<T>> {
+        private final AVLGTree<T> tree;
+        private final T lower; // The smallest key the shard may hold, or null for the first shard.
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private volatile int size; // Mirrors tree.getCount(), for the resharding heuristics to read without locking.
+        private boolean retired; // Set by resharding once the shard is no longer in use; guarded by lock.
+
+        private Shard(AVLGTree<T> tree, T lower) {
+            this.tree = tree;
+            this.lower = lower;
+            this.size = tree.getCount();
+        }
+    }
+
+    /**
+     * Create an empty tree that will spread its keys over the given number of shards as it grows.
+     * @param maxImbalance The maximum imbalance allowed by the AVL-G tree of every shard.
+     * @param shards The number of shards to aim for; the number of cores that write is a good choice.
+     * @throws InvalidBalanceException if maxImbalance is a value smaller than 1.
+     * @throws IllegalArgumentException if shards is smaller than 1.
+     */
+    public ShardedAVLGTree(int maxImbalance, int shards) throws InvalidBalanceException {
+        this(maxImbalance, shards, new ArrayList<>());
+    }
+
+    /**
+     * Create an empty tree whose shards start out split at the given keys: one shard for the keys below the
+     * smallest boundary, one between every two consecutive boundaries, and one for the keys from the largest
+     * boundary upwards. The boundaries move later like those of any other {@link ShardedAVLGTree}.
+     * @param maxImbalance The maximum imbalance allowed by the AVL-G tree of every shard.
+     * @param boundaries The smallest key of every shard but the first.
+     * @throws InvalidBalanceException if maxImbalance is a value smaller than 1.
+     */
+    public ShardedAVLGTree(int maxImbalance, Collection<T> boundaries) throws InvalidBalanceException {
+        this(maxImbalance, new TreeSet<>(boundaries).size() + 1, boundaries);
+    }
+
+    @SuppressWarnings("unchecked")
+    private ShardedAVLGTree(int maxImbalance, int target, Collection<T> boundaries) throws InvalidBalanceException {
+        if (target < 1) {
+            throw new IllegalArgumentException("A tree needs at least one shard, not " + target + ".");
+        }
+        this.maxImbalance = maxImbalance;
+        this.target = target;
+        List<Shard<T>> initial = new ArrayList<>();
+        initial.add(new Shard<>(new AVLGTree<T>(maxImbalance), null));
+        for (T lower : new TreeSet<>(boundaries)) {
+            initial.add(new Shard<>(new AVLGTree<T>(maxImbalance), lower));
+        }
+        shards = initial.toArray(new Shard[0]);
+    }
+
+    // The index of the shard of current whose range holds key: the last one whose lower bound is not larger than key.
+    private static <T extends Comparable<T>> int route(Shard<T>[] current, T key) {
+        int lo = 1, hi = current.length - 1, found = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (current[mid].lower.compareTo(key) <= 0) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    // Lock and return the live shard whose range holds key, with its write lock if write is set, or its read lock.
+    private Shard<T> lockShard(T key, boolean write) {
+        while (true) {
+            Shard<T>[] current = shards;
+            Shard<T> shard = current[route(current, key)];
+            Lock lock = write ? shard.lock.writeLock() : shard.lock.readLock();
+            lock.lock();
+            if (!shard.retired) {
+                return shard;
+            }
+            lock.unlock();
+        }
+    }
+
+    /* Read-lock the shards from the first one up to the one whose range holds key, or all of them if key is null, in
+     * ascending order, and return the array they were locked in. Since none of them is retired, they are the first
+     * shards of the latest array too.
+     */
+    private Shard<T>[] lockShards(T key) {
+        while (true) {
+            Shard<T>[] current = shards;
+            int last = (key == null) ? current.length - 1 : route(current, key);
+            int locked = 0;
+            while (locked <= last) {
+                current[locked].lock.readLock().lock();
+                if (current[locked].retired) {
+                    current[locked].lock.readLock().unlock();
+                    break;
+                }
+                locked++;
+            }
+            if (locked > last) {
+                return current;
+            }
+            unlockShards(current, locked - 1);
+        }
+    }
+
+    private static <T extends Comparable<T>> void unlockShards(Shard<T>[] current, int last) {
+        for (int i = last; i >= 0; i--) {
+            current[i].lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Insert key in the tree. Only the shard that key falls in is locked.
+     * @param key The key to insert in the tree.
+     */
+    public void insert(T key) {
+        boolean split;
+        Shard<T> shard = lockShard(key, true);
+        try {
+            shard.tree.insert(key);
+            shard.size = shard.tree.getCount();
+            split = isSkewed(shard.size);
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+        if (split) {
+            reshard();
+        }
+    }
+
+    /**
+     * Delete the key from the tree and return it to the caller. Only the shard that key falls in is locked.
+     * @param key The key to delete from the structure.
+     * @return The key that was removed, or {@code null} if the key was not found.
+     * @throws EmptyTreeException if the tree is empty.
+     */
+    public T delete(T key) throws EmptyTreeException {
+        Shard<T> shard = lockShard(key, true);
+        try {
+            if (shard.tree.isEmpty()) {
+                if (approximateCount() == 0) {
+                    throw new EmptyTreeException("empty");
+                }
+                return null;
+            }
+            T removed = shard.tree.delete(key);
+            shard.size = shard.tree.getCount();
+            return removed;
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * <p>Empties the tree of all its elements. The shards keep their boundaries.</p>
+     */
+    public void clear() {
+        while (true) {
+            Shard<T>[] current = shards;
+            int locked = 0;
+            while (locked < current.length) {
+                current[locked].lock.writeLock().lock();
+                if (current[locked].retired) {
+                    current[locked].lock.writeLock().unlock();
+                    break;
+                }
+                locked++;
+            }
+            if (locked == current.length) {
+                for (Shard<T> shard : current) {
+                    shard.tree.clear();
+                    shard.size = 0;
+                }
+            }
+            for (int i = locked - 1; i >= 0; i--) {
+                current[i].lock.writeLock().unlock();
+            }
+            if (locked == current.length) {
+                return;
+            }
+        }
+    }
+
+    // Called without any lock, so it only reads the volatile sizes; resharding checks again under the lock.
+    private boolean isSkewed(int size) {
+        if (size <= MIN_SHARD_SIZE) {
+            return false;
+        }
+        Shard<T>[] current = shards;
+        return current.length < target || size > 2 * (approximateCount() / current.length);
+    }
+
+    private long approximateCount() {
+        long count = 0;
+        for (Shard<T> shard : shards) {
+            count += shard.size;
+        }
+        return count;
+    }
+
+    /* Split the largest shard around its median and, if that makes one shard too many, merge the adjacent pair with
+     * the fewest keys. Only one thread reshards at a time; the others carry on instead of queueing up behind it.
+     */
+    @SuppressWarnings("unchecked")
+    private void reshard() {
+        if (!resharding.compareAndSet(false, true)) {
+            return;
+        }
+        Shard<T>[] current = shards; // Only this method replaces the array, and only one thread runs it at a time.
+        for (Shard<T> shard : current) {
+            shard.lock.writeLock().lock();
+        }
+        try {
+            int largest = 0;
+            for (int i = 1; i < current.length; i++) {
+                if (current[i].size > current[largest].size) {
+                    largest = i;
+                }
+            }
+            if (!isSkewed(current[largest].size)) {
+                return;
+            }
+            List<Shard<T>> next = new ArrayList<>(List.of(current));
+            Shard<T> big = next.get(largest);
+            AVLGTree<T> upper = big.tree.split(big.tree.select(big.size / 2 - 1));
+            next.set(largest, new Shard<>(big.tree, big.lower));
+            next.add(largest + 1, new Shard<>(upper, upper.select(0)));
+
+            if (next.size() > target) {
+                int pair = -1;
+                for (int i = 0; i + 1 < next.size(); i++) {
+                    if (i != largest && (pair < 0 || next.get(i).size + next.get(i + 1).size <
+                            next.get(pair).size + next.get(pair + 1).size)) {
+                        pair = i;
+                    }
+                }
+                next.set(pair, merge(next.get(pair), next.get(pair + 1)));
+                next.remove(pair + 1);
+            }
+            for (Shard<T> shard : current) {
+                shard.retired = !next.contains(shard);
+            }
+            shards = next.toArray(new Shard[0]);
+        } finally {
+            for (int i = current.length - 1; i >= 0; i--) {
+                current[i].lock.writeLock().unlock();
+            }
+            resharding.set(false);
+        }
+    }
+
+    // Always a new shard, even if b is empty, since the range of a live shard never changes.
+    private Shard<T> merge(Shard<T> a, Shard<T> b) {
+        if (b.tree.isEmpty()) {
+            return new Shard<>(a.tree, a.lower);
+        }
+        if (a.tree.isEmpty()) {
+            return new Shard<>(b.tree, a.lower);
+        }
+        T middle = b.tree.select(0);
+        try {
+            b.tree.delete(middle);
+        } catch (EmptyTreeException e) {
+            throw new IllegalStateException(e); // b is not empty.
+        }
+        return new Shard<>(AVLGTree.join(a.tree, middle, b.tree), a.lower);
+    }
+
+    /**
+     * <p>Search for key in the tree. Return a reference to it if it's in there,
+     * or {@code null} otherwise.</p>
+     * @param key The key to search for.
+     * @return key if key is in the tree, or {@code null} otherwise.
+     * @throws EmptyTreeException if the tree is empty.
+     */
+    public T search(T key) throws EmptyTreeException {
+        if (isEmpty()) {
+            throw new EmptyTreeException("empty");
+        }
+        return get(key);
+    }
+
+    /**
+     * Look up key in the tree without caring whether the tree is empty.
+     * @param key The key to search for.
+     * @return The key stored in the tree that compares equal to key, or {@code null} if there is none.
+     */
+    public T get(T key) {
+        Shard<T> shard = lockShard(key, false);
+        try {
+            return shard.tree.get(key);
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Query the tree for membership of key.
+     * @param key The key to search for.
+     * @return {@code true} if a key that compares equal to key is stored in the tree, {@code false} otherwise.
+     */
+    public boolean contains(T key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Find the largest key in the tree that is smaller than or equal to key, looking into the shards below key's
+     * own if it has none.
+     * @param key The key to search for.
+     * @return The floor of key in the tree, or {@code null} if every stored key is larger than key.
+     */
+    public T floor(T key) {
+        restart:
+        while (true) {
+            Shard<T>[] current = shards;
+            for (int i = route(current, key); i >= 0; i--) {
+                Shard<T> shard = current[i];
+                shard.lock.readLock().lock();
+                try {
+                    if (shard.retired) {
+                        continue restart;
+                    }
+                    T found = shard.tree.floor(key);
+                    if (found != null) {
+                        return found;
+                    }
+                } finally {
+                    shard.lock.readLock().unlock();
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Find the smallest key in the tree that is larger than or equal to key, looking into the shards above key's
+     * own if it has none.
+     * @param key The key to search for.
+     * @return The ceiling of key in the tree, or {@code null} if every stored key is smaller than key.
+     */
+    public T ceiling(T key) {
+        restart:
+        while (true) {
+            Shard<T>[] current = shards;
+            for (int i = route(current, key); i < current.length; i++) {
+                Shard<T> shard = current[i];
+                shard.lock.readLock().lock();
+                try {
+                    if (shard.retired) {
+                        continue restart;
+                    }
+                    T found = shard.tree.ceiling(key);
+                    if (found != null) {
+                        return found;
+                    }
+                } finally {
+                    shard.lock.readLock().unlock();
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * <p>Return the number of keys in the tree that are strictly smaller than key: the sizes of the shards below
+     * key's own, plus the rank of key within its shard. Those shards are read-locked together, so the answer is
+     * exact even while other threads write. Runs in O(s + log n) for s shards.</p>
+     * @param key The key whose rank we want.
+     * @return The number of keys in the tree smaller than key.
+     */
+    public int rank(T key) {
+        Shard<T>[] locked = lockShards(key);
+        int last = route(locked, key);
+        try {
+            int rank = 0;
+            for (int i = 0; i < last; i++) {
+                rank += locked[i].tree.getCount();
+            }
+            return rank + locked[last].tree.rank(key);
+        } finally {
+            unlockShards(locked, last);
+        }
+    }
+
+    /**
+     * Return the key of rank k, that is, the (k+1)-th smallest key in the tree, in O(s + log n) for s shards.
+     * @param k The zero-based rank of the key we want.
+     * @return The key with exactly k keys smaller than it in the tree.
+     * @throws IndexOutOfBoundsException if k is negative or not smaller than {@link #getCount()}.
+     */
+    public T select(int k) {
+        Shard<T>[] locked = lockShards(null);
+        try {
+            int skipped = 0;
+            for (Shard<T> shard : locked) {
+                int count = shard.tree.getCount();
+                if (k >= skipped && k - skipped < count) {
+                    return shard.tree.select(k - skipped);
+                }
+                skipped += count;
+            }
+            throw new IndexOutOfBoundsException("Rank " + k + " out of range for a tree of " + skipped + " keys.");
+        } finally {
+            unlockShards(locked, locked.length - 1);
+        }
+    }
+
+    /**
+     * <p>Return the number of elements in the tree, counted across all shards at once.</p>
+     * @return The number of elements in the tree.
+     */
+    public int getCount() {
+        Shard<T>[] locked = lockShards(null);
+        try {
+            int count = 0;
+            for (Shard<T> shard : locked) {
+                count += shard.tree.getCount();
+            }
+            return count;
+        } finally {
+            unlockShards(locked, locked.length - 1);
+        }
+    }
+
+    /**
+     * Query the tree for emptiness.
+     * @return {@code true} if the tree is empty, {@code false} otherwise.
+     */
+    public boolean isEmpty() {
+        return getCount() == 0;
+    }
+
+    /**
+     * Return the number of shards the key space is currently split into.
+     * @return The number of shards.
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Retrieves the maximum imbalance parameter.
+     * @return The maximum imbalance parameter of the tree of every shard.
+     */
+    public int getMaxImbalance() {
+        return maxImbalance;
+    }
+
+    /**
+     * Return a weakly consistent iterator over the keys of the tree in ascending order.
+     * @return An {@link Iterator} that walks the shards one snapshot at a time.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return new ShardIterator();
+    }
+
+    /* Walks a snapshot of one shard at a time. Once a shard is done, the next one is found by routing its upper
+     * bound through the current shards, so the iterator keeps going in order even if the boundaries move.
+     */
+    private class ShardIterator implements Iterator<T> {
+        private Iterator<T> current;
+        private T from; // Every key below from has been visited; null before the first shard.
+        private boolean last; // Whether current walks the last shard.
+
+        @Override
+        public boolean hasNext() {
+            while (current == null || !current.hasNext()) {
+                if (last) {
+                    return false;
+                }
+                advance();
+            }
+            return true;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        private void advance() {
+            while (true) {
+                Shard<T>[] all = shards;
+                int i = (from == null) ? 0 : route(all, from);
+                Shard<T> shard = all[i];
+                AVLGTree<T> snapshot;
+                shard.lock.writeLock().lock(); // snapshot() starts a new version of the tree, which is a write.
+                try {
+                    if (shard.retired) {
+                        continue;
+                    }
+                    snapshot = shard.tree.snapshot();
+                } finally {
+                    shard.lock.writeLock().unlock();
+                }
+                current = (from == null) ? snapshot.iterator() : snapshot.tailSet(from).iterator();
+                last = i == all.length - 1;
+                if (!last) {
+                    from = all[i + 1].lower;
+                }
+                return;
+            }
+        }
+    }
+}
@@ -4,7 +4,31 @@ import org.junit.Test;
 import avlg.exceptions.EmptyTreeException;
 import avlg.exceptions.InvalidBalanceException;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import javax.management.Attribute;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import static org.junit.Assert.*;
 
@@ -210,4 +234,1218 @@ public class StudentTests {
         assertTrue("After inserting " + NUMS + " - many random elements, it was determined that our AVL-3 tree" +
                 " did not satisfy the AVL-3 property!", tree.isAVLGBalanced());
     }
+
+    /* Insertions and deletions only touch the search path now, so a large sequential load should finish quickly
+     * and leave behind a tree that is still AVL-1. Duplicates and failed deletions must not change the count.
+     */
+    @Test
+    public void testLargeSequentialLoad() throws InvalidBalanceException, EmptyTreeException {
+        tree = new AVLGTree<>(1);
+        for (int i = 0; i < 100 * NUMS; i++)
+            tree.insert(i);
+        tree.insert(5);
+        assertEquals("Inserting a duplicate key should not change the count.", 100 * NUMS, tree.getCount());
+        assertNull("Deleting a key that is not in the tree should return null.", tree.delete(-1));
+        assertEquals("A failed deletion should not change the count.", 100 * NUMS, tree.getCount());
+        assertTrue("After a large sequential load, the AVL-1 tree was not balanced!", tree.isAVLGBalanced());
+        assertTrue("After a large sequential load, the AVL-1 tree height was too large!", tree.getHeight() <= 17);
+    }
+
+    /* Lookups go by compareTo, so a key that is equal to, but not the same object as, a stored key must be found.
+     * (Integer.valueOf does not cache 500, so the two are distinct objects.) floor and ceiling should land on the
+     * closest stored keys around a missing key.
+     */
+    @Test
+    public void testSearchByValue() throws InvalidBalanceException, EmptyTreeException {
+        tree = new AVLGTree<>(2);
+        for (int i = 0; i < NUMS; i += 2)
+            tree.insert(i);
+        assertEquals("search did not find a key that is equal to a stored one.", Integer.valueOf(500), tree.search(Integer.valueOf(500)));
+        assertTrue("contains did not find a stored key.", tree.contains(998));
+        assertFalse("contains found a key that was never inserted.", tree.contains(501));
+        assertNull("get found a key that was never inserted.", tree.get(501));
+        assertEquals("floor(501) should be 500.", Integer.valueOf(500), tree.floor(501));
+        assertEquals("ceiling(501) should be 502.", Integer.valueOf(502), tree.ceiling(501));
+        assertEquals("lower(500) should be 498.", Integer.valueOf(498), tree.lower(500));
+        assertEquals("higher(500) should be 502.", Integer.valueOf(502), tree.higher(500));
+        assertNull("No key is smaller than -1.", tree.floor(-1));
+        assertNull("No key is larger than " + NUMS + ".", tree.ceiling(NUMS));
+    }
+
+    /* Every node knows the size of its subtree, so rank and select are inverses of each other and
+     * countRange agrees with a brute-force count, no matter how many rotations the insertions triggered.
+     */
+    @Test
+    public void testRankAndSelect() throws InvalidBalanceException, EmptyTreeException {
+        tree = new AVLGTree<>(1);
+        for (int i = NUMS - 1; i >= 0; i--)
+            tree.insert(2 * i);
+        for (int i = 0; i < NUMS; i += 3)
+            tree.delete(2 * i);
+        for (int k = 0; k < tree.getCount(); k++)
+            assertEquals("rank(select(" + k + ")) should be " + k + ".", k, tree.rank(tree.select(k)));
+        int expected = 0;
+        for (int i = 100; i <= 300; i++)
+            if (tree.contains(i))
+                expected++;
+        assertEquals("countRange(100, 300) disagreed with a brute-force count.", expected, tree.countRange(100, 300));
+        assertEquals("rank of a key below every stored key should be 0.", 0, tree.rank(-5));
+        assertEquals("rank of a key above every stored key should be the count.", tree.getCount(), tree.rank(5 * NUMS));
+    }
+
+    /* The iterators walk the tree lazily, so an ascending scan must come out sorted, a range view must stop at its
+     * ends, and modifying the tree behind an iterator's back must make it throw.
+     */
+    @Test
+    public void testIteratorsAndRangeViews() throws InvalidBalanceException {
+        tree = new AVLGTree<>(2);
+        for (int i = 0; i < NUMS; i++)
+            tree.insert(r.nextInt(10 * NUMS));
+        Integer prev = null;
+        int seen = 0;
+        for (Integer key : tree) {
+            assertTrue("The in-order iterator returned " + key + " after " + prev + "!", prev == null || prev < key);
+            prev = key;
+            seen++;
+        }
+        assertEquals("The in-order iterator did not return every key.", tree.getCount(), seen);
+
+        AVLGTree<Integer>.RangeView view = tree.subSet(2 * NUMS, 4 * NUMS);
+        seen = 0;
+        for (Iterator<Integer> it = view.descendingIterator(); it.hasNext(); seen++) {
+            Integer key = it.next();
+            assertTrue("The range view returned " + key + ", which is outside of it!", key >= 2 * NUMS && key < 4 * NUMS);
+        }
+        assertEquals("The range view's size did not match the number of keys it returned.", view.size(), seen);
+
+        try {
+            for (Integer key : tree)
+                tree.insert(-key - 1);
+            fail("Inserting while iterating should have thrown a ConcurrentModificationException.");
+        } catch (ConcurrentModificationException ignored) {
+            // Expected.
+        }
+    }
+
+    /* Bulk loading takes the middle key as the root of every subtree, so the result must have the smallest height
+     * possible for its size. The unsorted variant has to sort and drop duplicates on its own.
+     */
+    @Test
+    public void testBulkLoad() throws InvalidBalanceException, EmptyTreeException {
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < NUMS; i++)
+            keys.add(3 * i);
+        tree = AVLGTree.fromSorted(keys, 1);
+        assertEquals("A bulk-loaded tree did not have the expected count.", NUMS, tree.getCount());
+        assertEquals("A bulk-loaded tree of " + NUMS + " keys should have the smallest possible height.", 9, tree.getHeight());
+        assertTrue("A bulk-loaded tree was not a BST!", tree.isBST());
+        assertTrue("A bulk-loaded tree was not AVL-1 balanced!", tree.isAVLGBalanced());
+        assertEquals("select on a bulk-loaded tree returned the wrong key.", Integer.valueOf(300), tree.select(100));
+        tree.insert(1);
+        assertEquals("Deleting from a bulk-loaded tree did not return the key.", Integer.valueOf(3), tree.delete(3));
+
+        keys.add(0);
+        Collections.shuffle(keys, r);
+        tree = AVLGTree.fromUnsorted(keys, 3);
+        assertEquals("Loading unsorted keys with one duplicate did not drop it.", NUMS, tree.getCount());
+        assertEquals("The smallest key of the unsorted load was not where expected.", Integer.valueOf(0), tree.select(0));
+        try {
+            AVLGTree.fromSorted(Arrays.asList(2, 1), 1);
+            fail("fromSorted accepted keys that were not in ascending order.");
+        } catch (IllegalArgumentException ignored) {
+            // Expected.
+        }
+    }
+
+    /* split and join must hand back valid AVL-G trees on both sides, and the set operations built on top of them
+     * must agree with java.util.TreeSet. Note that the set operations consume their inputs.
+     */
+    @Test
+    public void testSplitJoinAndSetAlgebra() throws InvalidBalanceException, EmptyTreeException {
+        tree = new AVLGTree<>(2);
+        for (int i = 0; i < NUMS; i++)
+            tree.insert(i);
+        AVLGTree<Integer> upper = tree.split(NUMS / 3);
+        assertEquals("After splitting at " + NUMS / 3 + ", the lower tree had the wrong count.", NUMS / 3 + 1, tree.getCount());
+        assertEquals("After splitting at " + NUMS / 3 + ", the upper tree had the wrong count.", NUMS - NUMS / 3 - 1, upper.getCount());
+        assertTrue("Splitting left an unbalanced tree behind!", tree.isAVLGBalanced() && upper.isAVLGBalanced());
+        upper.delete(NUMS / 3 + 1);
+        tree = AVLGTree.join(tree, NUMS / 3 + 1, upper);
+        assertEquals("Joining the two halves back did not restore every key.", NUMS, tree.getCount());
+        assertTrue("Joining produced an unbalanced tree!", tree.isBST() && tree.isAVLGBalanced());
+
+        TreeSet<Integer> evens = new TreeSet<>(), thirds = new TreeSet<>();
+        for (int i = 0; i < 10 * NUMS; i += 2)
+            evens.add(i);
+        for (int i = 0; i < 10 * NUMS; i += 3)
+            thirds.add(i);
+        TreeSet<Integer> expected = new TreeSet<>(evens);
+        expected.removeAll(thirds);
+        AVLGTree<Integer> difference = AVLGTree.difference(AVLGTree.fromSorted(evens, 2), AVLGTree.fromSorted(thirds, 2));
+        assertEquals("The difference of two trees had the wrong count.", expected.size(), difference.getCount());
+        assertTrue("The difference of two trees was unbalanced!", difference.isAVLGBalanced());
+        for (Integer key : expected)
+            assertTrue("The difference of two trees was missing " + key + ".", difference.contains(key));
+
+        expected = new TreeSet<>(evens);
+        expected.addAll(thirds);
+        AVLGTree<Integer> union = AVLGTree.union(AVLGTree.fromSorted(evens, 2), AVLGTree.fromSorted(thirds, 2));
+        assertEquals("The union of two trees had the wrong count.", expected.size(), union.getCount());
+        AVLGTree<Integer> intersection = AVLGTree.intersection(AVLGTree.fromSorted(evens, 2), AVLGTree.fromSorted(thirds, 2));
+        assertEquals("The intersection of two trees had the wrong count.", (10 * NUMS + 5) / 6, intersection.getCount());
+    }
+
+    /* A snapshot must keep showing the keys the tree had when it was taken, however much the tree changes
+     * (and rotates) afterwards, and it must refuse to be modified itself.
+     */
+    @Test
+    public void testSnapshotsAreImmutable() throws InvalidBalanceException, EmptyTreeException {
+        tree = new AVLGTree<>(1);
+        for (int i = 0; i < NUMS; i++)
+            tree.insert(i);
+        AVLGTree<Integer> snapshot = tree.snapshot();
+        for (int i = 0; i < NUMS; i += 2)
+            tree.delete(i);
+        for (int i = NUMS; i < 2 * NUMS; i++)
+            tree.insert(i);
+
+        assertEquals("A snapshot's count changed after the tree was modified.", NUMS, snapshot.getCount());
+        int expected = 0;
+        for (Integer key : snapshot)
+            assertEquals("A snapshot did not return the keys of the tree at the time it was taken.", Integer.valueOf(expected++), key);
+        assertTrue("A snapshot was not a balanced BST!", snapshot.isBST() && snapshot.isAVLGBalanced());
+        assertTrue("The tree itself was not a balanced BST after taking a snapshot!", tree.isBST() && tree.isAVLGBalanced());
+        assertEquals("The tree had the wrong count after being modified past a snapshot.", NUMS + NUMS / 2, tree.getCount());
+        try {
+            snapshot.insert(-1);
+            fail("Inserting into a snapshot should have thrown an UnsupportedOperationException.");
+        } catch (UnsupportedOperationException ignored) {
+            // Expected.
+        }
+    }
+
+    /* A snapshot of a tree that came out of split must stay unchanged after that tree is joined back and the
+     * result is written to: the two halves of a split must not share ownership of their nodes with anyone.
+     */
+    @Test
+    public void testSnapshotAfterSplitAndJoin() throws InvalidBalanceException, EmptyTreeException {
+        tree = new AVLGTree<>(1);
+        for (int i = 0; i < NUMS; i += 2)
+            tree.insert(i);
+        AVLGTree<Integer> upper = tree.split(NUMS / 2);
+        AVLGTree<Integer> snapshot = upper.snapshot();
+        List<Integer> expected = collect(snapshot);
+        tree = AVLGTree.join(tree, NUMS / 2 + 1, upper);
+        for (int i = 1; i < NUMS; i += 2)
+            tree.insert(i);
+        for (int i = NUMS / 2 + 2; i < NUMS; i += 4)
+            tree.delete(i);
+
+        assertEquals("Writing to a joined tree changed a snapshot taken of one of its halves.", expected, collect(snapshot));
+        assertNull("A snapshot of a split half was not a valid AVL-G tree.", snapshot.verify());
+        assertNull("The joined tree was not a valid AVL-G tree.", tree.verify());
+    }
+
+    /* Several writers insert disjoint ranges into a CopyOnWriteAVLGTree while a reader keeps searching it. Every
+     * snapshot the reader sees must be a valid AVL-G tree, and no insertion may be lost.
+     */
+    @Test
+    public void testConcurrentWritersAndReaders() throws InvalidBalanceException, InterruptedException {
+        CopyOnWriteAVLGTree<Integer> shared = new CopyOnWriteAVLGTree<>(2);
+        Thread[] writers = new Thread[4];
+        for (int w = 0; w < writers.length; w++) {
+            final int base = w * NUMS;
+            writers[w] = new Thread(() -> {
+                for (int i = 0; i < NUMS; i++)
+                    shared.insert(base + i);
+            });
+            writers[w].start();
+        }
+        boolean consistent = true;
+        while (shared.getCount() < writers.length * NUMS) {
+            AVLGTree<Integer> snapshot = shared.snapshot();
+            consistent &= snapshot.isBST() && snapshot.isAVLGBalanced();
+        }
+        for (Thread writer : writers)
+            writer.join();
+        assertTrue("A reader saw a snapshot that was not a balanced BST!", consistent);
+        assertEquals("Some concurrent insertions were lost.", writers.length * NUMS, shared.getCount());
+        for (int i = 0; i < writers.length * NUMS; i++)
+            assertTrue("Key " + i + " was inserted concurrently but could not be found.", shared.contains(i));
+    }
+
+    /* The primitive trees keep their nodes in arrays and recycle the slots of deleted nodes, so a tree that is
+     * filled, emptied and filled again must behave exactly like a fresh one.
+     */
+    @Test
+    public void testPrimitiveTrees() throws InvalidBalanceException, EmptyTreeException {
+        IntAVLGTree ints = new IntAVLGTree(1);
+        LongAVLGTree longs = new LongAVLGTree(3);
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < NUMS; i++) {
+                ints.insert(i);
+                longs.insert(Long.MAX_VALUE - i);
+            }
+            assertEquals("IntAVLGTree had the wrong count.", NUMS, ints.getCount());
+            assertTrue("IntAVLGTree was not a balanced BST!", ints.isBST() && ints.isAVLGBalanced());
+            assertTrue("LongAVLGTree was not a balanced BST!", longs.isBST() && longs.isAVLGBalanced());
+            assertTrue("LongAVLGTree did not find a stored key.", longs.search(Long.MAX_VALUE - 17));
+            for (int i = 0; i < NUMS; i++) {
+                assertTrue("IntAVLGTree failed to delete " + i + ".", ints.delete(i));
+                assertTrue("LongAVLGTree failed to delete a stored key.", longs.delete(Long.MAX_VALUE - i));
+            }
+            assertTrue("IntAVLGTree was not empty after deleting every key.", ints.isEmpty());
+            assertFalse("LongAVLGTree still contained a deleted key.", longs.contains(Long.MAX_VALUE));
+        }
+    }
+
+    /* The off-heap tree keeps its nodes in direct buffers, but from the outside it must behave exactly like the
+     * on-heap one: same keys, same order, same balance guarantees, and deleted slots must be reused.
+     */
+    @Test
+    public void testOffHeapTree() throws InvalidBalanceException, EmptyTreeException {
+        OffHeapAVLGTree<Long> offHeap = new OffHeapAVLGTree<>(2, KeyCodec.longs());
+        TreeSet<Long> expected = new TreeSet<>();
+        for (int i = 0; i < NUMS; i++) {
+            long key = r.nextInt(10 * NUMS);
+            offHeap.insert(key);
+            expected.add(key);
+        }
+        long arena = offHeap.getArenaBytes();
+        for (int i = 0; i < NUMS; i++) {
+            long key = r.nextInt(10 * NUMS);
+            if (offHeap.delete(key) != null) {
+                offHeap.insert(key + 10 * NUMS);
+                expected.remove(key);
+                expected.add(key + 10 * NUMS);
+            }
+        }
+        assertEquals("Deleting and inserting the same number of keys should reuse freed slots.", arena, offHeap.getArenaBytes());
+        assertTrue("The off-heap tree was not a balanced BST!", offHeap.isBST() && offHeap.isAVLGBalanced());
+        long prev = -1;
+        int seen = 0;
+        for (Long key : offHeap) {
+            assertTrue("The off-heap iterator returned keys out of order.", key > prev);
+            assertEquals("rank did not agree with the iteration order.", seen++, offHeap.rank(key));
+            prev = key;
+        }
+        assertEquals("The off-heap iterator did not return every key.", offHeap.getCount(), seen);
+        long lo = offHeap.select(seen / 4), hi = offHeap.select(3 * seen / 4);
+        assertEquals("countRange did not agree with select.", 3 * seen / 4 - seen / 4 + 1, offHeap.countRange(lo, hi));
+        assertEquals("countRange of an empty range should be 0.", 0, offHeap.countRange(hi, lo));
+
+        List<Long> descending = new ArrayList<>();
+        offHeap.descendingIterator().forEachRemaining(descending::add);
+        assertEquals("The descending iterator should reverse the tree.", new ArrayList<>(expected.descendingSet()), descending);
+        for (long key = -1; key <= 20 * NUMS; key += 37) {
+            assertEquals("lower should match a TreeSet.", expected.lower(key), offHeap.lower(key));
+            assertEquals("higher should match a TreeSet.", expected.higher(key), offHeap.higher(key));
+            assertEquals("floor should match a TreeSet.", expected.floor(key), offHeap.floor(key));
+            assertEquals("ceiling should match a TreeSet.", expected.ceiling(key), offHeap.ceiling(key));
+        }
+        for (int i = 0; i < 50; i++) {
+            long a = r.nextInt(20 * NUMS), b = a + r.nextInt(2 * NUMS);
+            boolean aIn = r.nextBoolean(), bIn = r.nextBoolean();
+            OffHeapAVLGTree<Long>.RangeView view = offHeap.subSet(a, aIn, b, bIn);
+            List<Long> inView = new ArrayList<>(), backwards = new ArrayList<>();
+            view.forEach(inView::add);
+            view.descendingIterator().forEachRemaining(backwards::add);
+            assertEquals("subSet should match a TreeSet.", new ArrayList<>(expected.subSet(a, aIn, b, bIn)), inView);
+            assertEquals("A descending subSet should match a TreeSet.",
+                    new ArrayList<>(expected.subSet(a, aIn, b, bIn).descendingSet()), backwards);
+            assertEquals("A view should count its keys.", inView.size(), view.size());
+            List<Long> head = new ArrayList<>(), tail = new ArrayList<>();
+            offHeap.headSet(a, aIn).forEach(head::add);
+            offHeap.tailSet(b, bIn).forEach(tail::add);
+            assertEquals("headSet should match a TreeSet.", new ArrayList<>(expected.headSet(a, aIn)), head);
+            assertEquals("tailSet should match a TreeSet.", new ArrayList<>(expected.tailSet(b, bIn)), tail);
+            assertEquals("A view should only contain keys of its range.", expected.subSet(a, aIn, b, bIn).contains(a),
+                    view.contains(a));
+        }
+        Iterator<Long> stale = offHeap.tailSet(0L).iterator();
+        offHeap.insert(-1L);
+        try {
+            stale.next();
+            fail("View iterators should fail fast.");
+        } catch (ConcurrentModificationException ignored) {
+        }
+    }
+
+    /* With a large maxImbalance, sorted insertions build very tall trees. Insertions and deletions walk them with
+     * an explicit path stack, so they must work even on a thread with a tiny stack.
+     */
+    @Test
+    public void testTallTreesOnSmallStacks() throws InterruptedException {
+        final int n = 5000;
+        final Throwable[] failure = new Throwable[1];
+        Thread worker = new Thread(null, () -> {
+            try {
+                AVLGTree<Integer> tall = new AVLGTree<>(n);
+                for (int i = 0; i < n; i++) {
+                    tall.insert(i);
+                }
+                assertTrue("Sorted insertions should have built a path.", tall.getHeight() >= n - 1);
+                assertTrue("The tall tree should be a BST.", tall.isBST());
+                assertTrue("The tall tree should be AVL-" + n + " balanced.", tall.isAVLGBalanced());
+                for (int i = n - 1; i >= 0; i -= 2) {
+                    assertEquals("Deleting a key from the tall tree should return it.", Integer.valueOf(i), tall.delete(i));
+                }
+                assertEquals("Half of the keys should be left.", n / 2, tall.getCount());
+                assertTrue("The tall tree should still be a BST.", tall.isBST());
+            } catch (Throwable t) {
+                failure[0] = t;
+            }
+        }, "small-stack", 1 << 16);
+        worker.start();
+        worker.join();
+        if (failure[0] != null) {
+            throw new AssertionError("Updating a tall tree failed on a small stack.", failure[0]);
+        }
+    }
+
+    /* Ascending insertions into an AVL-1 tree only ever need single left rotations, and descending ones only single
+     * right rotations. Searches must be counted with the number of comparisons they made, and the JMX bean must
+     * report the same numbers as getMetrics().
+     */
+    @Test
+    public void testMetrics() throws InvalidBalanceException, EmptyTreeException, JMException {
+        AVLGTree<Integer> ascending = new AVLGTree<>(1);
+        assertFalse("Metrics should be off by default.", ascending.isMetricsEnabled());
+        ascending.insert(-1);
+        assertEquals("A tree that does not count should report no rotations.", 0, ascending.getMetrics().getRotations());
+        ascending.setMetricsEnabled(true);
+        for (int i = 0; i < 127; i++) {
+            ascending.insert(i);
+        }
+        AVLGTreeMetrics m = ascending.getMetrics();
+        assertTrue("Ascending insertions should need left rotations.", m.getRotationsL() > 0);
+        assertEquals("Ascending insertions should need only left rotations.", m.getRotationsL(), m.getRotations());
+        assertEquals("The ideal height of 128 keys is 7.", 7, m.getIdealHeight());
+        assertTrue("An AVL tree is never shorter than the ideal height.", m.getHeight() >= m.getIdealHeight());
+
+        AVLGTree<Integer> descending = new AVLGTree<>(1);
+        descending.setMetricsEnabled(true);
+        for (int i = 0; i < 127; i++) {
+            descending.insert(-i);
+        }
+        m = descending.getMetrics();
+        assertEquals("Descending insertions should need only right rotations.", m.getRotationsR(), m.getRotations());
+
+        assertEquals("Inserting should not count as searching.", 0, descending.getMetrics().getSearches());
+        Integer rootKey = descending.getRoot();
+        assertTrue("The root key should be found.", descending.contains(rootKey));
+        m = descending.getMetrics();
+        assertEquals("contains() is one search.", 1, m.getSearches());
+        assertEquals("Finding the root key takes one comparison.", 1, m.getComparisons());
+        assertEquals("The histogram should record one search of length 1.", 1, m.getPathLengthHistogram()[1]);
+        for (int i = 0; i < 127; i++) {
+            descending.search(-i);
+        }
+        m = descending.getMetrics();
+        assertEquals("Every search should be counted.", 128, m.getSearches());
+        assertEquals("The histogram should count every search.", 128, Arrays.stream(m.getPathLengthHistogram()).sum());
+        assertTrue("No search can be longer than the height of the tree plus one.",
+                m.getComparisonsPerSearch() <= m.getHeight() + 1);
+
+        ObjectName name = descending.registerMBean("testMetrics");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals("JMX should report the tree's searches.", 128L, server.getAttribute(name, "Searches"));
+            server.invoke(name, "resetMetrics", null, null);
+            assertEquals("Resetting through JMX should clear the counters.", 0, descending.getMetrics().getSearches());
+            server.setAttribute(name, new Attribute("MetricsEnabled", false));
+            assertFalse("Metrics should be turned off through JMX.", descending.isMetricsEnabled());
+        } finally {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+    }
+
+    /* Changing maxImbalance at runtime must always leave a tree that is balanced under the new value. In adaptive
+     * mode, a burst of writes should loosen it up to the largest allowed value, and a burst of searches should
+     * tighten it back down.
+     */
+    @Test
+    public void testAdaptiveImbalance() throws InvalidBalanceException, EmptyTreeException {
+        AVLGTree<Integer> loose = new AVLGTree<>(8);
+        for (int i = 0; i < NUMS; i++) {
+            loose.insert(i);
+        }
+        loose.setMaxImbalance(1);
+        assertEquals("The tree should report its new maxImbalance.", 1, loose.getMaxImbalance());
+        assertTrue("Tightening maxImbalance should leave an AVL-1 tree.", loose.isAVLGBalanced());
+        assertTrue("Tightening maxImbalance should leave a BST.", loose.isBST());
+        assertEquals("Tightening maxImbalance should keep every key.", NUMS, loose.getCount());
+        try {
+            loose.setMaxImbalance(0);
+            fail("A maxImbalance of 0 should have been rejected.");
+        } catch (InvalidBalanceException ignored) {
+            // Expected.
+        }
+
+        AVLGTree<Integer> adaptive = new AVLGTree<>(2);
+        adaptive.setAdaptiveImbalance(1, 8);
+        assertTrue("The tree should be in adaptive mode.", adaptive.isAdaptiveImbalance());
+        for (int i = 0; i < 4 * NUMS; i++) {
+            adaptive.insert(i);
+        }
+        assertEquals("Writing only should loosen maxImbalance all the way.", 8, adaptive.getMaxImbalance());
+        assertTrue("The tree should be AVL-8 balanced.", adaptive.isAVLGBalanced());
+        int height = adaptive.getHeight();
+        Iterator<Integer> it = adaptive.iterator();
+        it.next();
+        for (int i = 0; i < 8 * NUMS; i++) {
+            assertTrue("Every inserted key should be found.", adaptive.contains(i % (4 * NUMS)));
+        }
+        assertEquals("Searches should not change maxImbalance themselves.", 8, adaptive.getMaxImbalance());
+        assertEquals("Searches should not change the shape of the tree.", height, adaptive.getHeight());
+        assertEquals("Searches should not invalidate iterators.", Integer.valueOf(1), it.next());
+        adaptive.delete(0);
+        assertEquals("Searching only should tighten maxImbalance all the way at the next write.", 1, adaptive.getMaxImbalance());
+        try {
+            it.next();
+            fail("Tightening maxImbalance at a write should invalidate iterators.");
+        } catch (ConcurrentModificationException ignored) {
+            // Expected.
+        }
+        assertTrue("Tightening should queue repairs rather than rebuild the tree.", adaptive.getPendingRebalances() > 0);
+        int deleted = 1;
+        while (adaptive.getPendingRebalances() > 0)
+            adaptive.delete(deleted++);
+        assertTrue("Later writes should make the repairs queued by tightening a few at a time.", deleted < NUMS);
+        assertTrue("The tree should be AVL-1 balanced after its repairs.", adaptive.isAVLGBalanced());
+        assertNull("The tree should be a valid AVL-1 tree after its repairs.", adaptive.verify());
+        assertEquals("Adapting should not lose keys.", 4 * NUMS - deleted, adaptive.getCount());
+        assertEquals("Adapting should keep the keys in order.", Integer.valueOf(deleted), adaptive.select(0));
+
+        adaptive.clearAdaptiveImbalance();
+        for (int i = 4 * NUMS; i < 8 * NUMS; i++) {
+            adaptive.insert(i);
+        }
+        assertEquals("A tree that stopped adapting should keep its maxImbalance.", 1, adaptive.getMaxImbalance());
+    }
+
+    /* AVLGMap must agree with TreeMap on every update, including the ones that take a function, and on its
+     * navigation methods and range views.
+     */
+    @Test
+    public void testAVLGMap() throws InvalidBalanceException {
+        for (int g = 1; g <= 3; g++) {
+            AVLGMap<Integer, Integer> map = new AVLGMap<>(g);
+            TreeMap<Integer, Integer> expected = new TreeMap<>();
+            for (int i = 0; i < 20 * NUMS; i++) {
+                Integer key = r.nextInt(NUMS), value = r.nextInt(10);
+                switch (r.nextInt(6)) {
+                    case 0:
+                        assertEquals("put() should return the old value.", expected.put(key, value), map.put(key, value));
+                        break;
+                    case 1:
+                        assertEquals("remove() should return the old value.", expected.remove(key), map.remove(key));
+                        break;
+                    case 2:
+                        assertEquals("putIfAbsent() disagrees with TreeMap.", expected.putIfAbsent(key, value),
+                                map.putIfAbsent(key, value));
+                        break;
+                    case 3:
+                        assertEquals("merge() disagrees with TreeMap.",
+                                expected.merge(key, value, (a, b) -> (a + b) % 4 == 0 ? null : a + b),
+                                map.merge(key, value, (a, b) -> (a + b) % 4 == 0 ? null : a + b));
+                        break;
+                    case 4:
+                        assertEquals("computeIfAbsent() disagrees with TreeMap.",
+                                expected.computeIfAbsent(key, k -> k * 2), map.computeIfAbsent(key, k -> k * 2));
+                        break;
+                    default:
+                        assertEquals("get() disagrees with TreeMap.", expected.get(key), map.get(key));
+                        assertEquals("floorKey() disagrees with TreeMap.", expected.floorKey(key), map.floorKey(key));
+                        assertEquals("higherEntry() disagrees with TreeMap.", expected.higherEntry(key),
+                                map.higherEntry(key));
+                        break;
+                }
+                assertEquals("The map has the wrong size.", expected.size(), map.size());
+            }
+            assertEquals("The map should hold the same entries as TreeMap.", expected, map);
+            assertEquals("Iteration should be in ascending key order.", new ArrayList<>(expected.keySet()),
+                    new ArrayList<>(map.keySet()));
+
+            int lo = NUMS / 4, hi = 3 * NUMS / 4;
+            NavigableMap<Integer, Integer> view = map.subMap(lo, true, hi, false).descendingMap();
+            NavigableMap<Integer, Integer> expectedView = expected.subMap(lo, true, hi, false).descendingMap();
+            assertEquals("Descending range views should hold the same entries.", new ArrayList<>(expectedView.entrySet()),
+                    new ArrayList<>(view.entrySet()));
+            assertEquals("firstKey() of a descending view is its largest key.", expectedView.firstKey(), view.firstKey());
+            assertEquals("ceilingKey() of a descending view looks downwards.", expectedView.ceilingKey(NUMS / 2),
+                    view.ceilingKey(NUMS / 2));
+            view.headMap(NUMS / 2, true).clear();
+            expectedView.headMap(NUMS / 2, true).clear();
+            assertEquals("Clearing a view should remove its entries from the map.", expected, map);
+            try {
+                view.put(hi, 0);
+                fail("Putting a key outside of a view should have been rejected.");
+            } catch (IllegalArgumentException ignored) {
+                // Expected.
+            }
+            assertEquals("Range views should count their entries.", expected.subMap(lo, false, hi, true).size(),
+                    map.subMap(lo, false, hi, true).size());
+            assertNull("The map should be kept in a valid AVL-" + g + " tree.", map.verify());
+        }
+
+        // The map is balanced by AVLGTree itself, so it has the tree's metrics and deferred rebalancing too.
+        AVLGMap<Integer, String> deferred = new AVLGMap<>(1);
+        deferred.setMetricsEnabled(true);
+        deferred.setDeferredRebalancing(true);
+        for (int i = 0; i < NUMS; i++)
+            deferred.put(i, "v" + i);
+        assertTrue("Sorted puts into a deferred map should queue repairs.", deferred.getPendingRebalances() > 0);
+        assertEquals("A deferred map should not rotate on its own.", 0, deferred.getMetrics().getRotations());
+        deferred.rebalance();
+        assertTrue("Repairs should rotate the map's tree.", deferred.getMetrics().getRotations() > 0);
+        assertNull("A rebalanced map should be a valid AVL-1 tree.", deferred.verify());
+        for (int i = 0; i < NUMS; i++)
+            assertEquals("Repairs should keep every value with its key.", "v" + i, deferred.get(i));
+        assertEquals("Lookups should be counted as searches.", NUMS, deferred.getMetrics().getSearches());
+    }
+
+    /* A saved tree must load back with the same keys, the same shape and the same maxImbalance, and a damaged
+     * or foreign file must be rejected instead of producing a broken tree.
+     */
+    @Test
+    public void testSaveAndLoad() throws InvalidBalanceException, EmptyTreeException, IOException {
+        Path dir = Files.createTempDirectory("avlg");
+        try {
+            for (int g = 1; g <= 3; g++) {
+                AVLGTree<Integer> original = new AVLGTree<>(g);
+                for (int i = 0; i < 10 * NUMS; i++) {
+                    original.insert(r.nextInt(100 * NUMS) - 50 * NUMS);
+                }
+                Path file = dir.resolve("tree-" + g);
+                original.save(file, KeyCodec.ints());
+                AVLGTree<Integer> loaded = AVLGTree.load(file, KeyCodec.ints());
+                assertEquals("The loaded tree should have the saved maxImbalance.", g, loaded.getMaxImbalance());
+                assertEquals("The loaded tree should have every key.", original.getCount(), loaded.getCount());
+                assertEquals("The loaded tree should have the same height.", original.getHeight(), loaded.getHeight());
+                assertEquals("The loaded tree should have the same root.", original.getRoot(), loaded.getRoot());
+                List<Integer> expected = new ArrayList<>(), actual = new ArrayList<>();
+                original.forEach(expected::add);
+                loaded.forEach(actual::add);
+                assertEquals("The loaded tree should hold the same keys.", expected, actual);
+                assertTrue("The loaded tree should be AVL-G balanced.", loaded.isAVLGBalanced());
+                assertEquals("Ranks should survive a reload.", original.rank(0), loaded.rank(0));
+                loaded.insert(Integer.MAX_VALUE);
+                assertTrue("The loaded tree should accept new keys.", loaded.contains(Integer.MAX_VALUE));
+            }
+
+            Path empty = dir.resolve("empty");
+            new AVLGTree<Long>(2).save(empty, KeyCodec.longs());
+            assertTrue("An empty tree should load back empty.", AVLGTree.load(empty, KeyCodec.longs()).isEmpty());
+
+            Path file = dir.resolve("tree-1");
+            byte[] bytes = Files.readAllBytes(file);
+            bytes[bytes.length / 2] ^= 1;
+            Path corrupt = dir.resolve("corrupt");
+            Files.write(corrupt, bytes);
+            try {
+                AVLGTree.load(corrupt, KeyCodec.ints());
+                fail("A corrupt snapshot should have been rejected.");
+            } catch (IOException ignored) {
+                // Expected.
+            }
+            try {
+                AVLGTree.load(file, KeyCodec.longs());
+                fail("Loading with a codec of another width should have been rejected.");
+            } catch (IOException ignored) {
+                // Expected.
+            }
+
+            AVLGTree<Integer> unsaveable = new AVLGTree<>(1);
+            for (int i = 0; i < NUMS; i++)
+                unsaveable.insert(i);
+            KeyCodec<Integer> failing = new KeyCodec<Integer>() {
+                @Override
+                public int width() {
+                    return Integer.BYTES;
+                }
+
+                @Override
+                public void write(ByteBuffer buf, int offset, Integer key) {
+                    if (key == NUMS / 2)
+                        throw new IllegalStateException("Cannot encode " + key);
+                    buf.putInt(offset, key);
+                }
+
+                @Override
+                public Integer read(ByteBuffer buf, int offset) {
+                    return buf.getInt(offset);
+                }
+            };
+            byte[] before = Files.readAllBytes(file);
+            try {
+                unsaveable.save(file, failing);
+                fail("A failing codec should have failed the save.");
+            } catch (IllegalStateException ignored) {
+                // Expected.
+            }
+            assertFalse("A failed save should not leave its temporary file behind.", Files.exists(dir.resolve("tree-1.tmp")));
+            assertTrue("A failed save should leave the old file as it was.", Arrays.equals(before, Files.readAllBytes(file)));
+        } finally {
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path p : (Iterable<Path>) files::iterator) {
+                    Files.delete(p);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    /* Every logged update must come back after a restart, whether it was made before or after the last checkpoint,
+     * and a record torn by a crash must be dropped instead of breaking the recovery.
+     */
+    @Test
+    public void testWriteAheadLog() throws InvalidBalanceException, EmptyTreeException, IOException {
+        Path dir = Files.createTempDirectory("avlg");
+        Path logFile = dir.resolve("tree.log"), snapshot = dir.resolve("tree.snapshot");
+        try {
+            TreeSet<Integer> expected = new TreeSet<>();
+            WriteAheadLog<Integer> log = new WriteAheadLog<>(logFile, KeyCodec.ints(), 0);
+            AVLGTree<Integer> tree = log.recover(snapshot, 2);
+            assertTrue("A fresh log should recover an empty tree.", tree.isEmpty());
+            AVLGTree<Integer> other = new AVLGTree<>(2);
+            try {
+                other.setLog(log);
+                fail("A log should not be attached to two trees.");
+            } catch (IllegalStateException ignored) {
+                // Expected.
+            }
+            try {
+                log.checkpoint(other, snapshot);
+                fail("A log should not checkpoint a tree it does not record.");
+            } catch (IllegalArgumentException ignored) {
+                // Expected.
+            }
+            for (int i = 0; i < 2 * NUMS; i++) {
+                int key = r.nextInt(NUMS);
+                if (r.nextBoolean()) {
+                    tree.insert(key);
+                    expected.add(key);
+                } else if (!tree.isEmpty()) {
+                    tree.delete(key);
+                    expected.remove(key);
+                }
+                if (i == NUMS) {
+                    log.checkpoint(tree, snapshot);
+                    assertEquals("A checkpoint should truncate the log.", 12, log.getLogBytes());
+                }
+            }
+            log.close();
+
+            // A crash in the middle of an append leaves part of a record behind.
+            Files.write(logFile, new byte[] {1, 2, 3}, StandardOpenOption.APPEND);
+
+            log = new WriteAheadLog<>(logFile, KeyCodec.ints(), 5);
+            tree = log.recover(snapshot, 2);
+            List<Integer> keys = new ArrayList<>();
+            tree.forEach(keys::add);
+            assertEquals("Recovery should bring back every logged update.", new ArrayList<>(expected), keys);
+            assertTrue("The recovered tree should be AVL-G balanced.", tree.isAVLGBalanced());
+
+            tree.clear();
+            tree.insert(-1);
+            log.sync();
+            log.close();
+            log = new WriteAheadLog<>(logFile, KeyCodec.ints(), 0);
+            tree = log.recover(snapshot, 2);
+            assertEquals("clear() should be logged too.", 1, tree.getCount());
+            assertTrue("Updates after a clear() should be logged.", tree.contains(-1));
+
+            for (int i = 0; i < NUMS; i++) {
+                tree.insert(i);
+            }
+            AVLGTree<Integer> upper = tree.split(NUMS / 2);
+            assertEquals("split should move the larger keys out.", NUMS / 2 - 1, upper.getCount());
+            tree.insert(NUMS + 1); // Logged after the split, so it has to survive it.
+            log.close();
+            ByteBuffer version = ByteBuffer.allocate(4).putInt(0, 1);
+            try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.WRITE)) {
+                channel.write(version, 4); // A log written before splits were logged.
+            }
+            log = new WriteAheadLog<>(logFile, KeyCodec.ints(), 0);
+            tree = log.recover(snapshot, 2);
+            assertEquals("Recovery should replay the split.", NUMS / 2 + 3, tree.getCount());
+            assertTrue("Keys up to the split key should survive it.", tree.contains(NUMS / 2));
+            assertFalse("Keys above the split key should stay gone.", tree.contains(NUMS / 2 + 1));
+            assertTrue("Updates after a split should be replayed.", tree.contains(NUMS + 1));
+            log.close();
+        } finally {
+            Files.deleteIfExists(logFile);
+            Files.deleteIfExists(snapshot);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testMultiset() throws InvalidBalanceException, EmptyTreeException {
+        AVLGTree<Integer> set = new AVLGTree<>(1);
+        set.insert(7);
+        set.insert(7);
+        assertEquals("A set should store a duplicate only once.", 1, set.getCount());
+        assertEquals("A set should count every key once.", 1, set.count(7));
+        assertFalse("new AVLGTree() should not make a multiset.", set.isMultiset());
+
+        AVLGTree<Integer> bag = AVLGTree.multiset(2);
+        TreeMap<Integer, Integer> expected = new TreeMap<>();
+        for (int i = 0; i < 4 * NUMS; i++) {
+            int key = r.nextInt(NUMS / 10);
+            if (r.nextInt(3) > 0) {
+                bag.insert(key);
+                expected.merge(key, 1, Integer::sum);
+            } else if (!bag.isEmpty()) {
+                bag.delete(key);
+                expected.computeIfPresent(key, (k, c) -> (c > 1) ? c - 1 : null);
+            }
+        }
+        assertEquals("A multiset should count its distinct keys.", expected.size(), bag.getCount());
+        long total = 0;
+        for (Map.Entry<Integer, Integer> e : expected.entrySet()) {
+            assertEquals("Weighted rank mismatch for " + e.getKey() + ".", total, bag.weightedRank(e.getKey()));
+            assertEquals("Count mismatch for " + e.getKey() + ".", (int) e.getValue(), bag.count(e.getKey()));
+            for (int j = 0; j < e.getValue(); j++) {
+                assertEquals("Weighted select mismatch at " + (total + j) + ".", e.getKey(), bag.weightedSelect(total + j));
+            }
+            total += e.getValue();
+        }
+        assertEquals("The total count should add up the occurrences.", total, bag.getTotalCount());
+        assertEquals("Missing keys should have a count of 0.", 0, bag.count(-1));
+        assertTrue("The multiset should stay a BST.", bag.isBST());
+        assertTrue("The multiset should stay AVL-G balanced.", bag.isAVLGBalanced());
+
+        // Duplicates never change the shape of the tree, and tightening G keeps the counts.
+        int height = bag.getHeight();
+        bag.insert(expected.firstKey());
+        assertEquals("A duplicate should not change the height.", height, bag.getHeight());
+        assertEquals("A duplicate should not add a node.", expected.size(), bag.getCount());
+        bag.setMaxImbalance(1);
+        assertTrue("The multiset should be rebuilt AVL-1 balanced.", bag.isAVLGBalanced());
+        assertEquals("Rebuilding should keep the counts.", total + 1, bag.getTotalCount());
+        assertEquals("Rebuilding should keep the counts.", expected.firstEntry().getValue() + 1,
+                bag.count(expected.firstKey()));
+
+        // The iterator returns each distinct key once, so removing through it removes every occurrence.
+        AVLGTree<Integer> pairs = AVLGTree.multiset(1);
+        for (int i = 0; i < 3; i++) {
+            pairs.insert(5);
+            pairs.insert(7);
+        }
+        Iterator<Integer> it = pairs.iterator();
+        assertEquals("The iterator should start at the smallest key.", Integer.valueOf(5), it.next());
+        it.remove();
+        assertEquals("Removing through the iterator should remove every occurrence.", 0, pairs.count(5));
+        assertEquals("Removing through the iterator should leave the other keys.", 3, pairs.getTotalCount());
+        assertEquals("The iterator should go on past the removed key.", Integer.valueOf(7), it.next());
+        assertFalse("Each distinct key should be returned once.", it.hasNext());
+
+        try {
+            AVLGTree.union(bag, AVLGTree.multiset(1));
+            fail("Union of multisets should be rejected.");
+        } catch (IllegalArgumentException ignored) {
+        }
+        try {
+            bag.weightedSelect(bag.getTotalCount());
+            fail("weightedSelect past the last occurrence should throw.");
+        } catch (IndexOutOfBoundsException ignored) {
+        }
+    }
+
+    @Test
+    public void testCursorAndBulkAppend() throws InvalidBalanceException, EmptyTreeException {
+        for (int g = 1; g <= 3; g++) {
+            AVLGTree<Integer> tree = new AVLGTree<>(g);
+            TreeSet<Integer> expected = new TreeSet<>();
+            AVLGTree<Integer>.Cursor cursor = tree.cursor();
+            int clock = 0;
+            for (int i = 0; i < 4 * NUMS; i++) {
+                int key = clock + r.nextInt(20) - 10; // Timestamps that arrive slightly out of order.
+                clock += r.nextInt(3);
+                if (i % 50 == 49) {
+                    int gone = r.nextInt(clock + 1);
+                    tree.delete(gone); // Changes the tree behind the cursor's back.
+                    expected.remove(gone);
+                }
+                if (i % 500 == 0) {
+                    tree.snapshot(); // The cursor's path is now shared, so the next insertion has to copy it.
+                }
+                cursor.insert(key);
+                expected.add(key);
+            }
+            assertEquals("Cursor insertions should store every key once.", new ArrayList<>(expected), collect(tree));
+            assertTrue("Cursor insertions should keep the tree a BST.", tree.isBST());
+            assertTrue("Cursor insertions should keep the tree AVL-" + g + " balanced.", tree.isAVLGBalanced());
+
+            List<Integer> run = new ArrayList<>();
+            for (int k = clock + 100; k < clock + 100 + NUMS; k++) {
+                run.add(k);
+            }
+            tree.bulkAppend(run);
+            expected.addAll(run);
+            List<Integer> overlapping = Arrays.asList(clock - 5, clock + 50, clock + 100 + NUMS, clock + 101 + NUMS);
+            tree.bulkAppend(overlapping); // Only the last two keys are past the end of the tree.
+            expected.addAll(overlapping);
+            assertEquals("bulkAppend should add every key of the run.", new ArrayList<>(expected), collect(tree));
+            assertEquals("bulkAppend should keep the count.", expected.size(), tree.getCount());
+            assertTrue("bulkAppend should keep the tree AVL-" + g + " balanced.", tree.isAVLGBalanced());
+        }
+        try {
+            new AVLGTree<Integer>(1).bulkAppend(Arrays.asList(2, 1));
+            fail("bulkAppend should reject a run that is not sorted.");
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+
+    @Test
+    public void testAggregates() throws InvalidBalanceException, EmptyTreeException {
+        Aggregator<Integer, Long> sum = Aggregator.sum(key -> key), count = Aggregator.count();
+        Aggregator<Integer, Long> max = Aggregator.max(key -> key % 97);
+        for (int g = 1; g <= 3; g++) {
+            AVLGTree<Integer> tree = new AVLGTree<>(g);
+            TreeSet<Integer> expected = new TreeSet<>();
+            for (int i = 0; i < NUMS / 2; i++) {
+                int key = r.nextInt(2 * NUMS);
+                tree.insert(key);
+                expected.add(key);
+            }
+            AVLGTree<Integer> before = tree.snapshot();
+            tree.setAggregator(sum);
+            try {
+                before.aggregate(sum, 0, NUMS);
+                fail("A snapshot taken before setAggregator() should not have summaries.");
+            } catch (IllegalArgumentException ignored) {
+            }
+            // Rotations, deletions with two children and joins all have to keep the summaries right.
+            for (int i = 0; i < 2 * NUMS; i++) {
+                int key = r.nextInt(2 * NUMS);
+                if (r.nextBoolean()) {
+                    tree.insert(key);
+                    expected.add(key);
+                } else {
+                    tree.delete(key);
+                    expected.remove(key);
+                }
+            }
+            tree.delete(NUMS);
+            AVLGTree<Integer> upper = tree.split(NUMS);
+            tree = AVLGTree.join(tree, NUMS, upper);
+            expected.add(NUMS);
+            for (int i = 0; i < NUMS; i++) {
+                int lo = r.nextInt(2 * NUMS), hi = lo + r.nextInt(NUMS);
+                long want = 0;
+                for (int key : expected.subSet(lo, true, hi, true)) {
+                    want += key;
+                }
+                assertEquals("Sum over [" + lo + ", " + hi + "] mismatch.", want, (long) tree.aggregate(sum, lo, hi));
+            }
+            assertEquals("An empty range should summarize to the identity.", 0L, (long) tree.aggregate(sum, 5, 4));
+
+            tree.setAggregator(count);
+            assertEquals("Counting the whole tree should give its size.", (long) tree.getCount(),
+                    (long) tree.aggregate(count, Integer.MIN_VALUE, Integer.MAX_VALUE));
+            tree.setAggregator(max);
+            long want = Long.MIN_VALUE;
+            for (int key : expected.headSet(NUMS, true)) {
+                want = Math.max(want, key % 97);
+            }
+            assertEquals("Max over a prefix mismatch.", want, (long) tree.aggregate(max, Integer.MIN_VALUE, NUMS));
+            try {
+                tree.aggregate(sum, 0, NUMS);
+                fail("Asking for the summaries of another aggregator should throw.");
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+
+        AVLGTree<Integer> bag = AVLGTree.multiset(1);
+        Aggregator<Integer, Long> occurrences = Aggregator.count();
+        bag.setAggregator(occurrences);
+        for (int i = 0; i < NUMS; i++) {
+            bag.insert(i % 10);
+        }
+        assertEquals("Counts should weigh keys by their multiplicity.", NUMS / 10 * 3, (long) bag.aggregate(occurrences, 2, 4));
+    }
+
+
+    @Test
+    public void testVerify() throws InvalidBalanceException, EmptyTreeException, IOException {
+        AVLGTree<Integer> tree = new AVLGTree<>(2);
+        for (int i = 0; i < 20 * NUMS; i++) {
+            tree.insert(r.nextInt(100 * NUMS));
+        }
+        assertNull("A sound tree, large enough to be checked in parallel, should verify.", tree.verify());
+        assertNull("An empty tree should verify.", new AVLGTree<Integer>(1).verify());
+
+        // Swap the key of a grandchild of the root with the largest key: only its grandparent can tell.
+        Path dir = Files.createTempDirectory("avlg");
+        Path file = dir.resolve("tree.snapshot");
+        try {
+            AVLGTree<Integer> small = AVLGTree.fromSorted(Arrays.asList(1, 2, 3, 4, 5, 6, 7), 1);
+            small.save(file, KeyCodec.ints());
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file));
+            int keysAt = 20 + 2, last = keysAt + 6 * 4; // Preorder: 4 2 1 3 6 5 7.
+            int third = keysAt + 3 * 4;
+            int swapped = buf.getInt(third);
+            buf.putInt(third, buf.getInt(last));
+            buf.putInt(last, swapped);
+            CRC32 crc = new CRC32();
+            crc.update(buf.array(), 0, buf.capacity() - 4);
+            buf.putInt(buf.capacity() - 4, (int) crc.getValue());
+            Files.write(file, buf.array());
+
+            AVLGTree<Integer> corrupt = AVLGTree.load(file, KeyCodec.ints());
+            assertFalse("A key larger than its grandparent should break the BST condition.", corrupt.isBST());
+            assertTrue("Swapping keys should not change the balance.", corrupt.isAVLGBalanced());
+            String violation = corrupt.verify();
+            assertNotNull("verify() should catch the swapped keys.", violation);
+            assertTrue("verify() should report the path to the first bad key: " + violation,
+                    violation.endsWith("Path: root 4 left 2 right 7"));
+        } finally {
+            Files.deleteIfExists(file);
+            Files.delete(dir);
+        }
+    }
+
+
+    @Test
+    public void testFrozenAVLGTree() throws InvalidBalanceException, EmptyTreeException {
+        for (int n : new int[] {1, 2, 7, 8, 100, NUMS}) {
+            AVLGTree<Integer> tree = new AVLGTree<>(2);
+            TreeSet<Integer> expected = new TreeSet<>();
+            while (expected.size() < n) {
+                int key = 2 * r.nextInt(10 * NUMS);
+                tree.insert(key);
+                expected.add(key);
+            }
+            FrozenAVLGTree<Integer> frozen = FrozenAVLGTree.of(tree);
+            FrozenAVLGTree<Integer> flat = FrozenAVLGTree.of(tree.snapshot(), Integer::longValue);
+            assertTrue("A frozen tree built with a ToLongFunction should compare longs.", flat.isFlattened());
+            for (FrozenAVLGTree<Integer> f : Arrays.asList(frozen, flat)) {
+                assertEquals("A frozen tree should have every key.", n, f.getCount());
+                for (int key = -3; key <= 20 * NUMS + 3; key += 1 + r.nextInt(7)) {
+                    assertEquals("search(" + key + ") mismatch.", expected.contains(key) ? (Integer) key : null, f.search(key));
+                    assertEquals("floor(" + key + ") mismatch.", expected.floor(key), f.floor(key));
+                    assertEquals("ceiling(" + key + ") mismatch.", expected.ceiling(key), f.ceiling(key));
+                    assertEquals("rank(" + key + ") mismatch.", expected.headSet(key).size(), f.rank(key));
+                }
+            }
+        }
+        assertTrue("Freezing an empty tree should give an empty tree.", FrozenAVLGTree.of(new AVLGTree<Integer>(1)).isEmpty());
+        try {
+            AVLGTree<Integer> tree = AVLGTree.fromSorted(Arrays.asList(1, 2, 3), 1);
+            FrozenAVLGTree.of(tree, key -> -key);
+            fail("A ToLongFunction that reverses the order should be rejected.");
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+
+    @Test
+    public void testDeferredRebalancing() throws InvalidBalanceException, EmptyTreeException, InterruptedException {
+        for (int g = 1; g <= 3; g++) {
+            AVLGTree<Integer> tree = new AVLGTree<>(g);
+            tree.setDeferredRebalancing(true);
+            TreeSet<Integer> expected = new TreeSet<>();
+            for (int i = 0; i < 2 * NUMS; i++) {
+                tree.insert(i); // Ascending keys would make a path of a tree without any rotation.
+                expected.add(i);
+            }
+            for (int i = 0; i < NUMS; i++) {
+                int key = r.nextInt(2 * NUMS);
+                tree.delete(key);
+                expected.remove(key);
+                if (i % 100 == 0) {
+                    assertEquals("Searches should stay correct while repairs are pending.", expected.contains(key),
+                            tree.contains(key));
+                    assertEquals("Ranks should stay correct while repairs are pending.", expected.headSet(key).size(),
+                            tree.rank(key));
+                    tree.rebalance(5);
+                }
+            }
+            assertTrue("Deferred writes should queue repairs.", tree.getPendingRebalances() > 0);
+            assertTrue("The tree should stay a BST while repairs are pending.", tree.isBST());
+            assertEquals("Repairs should be made in batches.", Math.max(tree.getPendingRebalances() - 3, 0),
+                    tree.rebalance(3));
+            tree.rebalance();
+            assertEquals("rebalance() should make every repair.", 0, tree.getPendingRebalances());
+            assertNull("The repaired tree should verify.", tree.verify());
+            assertEquals("Repairs should not change the keys.", new ArrayList<>(expected), collect(tree));
+            tree.setDeferredRebalancing(false);
+            tree.insert(-1);
+            assertEquals("Inline rebalancing should queue nothing.", 0, tree.getPendingRebalances());
+        }
+
+        CopyOnWriteAVLGTree<Integer> concurrent = new CopyOnWriteAVLGTree<>(1);
+        concurrent.setBackgroundRebalancing(true);
+        Thread[] writers = new Thread[4];
+        for (int w = 0; w < writers.length; w++) {
+            final int offset = w;
+            writers[w] = new Thread(() -> {
+                for (int i = 0; i < NUMS; i++) {
+                    concurrent.insert(writers.length * i + offset);
+                }
+            });
+            writers[w].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertEquals("Every concurrent write should be visible.", writers.length * NUMS, concurrent.getCount());
+        assertTrue("Published versions should be BSTs.", concurrent.snapshot().isBST());
+        assertEquals("Snapshots should not carry a repair queue.", 0, concurrent.snapshot().getPendingRebalances());
+        concurrent.close();
+        assertFalse("Closing the tree should stop the rebalancer.", concurrent.isBackgroundRebalancing());
+        assertNull("Stopping the rebalancer should leave a balanced tree.", concurrent.snapshot().verify());
+    }
+
+    @Test
+    public void testConcurrentAVLGTree() throws InvalidBalanceException, EmptyTreeException, InterruptedException {
+        ConcurrentAVLGTree<Integer> tree = new ConcurrentAVLGTree<>(2, 4);
+        int stable = 100;
+        for (int i = 1; i <= stable; i++) {
+            tree.insert(-i); // Never deleted, and below every key the writers touch.
+        }
+        Thread[] writers = new Thread[4];
+        int perWriter = 10 * NUMS;
+        for (int w = 0; w < writers.length; w++) {
+            final int offset = w;
+            writers[w] = new Thread(() -> {
+                for (int i = 0; i < perWriter; i++) {
+                    int key = writers.length * i + offset;
+                    tree.insert(key);
+                    if (i % 3 == 2) {
+                        try {
+                            tree.delete(key - 2 * writers.length); // Deletes run alongside inserts.
+                        } catch (EmptyTreeException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                }
+            });
+        }
+        AtomicBoolean done = new AtomicBoolean();
+        boolean[] readerFailed = new boolean[1];
+        Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                if (tree.rank(0) != stable || !tree.contains(-1 - r.nextInt(stable))) {
+                    readerFailed[0] = true; // Shards read together should always agree.
+                }
+            }
+        });
+        reader.start();
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        done.set(true);
+        reader.join();
+        assertFalse("Lock-free reads should see every key that is never deleted.", readerFailed[0]);
+
+        TreeSet<Integer> expected = new TreeSet<>();
+        for (int i = 1; i <= stable; i++) {
+            expected.add(-i);
+        }
+        for (int w = 0; w < writers.length; w++) {
+            for (int i = 0; i < perWriter; i++) {
+                expected.add(writers.length * i + w);
+                if (i % 3 == 2) {
+                    expected.remove(writers.length * (i - 2) + w);
+                }
+            }
+        }
+        assertEquals("Every concurrent write should be visible.", expected.size(), tree.getCount());
+        assertTrue("The tree should split into shards as it grows.", tree.getShardCount() > 1);
+        List<Integer> keys = new ArrayList<>();
+        tree.forEach(keys::add);
+        assertEquals("Iteration should cross shards in order.", new ArrayList<>(expected), keys);
+        for (int i = -stable; i < writers.length * perWriter; i += 97) {
+            assertEquals("Ranks should count the keys of earlier shards.", expected.headSet(i).size(), tree.rank(i));
+            assertEquals("floor should match a TreeSet.", expected.floor(i), tree.floor(i));
+            assertEquals("ceiling should match a TreeSet.", expected.ceiling(i), tree.ceiling(i));
+        }
+        assertEquals("select should undo rank.", expected.first(), tree.select(0));
+        assertEquals("select should reach the last shard.", expected.last(), tree.select(expected.size() - 1));
+        assertEquals("countRange should add up the shards.", expected.subSet(-10, true, 1000, true).size(),
+                tree.countRange(-10, 1000));
+        tree.clear();
+        assertTrue("clear() should empty every shard.", tree.isEmpty());
+        try {
+            tree.search(5);
+            fail("Searching an empty tree should throw.");
+        } catch (EmptyTreeException ignored) {
+        }
+    }
+
+    @Test
+    public void testShardedAVLGTree() throws InvalidBalanceException, EmptyTreeException, InterruptedException {
+        ShardedAVLGTree<Integer> sharded = new ShardedAVLGTree<>(1, 4);
+        assertEquals("A new tree should start with one shard.", 1, sharded.getShardCount());
+        Thread[] writers = new Thread[4];
+        int perWriter = 10 * NUMS;
+        for (int w = 0; w < writers.length; w++) {
+            final int offset = w;
+            writers[w] = new Thread(() -> {
+                for (int i = 0; i < perWriter; i++) {
+                    sharded.insert(writers.length * i + offset); // Ascending keys keep skewing the last shard.
+                }
+            });
+            writers[w].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        int n = writers.length * perWriter;
+        assertEquals("Every concurrent write should be visible.", n, sharded.getCount());
+        assertEquals("The tree should split into as many shards as asked for.", 4, sharded.getShardCount());
+        List<Integer> keys = new ArrayList<>();
+        sharded.forEach(keys::add);
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            expected.add(i);
+        }
+        assertEquals("Iteration should cross shards in order.", expected, keys);
+        for (int i = 0; i < n; i += 97) {
+            assertEquals("Ranks should count the keys of earlier shards.", i, sharded.rank(i));
+            assertEquals("select should undo rank.", Integer.valueOf(i), sharded.select(i));
+        }
+
+        for (int i = 0; i < n; i += 2) {
+            assertEquals("Deletes should return the key.", Integer.valueOf(i), sharded.delete(i));
+        }
+        assertNull("Deleting a missing key should return null.", sharded.delete(0));
+        assertEquals("floor should look into earlier shards.", Integer.valueOf(n / 2 - 1), sharded.floor(n / 2 - 1));
+        assertEquals("floor should skip deleted keys.", Integer.valueOf(n / 2 - 1), sharded.floor(n / 2));
+        assertEquals("ceiling should skip deleted keys.", Integer.valueOf(n / 2 + 1), sharded.ceiling(n / 2));
+        assertNull("Nothing should be below the smallest key.", sharded.floor(0));
+        assertNull("Nothing should be above the largest key.", sharded.ceiling(n));
+        assertFalse("Deleted keys should be gone.", sharded.contains(n / 2));
+        assertEquals("Odd keys should remain.", Integer.valueOf(n / 2 + 1), sharded.search(n / 2 + 1));
+        assertEquals("Ranks should hold after deletions.", n / 4, sharded.rank(n / 2));
+
+        ShardedAVLGTree<Integer> presplit = new ShardedAVLGTree<>(2, List.of(100, 200, 300));
+        assertEquals("Boundaries should give one more shard than their number.", 4, presplit.getShardCount());
+        for (int i = 399; i >= 0; i--) {
+            presplit.insert(i);
+        }
+        assertEquals("Ranks across given boundaries should be exact.", 250, presplit.rank(250));
+        assertEquals("select across given boundaries should be exact.", Integer.valueOf(350), presplit.select(350));
+        presplit.clear();
+        assertTrue("clear() should empty every shard.", presplit.isEmpty());
+        try {
+            presplit.delete(5);
+            fail("Deleting from an empty tree should throw.");
+        } catch (EmptyTreeException ignored) {
+        }
+    }
+
+    private static List<Integer> collect(AVLGTree<Integer> tree) {
+        List<Integer> keys = new ArrayList<>();
+        tree.forEach(keys::add);
+        return keys;
+    }
 }
@@ -0,0 +1,483 @@
+package avlg;
+
+import avlg.exceptions.EmptyTreeException;
+import avlg.exceptions.InvalidBalanceException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * <p>{@link WriteAheadLog} makes an {@link AVLGTree} survive crashes without being rebuilt from scratch. Once a log
+ * is attached to a tree with {@link AVLGTree#setLog(WriteAheadLog)}, every {@link AVLGTree#insert(Comparable)},
+ * {@link AVLGTree#delete(Comparable)}, {@link AVLGTree#split(Comparable)} and {@link AVLGTree#clear()} that changes
+ * the tree is first appended to the log. After a crash, {@link #recover(Path, int)} loads the last snapshot written by
+ * {@link #checkpoint(AVLGTree, Path)} and replays the log on top of it. A checkpoint saves the tree with
+ * {@link AVLGTree#save(Path, KeyCodec)} and then truncates the log, so the log only ever holds the updates made
+ * since the last checkpoint.</p>
+ *
+ * <p>Forcing a file to disk costs milliseconds, far more than an update of the tree, so the log
+ * <em>group-commits</em>: appended records are collected in memory, and a single {@code fsync} makes a whole batch
+ * of them durable. How long a batch may wait is the <em>durability window</em> given to the constructor:</p>
+ * <ul>
+ *     <li>With a window of 0, every update is durable by the time it returns. A thread that calls {@link #sync()}
+ *     meanwhile shares the {@code fsync} of the update: while one thread forces a batch, the others queue up for
+ *     the next one.</li>
+ *     <li>With a window of w milliseconds, updates return at once, and a background thread forces the log every w
+ *     milliseconds. A crash loses at most the updates of the last w milliseconds. {@link #sync()} forces
+ *     everything appended so far right away.</li>
+ * </ul>
+ *
+ * <p>A log records the updates of exactly one tree: its records carry no tree, and {@link #checkpoint(AVLGTree, Path)}
+ * and {@link #recover(Path, int)} save and rebuild a single tree from all of them. This is enforced:
+ * {@link AVLGTree#setLog(WriteAheadLog)} refuses a log that is attached to another tree, and checkpoint refuses any
+ * tree but the attached one. Give every tree its own log file.</p>
+ *
+ * <p>Every record carries its own CRC32, so a record torn by a crash in the middle of a write is recognized.
+ * Opening a log cuts it right before the first record that is incomplete or does not match its checksum.</p>
+ *
+ * <p>A split is logged as a single record that drops every key above the split key, and is replayed with
+ * {@link AVLGTree#split(Comparable)} itself. Rebalancing, such as {@link AVLGTree#setMaxImbalance(int)}'s rebuilds,
+ * does not change the keys of the tree, so it is not logged.</p>
+ *
+ * @param <T> The type of the keys.
+ *
+ * @author Obinna Anadu
+ *
+ * @see AVLGTree#setLog(WriteAheadLog)
+ * @see KeyCodec
+ */
+public class WriteAheadLog<T extends Comparable<T>> implements Closeable {
+
+    /* The file starts with a header of three ints (LOG_MAGIC, LOG_VERSION and the width w of an encoded key),
+     * followed by records of 1 + w + 4 bytes: the operation, the key, and the CRC32 of the operation and the key.
+     * Version 2 added SPLIT records. A version 1 log is read as it is and upgraded when opened, so that a reader
+     * of version 1 never mistakes a SPLIT record for a torn one and cuts the log there.
+     */
+    private static final int LOG_MAGIC = 0x41564C57;
+    private static final int LOG_VERSION = 2;
+    private static final int HEADER = 3 * Integer.BYTES;
+
+    private static final byte INSERT = 1, DELETE = 2, CLEAR = 3, SPLIT = 4;
+    private static final int RECORDS_PER_READ = 1 << 12;
+
+    private final FileChannel channel;
+    private final KeyCodec<T> codec;
+    private final int recordSize;
+    private final long window;
+    private final Thread flusher;
+    private final CRC32 crc = new CRC32(); // Guarded by this, like the fields below.
+
+    // Everything below is guarded by this.
+    private ByteBuffer pending, spare; // Records not yet written, and the buffer the next batch will go to.
+    private long appended, durable; // Number of records appended since opening, and how many of them are on disk.
+    private boolean flushing; // Set while a thread writes and forces a batch, outside of the lock.
+    private boolean closed;
+    private IOException failure; // Once writing to the file failed, every later call fails too.
+    private AVLGTree<T> owner; // The one tree whose updates the log records, once one is attached.
+
+    /**
+     * Open the log stored in file, creating it if it does not exist, and cut off any record that a crash left
+     * incomplete.
+     * @param file The file holding the log.
+     * @param codec The {@link KeyCodec} that encodes the keys.
+     * @param durabilityWindowMillis How long, in milliseconds, an update may stay in memory before it is forced to
+     * disk; 0 forces every update before it returns.
+     * @throws IOException if the file cannot be opened, or is not a log of keys of the codec's width.
+     */
+    public WriteAheadLog(Path file, KeyCodec<T> codec, long durabilityWindowMillis) throws IOException {
+        if (durabilityWindowMillis < 0) {
+            throw new IllegalArgumentException("The durability window cannot be negative.");
+        }
+        this.codec = codec;
+        this.recordSize = 1 + codec.width() + Integer.BYTES;
+        this.window = durabilityWindowMillis;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            openAt(file);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        pending = ByteBuffer.allocate(64 * recordSize);
+        spare = ByteBuffer.allocate(64 * recordSize);
+        if (window > 0) {
+            flusher = new Thread(this::flushPeriodically, "avlg-wal-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        } else {
+            flusher = null;
+        }
+    }
+
+    // Check or write the header, and position the channel right after the last intact record.
+    private void openAt(Path file) throws IOException {
+        if (channel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(LOG_MAGIC).putInt(LOG_VERSION).putInt(codec.width()).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            channel.force(true);
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+            // Keep reading.
+        }
+        if (header.hasRemaining() || header.getInt(0) != LOG_MAGIC) {
+            throw new IOException(file + " is not an AVL-G tree log.");
+        }
+        if (header.getInt(4) < 1 || header.getInt(4) > LOG_VERSION) {
+            throw new IOException(file + " is a log of unsupported version " + header.getInt(4) + ".");
+        }
+        if (header.getInt(8) != codec.width()) {
+            throw new IOException(file + " holds keys of " + header.getInt(8) + " bytes, but the codec reads " +
+                    codec.width() + ".");
+        }
+        long end = replay(channel.size(), null);
+        if (end < channel.size()) {
+            channel.truncate(end);
+            channel.force(true);
+        }
+        if (header.getInt(4) != LOG_VERSION) {
+            channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, LOG_VERSION), Integer.BYTES);
+            channel.force(true);
+        }
+        channel.position(end);
+    }
+
+    /* Read the records stored before end, a chunk at a time, and apply them to tree if it is not null. Stop at the
+     * first record that is incomplete or does not match its checksum, and return where it starts. The file is read
+     * rather than mapped, since a file that is still mapped cannot be truncated on every platform.
+     */
+    private long replay(long end, AVLGTree<T> tree) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(RECORDS_PER_READ * recordSize);
+        CRC32 check = new CRC32(); // Not crc, which belongs to the appenders.
+        long at = HEADER;
+        while (at < end) {
+            chunk.clear();
+            chunk.limit((int) Math.min(chunk.capacity(), end - at));
+            while (chunk.hasRemaining() && channel.read(chunk, at + chunk.position()) > 0) {
+                // Keep reading.
+            }
+            chunk.flip();
+            for (int i = 0; i + recordSize <= chunk.limit(); i += recordSize) {
+                if (!intact(chunk, i, check)) {
+                    return at + i;
+                }
+                if (tree != null) {
+                    apply(tree, chunk, i);
+                }
+            }
+            if (chunk.limit() % recordSize != 0 || chunk.limit() == 0) {
+                return at + chunk.limit() - chunk.limit() % recordSize; // A record torn off at the end.
+            }
+            at += chunk.limit();
+        }
+        return at;
+    }
+
+    private void apply(AVLGTree<T> tree, ByteBuffer records, int at) {
+        byte op = records.get(at);
+        if (op == CLEAR) {
+            tree.clear();
+            return;
+        }
+        T key = codec.read(records, at + 1);
+        if (op == INSERT) {
+            tree.insert(key);
+        } else if (op == SPLIT) {
+            tree.split(key); // The larger keys are dropped with the returned tree.
+        } else if (!tree.isEmpty()) {
+            try {
+                tree.delete(key);
+            } catch (EmptyTreeException e) {
+                throw new AssertionError(e); // We just checked that the tree is not empty.
+            }
+        }
+    }
+
+    private boolean intact(ByteBuffer records, int at, CRC32 check) {
+        check.reset();
+        check.update(records.slice(at, recordSize - Integer.BYTES));
+        byte op = records.get(at);
+        return (op == INSERT || op == DELETE || op == CLEAR || op == SPLIT) &&
+                (int) check.getValue() == records.getInt(at + recordSize - Integer.BYTES);
+    }
+
+    /* ******************************************************** *
+     * ************************ APPENDING ********************* *
+     * ******************************************************** */
+
+    // Called by AVLGTree.setLog(): a log belongs to a single tree, since checkpoints and recovery assume one.
+    synchronized void attach(AVLGTree<T> tree) {
+        if (owner != null && owner != tree) {
+            throw new IllegalStateException("The log is already attached to another tree.");
+        }
+        owner = tree;
+    }
+
+    synchronized void detach(AVLGTree<T> tree) {
+        if (owner == tree) {
+            owner = null;
+        }
+    }
+
+    void logInsert(T key) {
+        append(INSERT, key);
+    }
+
+    void logDelete(T key) {
+        append(DELETE, key);
+    }
+
+    void logSplit(T key) {
+        append(SPLIT, key);
+    }
+
+    void logClear() {
+        append(CLEAR, null);
+    }
+
+    private void append(byte op, T key) {
+        long seq;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("The log is closed.");
+            }
+            if (failure != null) {
+                throw new UncheckedIOException("The log could not be written.", failure);
+            }
+            if (pending.remaining() < recordSize) {
+                ByteBuffer larger = ByteBuffer.allocate(2 * pending.capacity());
+                pending.flip();
+                larger.put(pending);
+                pending = larger;
+            }
+            int at = pending.position();
+            pending.put(at, op);
+            if (key != null) {
+                codec.write(pending, at + 1, key);
+            } else {
+                for (int i = 1; i <= codec.width(); i++) {
+                    pending.put(at + i, (byte) 0);
+                }
+            }
+            crc.reset();
+            crc.update(pending.slice(at, recordSize - Integer.BYTES));
+            pending.putInt(at + recordSize - Integer.BYTES, (int) crc.getValue());
+            pending.position(at + recordSize);
+            seq = ++appended;
+        }
+        if (window == 0) {
+            try {
+                flush(seq);
+            } catch (IOException e) {
+                throw new UncheckedIOException("The log could not be written.", e);
+            }
+        }
+    }
+
+    /**
+     * Force every update appended so far to disk, without waiting for the durability window to run out.
+     * @throws IOException if the log cannot be written.
+     */
+    public void sync() throws IOException {
+        long target;
+        synchronized (this) {
+            target = appended;
+        }
+        flush(target);
+    }
+
+    /* Make the first target records durable. The first thread that finds no flush in progress becomes the leader:
+     * it takes the whole pending batch, swaps in the spare buffer so that appends can go on, and writes and forces
+     * the batch without holding the lock. Threads that arrive meanwhile wait for it, and then either find their
+     * records already durable or lead the next batch, which by then holds all of their records at once.
+     */
+    private void flush(long target) throws IOException {
+        ByteBuffer batch;
+        long batchEnd;
+        synchronized (this) {
+            while (true) {
+                if (failure != null) {
+                    throw failure;
+                }
+                if (durable >= target) {
+                    return;
+                }
+                if (!flushing) {
+                    break;
+                }
+                waitForFlush();
+            }
+            flushing = true;
+            batch = pending;
+            pending = spare;
+            spare = null;
+            batchEnd = appended;
+        }
+        IOException error = null;
+        try {
+            batch.flip();
+            while (batch.hasRemaining()) {
+                channel.write(batch);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            error = e;
+        }
+        synchronized (this) {
+            batch.clear();
+            spare = batch;
+            flushing = false;
+            if (error != null) {
+                failure = error;
+            } else {
+                durable = batchEnd;
+            }
+            notifyAll();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void waitForFlush() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the log to be written.", e);
+        }
+    }
+
+    /* The background flusher of a log with a durability window. It is never interrupted, since interrupting a
+     * thread that is writing to a FileChannel closes the channel; close() wakes it up through the monitor instead.
+     */
+    private void flushPeriodically() {
+        while (true) {
+            synchronized (this) {
+                long deadline = System.nanoTime() + window * 1_000_000;
+                for (long left = window; !closed && left > 0; left = (deadline - System.nanoTime()) / 1_000_000) {
+                    try {
+                        wait(left);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return; // close() flushes whatever is left itself.
+                }
+            }
+            try {
+                sync();
+            } catch (IOException | RuntimeException e) {
+                return; // The failure is kept, and reported to the next update.
+            }
+        }
+    }
+
+    /* ******************************************************** *
+     * ****************** RECOVERY AND CHECKPOINTS ************ *
+     * ******************************************************** */
+
+    /**
+     * <p>Rebuild the tree as it was when the last update was logged: load the snapshot written by the last
+     * {@link #checkpoint(AVLGTree, Path)} (or start from an empty tree if there is none yet), replay every update
+     * in the log on top of it, and attach the log to the result, so that its later updates are logged too.</p>
+     *
+     * <p>Replaying is safe even if the log was not truncated after the snapshot was taken (a crash between the two):
+     * insertions and deletions of the same key are applied in the order they were made, so replaying them on a
+     * tree that already reflects them leaves it unchanged.</p>
+     * @param snapshot The snapshot file the checkpoints of this log write to.
+     * @param maxImbalance The maximum imbalance of the tree, if there is no snapshot yet.
+     * @return The recovered tree, with this log attached to it.
+     * @throws IOException if the snapshot or the log cannot be read.
+     * @throws InvalidBalanceException if there is no snapshot and maxImbalance is smaller than 1.
+     * @throws IllegalStateException if the log is already attached to a tree.
+     */
+    public AVLGTree<T> recover(Path snapshot, int maxImbalance) throws IOException, InvalidBalanceException {
+        synchronized (this) {
+            if (owner != null) {
+                throw new IllegalStateException("The log is already attached to a tree; recover it only once.");
+            }
+        }
+        sync();
+        AVLGTree<T> tree = Files.exists(snapshot) ? AVLGTree.load(snapshot, codec) : new AVLGTree<>(maxImbalance);
+        replay(channel.position(), tree);
+        tree.setLog(this);
+        return tree;
+    }
+
+    /**
+     * <p>Save tree to snapshot and truncate the log: the snapshot now holds every logged update. The snapshot is
+     * replaced atomically, and the log is only truncated once it is on disk, so a crash at any point leaves
+     * something {@link #recover(Path, int)} can rebuild the tree from. Call this from the thread that updates the
+     * tree, so that no update slips in between the two steps.</p>
+     * @param tree The tree this log is attached to.
+     * @param snapshot The file to save the tree to.
+     * @throws IOException if the snapshot or the log cannot be written.
+     * @throws IllegalArgumentException if the log is not attached to tree.
+     */
+    public void checkpoint(AVLGTree<T> tree, Path snapshot) throws IOException {
+        synchronized (this) {
+            if (owner != tree) {
+                throw new IllegalArgumentException("The log records the updates of another tree, or of none.");
+            }
+        }
+        sync();
+        tree.save(snapshot, codec);
+        synchronized (this) {
+            while (flushing) {
+                waitForFlush();
+            }
+            channel.truncate(HEADER);
+            channel.position(HEADER);
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Return the number of bytes the log takes on disk, header included.
+     * @return The size of the log file.
+     * @throws IOException if the size cannot be read.
+     */
+    public long getLogBytes() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * Force every update appended so far to disk, stop the background flusher and close the log file.
+     * @throws IOException if the log cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        if (flusher != null) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            sync();
+        } finally {
+            channel.close();
+        }
+    }
+}
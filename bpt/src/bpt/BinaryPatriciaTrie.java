@@ -3,6 +3,7 @@ package bpt;
 import bpt.UnimplementedMethodException;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -12,29 +13,35 @@ import java.util.NoSuchElementException;
  * aspects of Patricia Tries while shedding the storage cost typically associated with tries that
  * deal with huge alphabets.</p>
  *
+ * <p>Edge labels are stored as packed bits rather than as {@link String}s: bit {@code i} of a label is bit
+ * {@code 63 - (i % 64)} of word {@code i / 64} of a {@code long[]}, so a label costs one bit per bit instead of a
+ * byte per character. Matching a key against a label compares 64 bits at a time: the first differing bit of two
+ * words is the {@link Long#numberOfLeadingZeros(long)} of their XOR. Keys are packed once per operation and then
+ * walked with a position instead of being cut up with {@link String#substring(int)}.</p>
+ *
  * @author Obinna Anadu!
  */
 public class BinaryPatriciaTrie {
 
-    /* We are giving you this class as an example of what your inner node might look like.
-     * If you would prefer to use a size-2 array or hold other things in your nodes, please feel free
-     * to do so. We can *guarantee* that a *correct* implementation exists with *exactly* this data
-     * stored in the nodes.
+    /* Every label starts at bit 0 of its own words, and the bits of its last word past its length are always 0.
+     * The root is a splitter with an empty label; it stores the empty key, if it was inserted.
      */
     private static class TrieNode {
         private TrieNode left, right;
-        private String str;
+        private long[] bits;
+        private int length;
         private boolean isKey;
 
         // Default constructor for your inner nodes.
         TrieNode() {
-            this("", false);
+            this(new long[0], 0, false);
         }
 
         // Non-default constructor.
-        TrieNode(String str, boolean isKey) {
+        TrieNode(long[] bits, int length, boolean isKey) {
             left = right = null;
-            this.str = str;
+            this.bits = bits;
+            this.length = length;
             this.isKey = isKey;
         }
     }
@@ -51,57 +58,120 @@ public class BinaryPatriciaTrie {
     }
 
     public void printTree() {
-        for (int i = 1; i <= size; i++) {
-          //  helpme(root, i);
-        }
         helpme(root);
     }
 
     private void helpme(TrieNode curr) {
         if (curr != null) {
-                TrieNode left = (curr.left != null) ? curr.left : null;
-                TrieNode right = (curr.right != null) ? curr.right : null;
-          
-               
-                System.out.println("Current Node: " + curr.str + " isKey? " + curr.isKey + " Left: " +
-                ((left != null) ? left.str : "N/A") + " Right: " +  ((right != null) ? right.str : "N/A"));
-            
-                 helpme(left);
-                 helpme(right);
-            
-           
+            TrieNode left = curr.left;
+            TrieNode right = curr.right;
+            System.out.println("Current Node: " + label(curr) + " isKey? " + curr.isKey + " Left: " +
+                    ((left != null) ? label(left) : "N/A") + " Right: " + ((right != null) ? label(right) : "N/A"));
+            helpme(left);
+            helpme(right);
         }
     }
 
-    
+    private static String label(TrieNode node) {
+        return appendBits(new StringBuilder(), node.bits, node.length).toString();
+    }
 
-    private TrieNode removeJunk(TrieNode curr) {
-        if (curr != null) {
-            if (curr.isKey) {
-                curr.left = removeJunk(curr.left);
-                curr.right = removeJunk(curr.right);
-                return curr;
-            } else {
-                if (curr.left != null && curr.right != null) {
-                    curr.left = removeJunk(curr.left);
-                    curr.right = removeJunk(curr.right);
-                    return curr;
-                } else if (curr.left != null) {
-                    curr.str += curr.left.str;
-                    curr.isKey = true;
-                    curr.right = removeJunk(curr.left.right);
-                    curr.left = removeJunk(curr.left.left);
-                    return curr;
-                } else {
-                    curr.str += curr.right.str;
-                    curr.isKey = true;
-                    curr.left = removeJunk(curr.right.left);
-                    curr.right = removeJunk(curr.right.right);
-                    return curr;
-                }
+    // Pack the characters of key into words, most significant bit first.
+    private static long[] pack(String key) {
+        int n = key.length();
+        long[] words = new long[(n + 63) >>> 6];
+        for (int w = 0, i = 0; w < words.length; w++) {
+            int end = Math.min(i + 64, n);
+            long word = 0;
+            int invalid = 0;
+            for (; i < end; i++) {
+                int b = key.charAt(i) - '0';
+                invalid |= b;
+                word = (word << 1) | b;
+            }
+            if ((invalid & ~1) != 0) {
+                throw new IllegalArgumentException("Keys are made of 0s and 1s, but " + key + " is not.");
+            }
+            words[w] = (end & 63) == 0 ? word : word << (64 - (end & 63));
+        }
+        return words;
+    }
+
+    private static StringBuilder appendBits(StringBuilder out, long[] words, int length) {
+        for (int i = 0; i < length; i++) {
+            out.append(bit(words, i) ? '1' : '0');
+        }
+        return out;
+    }
+
+    private static boolean bit(long[] words, int i) {
+        return (words[i >>> 6] << i) < 0;
+    }
+
+    // The 64 bits of words starting at bit from, which has to be inside words; bits past its end read as 0.
+    private static long window(long[] words, int from) {
+        int word = from >>> 6, shift = from & 63;
+        long window = words[word] << shift;
+        if (shift != 0 && word + 1 < words.length) {
+            window |= words[word + 1] >>> (64 - shift);
+        }
+        return window;
+    }
+
+    // The length of the longest common prefix of the n bits of a from aFrom and of b from bFrom.
+    private static int mismatch(long[] a, int aFrom, long[] b, int bFrom, int n) {
+        for (int i = 0; i < n; i += 64) {
+            long diff = window(a, aFrom + i) ^ window(b, bFrom + i);
+            if (diff != 0) {
+                return Math.min(i + Long.numberOfLeadingZeros(diff), n);
             }
         }
-        return null;
+        return n;
+    }
+
+    // Bits [from, to) of words, moved to the start of words of their own.
+    private static long[] slice(long[] words, int from, int to) {
+        long[] out = new long[(to - from + 63) >>> 6];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = window(words, from + 64 * i);
+        }
+        int tail = (to - from) & 63;
+        if (tail != 0) {
+            out[out.length - 1] &= -1L << (64 - tail);
+        }
+        return out;
+    }
+
+    // The aLength bits of a followed by the bLength bits of b.
+    private static long[] concat(long[] a, int aLength, long[] b, int bLength) {
+        long[] out = Arrays.copyOf(a, (aLength + bLength + 63) >>> 6);
+        int shift = aLength & 63;
+        for (int i = 0; i < b.length; i++) {
+            int word = (aLength >>> 6) + i;
+            out[word] |= b[i] >>> shift;
+            if (shift != 0 && word + 1 < out.length) {
+                out[word + 1] |= b[i] << (64 - shift);
+            }
+        }
+        return out;
+    }
+
+    private static void attach(TrieNode parent, TrieNode child) {
+        if (bit(child.bits, 0)) {
+            parent.right = child;
+        } else {
+            parent.left = child;
+        }
+    }
+
+    // Absorb the only child of node, which is a splitter that is not a key anymore or never was.
+    private static void merge(TrieNode node) {
+        TrieNode child = (node.left != null) ? node.left : node.right;
+        node.bits = concat(node.bits, node.length, child.bits, child.length);
+        node.length += child.length;
+        node.isKey = child.isKey;
+        node.left = child.left;
+        node.right = child.right;
     }
 
     /**
@@ -111,43 +181,18 @@ public class BinaryPatriciaTrie {
      * @return {@code true} if and only if key is in the trie, {@code false} otherwise.
      */
     public boolean search(String key) {
-        
+        long[] k = pack(key);
+        int n = key.length();
         TrieNode curr = root;
-        if (key.charAt(0) == '0') {
-            curr = curr.left;
-        } else {
-            curr = curr.right;
-        }
-
-    
-        
-        return search(key, curr);
-    }
-
-    private boolean search(String key, TrieNode curr) {
-        if (curr != null) {
-            //if (key.equals(curr.str) && curr.isKey) {
-             //   return true;
-            //}
-
-            int i = 0;
-            while (i < key.length() && i < curr.str.length() && key.charAt(i) == curr.str.charAt(i)) {
-                i = i + 1;
-            }
-            if (i < key.length() && i >= curr.str.length()) {
-                key = key.substring(i);
-                if (key.charAt(0) == '0') {
-                    return search(key, curr.left);
-                } else {
-                    return search(key, curr.right);
-                }
-            } else if (key.equals(curr.str) && curr.isKey)  {
-                return true;
-            } else {
+        int pos = 0; // The bits of key before pos spell the path to curr.
+        while (pos < n) {
+            curr = bit(k, pos) ? curr.right : curr.left;
+            if (curr == null || curr.length > n - pos || mismatch(k, pos, curr.bits, 0, curr.length) < curr.length) {
                 return false;
             }
+            pos += curr.length;
         }
-        return false;
+        return curr.isKey;
     }
 
     /**
@@ -157,104 +202,45 @@ public class BinaryPatriciaTrie {
      * @return {@code true} if and only if the key was not already in the trie, {@code false} otherwise.
      */
     public boolean insert(String key) {
-        if (search(key)) {
-            return false;
-        }
-        
-
-        if (size == 0) {
-
-            TrieNode t = new TrieNode(key, true);
+        long[] k = pack(key);
+        int n = key.length();
+        TrieNode parent = root;
+        int pos = 0;
+        while (pos < n) {
+            TrieNode curr = bit(k, pos) ? parent.right : parent.left;
+            if (curr == null) {
+                attach(parent, new TrieNode(slice(k, pos, n), n - pos, true));
+                size++;
+                return true;
+            }
+            int common = mismatch(k, pos, curr.bits, 0, Math.min(curr.length, n - pos));
+            if (common == curr.length) {
+                parent = curr;
+                pos += common;
+                continue;
+            }
 
-            if (key.charAt(0) == '0') {
-                root.left = t;
-            } else {
-                root.right = t;
+            // key leaves the label of curr after common bits, so split the label there. The new node is
+            // key itself if key ends there, and a splitter otherwise.
+            TrieNode split = new TrieNode(slice(curr.bits, 0, common), common, pos + common == n);
+            curr.bits = slice(curr.bits, common, curr.length);
+            curr.length -= common;
+            attach(split, curr);
+            if (pos + common < n) {
+                attach(split, new TrieNode(slice(k, pos + common, n), n - pos - common, true));
             }
+            attach(parent, split);
             size++;
             return true;
-
-        } else {
-            size +=1;
-            if (key.charAt(0) == '0') {
-                root.left = insert(key, root.left);
-            } else {
-                root.right = insert(key, root.right);
-            }   
         }
-
-        root.left = removeJunk(root.left);
-        root.right = removeJunk(root.right);
-        return true;   
-    }
-
-
-    private TrieNode insert(String key, TrieNode curr) {
-
-        if (curr != null) {    
-                int i = 0;
-                while (i < key.length() && i < curr.str.length() && key.charAt(i) == curr.str.charAt(i)) {
-                    i = i + 1;
-                }
-
-                if (i == key.length() && i == curr.str.length() && !curr.isKey) {
-                    curr.isKey = true;
-                    return curr;
-                }
-                 
-                //this means that i can keep traversing down the tree
-                if (i < key.length() && i >= curr.str.length()) {
-                    key = key.substring(i);
-                    if (key.charAt(0) == '0') {
-                        curr.left = insert(key, curr.left);
-                        return curr;
-                    } else {
-                        curr.right = insert(key, curr.right);
-                        return curr;
-                    }
-                }
-
-                //this means what im trying to insert is a prefix of current key
-                //so i make a new parent
-                if (i >= key.length() && i < curr.str.length()) {
-                    String temp = curr.str.substring(i);
-                    curr.str = temp;
-                    TrieNode parent = new TrieNode(key, true);
-
-                    if (temp.charAt(0) == '0') {
-                        parent.left =  curr;
-                    } else {
-                        parent.right = curr;
-                    }
-                    return parent;
-                }   
-                
-                //both paramter key and current key share same prefix,
-                //so split the node to create two new children
-                if (i < key.length() && i < curr.str.length()) {
-                    String prefix = key.substring(0, i);
-                    key = key.substring(i);
-                    String currString = curr.str.substring(i);
-                    curr.str = currString;
-                    TrieNode split = new TrieNode(prefix, false);
-               
-                    
-                    if (currString.charAt(0) == '0') {
-                        split.left = curr;
-                        split.right = new TrieNode(key, true);
-                    } else {
-                        split.right = curr;
-                        split.left = new TrieNode(key, true);
-                    }
-
-                    return split;
-                } 
-            
+        if (parent.isKey) {
+            return false;
         }
-        return new TrieNode(key, true);
+        parent.isKey = true;
+        size++;
+        return true;
     }
-    
-    
+
     /**
      * Deletes key from the trie.
      *
@@ -262,58 +248,39 @@ public class BinaryPatriciaTrie {
      * @return {@code true} if and only if key was contained by the trie before we attempted deletion, {@code false} otherwise.
      */
     public boolean delete(String key) {
-        if (!search(key)) {
+        long[] k = pack(key);
+        int n = key.length();
+        TrieNode parent = null, curr = root;
+        int pos = 0;
+        while (pos < n) {
+            parent = curr;
+            curr = bit(k, pos) ? curr.right : curr.left;
+            if (curr == null || curr.length > n - pos || mismatch(k, pos, curr.bits, 0, curr.length) < curr.length) {
+                return false;
+            }
+            pos += curr.length;
+        }
+        if (!curr.isKey) {
             return false;
         }
-      
-      
+        curr.isKey = false;
         size--;
-        if (key.charAt(0) == '0') {
-            root.left = deleteHelp(root.left, key);
-        } else {
-            root.right = deleteHelp(root.right, key);
+        if (curr == root || (curr.left != null && curr.right != null)) {
+            return true; // curr is still a splitter.
         }
-
-        root.left = removeJunk(root.left);
-        root.right = removeJunk(root.right);
-        return true;
-    }
-
-    private TrieNode deleteHelp(TrieNode curr, String key) {
-        if (curr != null) {
-           
-            if (curr.str.equals(key)) {
-                if (curr.left != null && curr.right != null) {
-                    curr.isKey = false;
-                } else if (curr.left == null && curr.right == null) {
-                    curr = null;
-                } else if (curr.left != null) {
-                    
-                    curr.str += curr.left.str;
-                    curr.left = curr.left.left;
-                } else {
-                    
-                    curr.str += curr.right.str;
-                    curr.right = curr.right.right;
-                }
-                return curr;
-            }
-        
-            int i = 0;
-            while (i < key.length() && i < curr.str.length() && key.charAt(i) == curr.str.charAt(i)) {
-                i = i + 1;
-            }
-
-            key = key.substring(i);
-            if (key.charAt(0) == '0') {
-                curr.left = deleteHelp(curr.left, key);
-                return curr;
+        if (curr.left != null || curr.right != null) {
+            merge(curr);
+        } else {
+            if (parent.left == curr) {
+                parent.left = null;
             } else {
-                curr.right = deleteHelp(curr.right, key);
-                return curr;
+                parent.right = null;
+            }
+            if (parent != root && !parent.isKey) {
+                merge(parent); // parent split into curr and one other subtree, which it now absorbs.
             }
         }
-        return null;
+        return true;
     }
 
     /**
@@ -359,24 +326,25 @@ public class BinaryPatriciaTrie {
     class bptIterator implements Iterator<String>{
         private int count;
         ArrayList<String> arr;
-        
+
         public bptIterator() {
             arr = new ArrayList<>();
             count = 0;
-            fillArray(root, null, "");
+            fillArray(root, new StringBuilder());
         }
 
-        public String fillArray(TrieNode curr, TrieNode parent, String s) {
+        // prefix spells the path above curr, and is left that way once curr's subtree has been visited.
+        private void fillArray(TrieNode curr, StringBuilder prefix) {
             if (curr != null) {
-            s +=  curr.str;
-            fillArray(curr.left, curr, s);
-            if (curr.isKey) {
-                arr.add(s);
-            }
-            fillArray(curr.right, curr, s);
+                int mark = prefix.length();
+                appendBits(prefix, curr.bits, curr.length);
+                fillArray(curr.left, prefix);
+                if (curr.isKey) {
+                    arr.add(prefix.toString());
+                }
+                fillArray(curr.right, prefix);
+                prefix.setLength(mark);
             }
-
-            return s;
         }
 
         @Override
@@ -394,7 +362,7 @@ public class BinaryPatriciaTrie {
                 throw new NoSuchElementException();
             }
         }
-        
+
     }
 
     /**
@@ -411,30 +379,36 @@ public class BinaryPatriciaTrie {
         if (getSize() == 0) {
             return "";
         }
-        TrieNode curr = root;
-        String s = "";
-        return helper(curr, s);
+        StringBuilder longest = new StringBuilder();
+        findLongest(root, 0, longestLength(root, 0), longest);
+        return longest.toString();
     }
 
-    public String helper(TrieNode curr, String s) {
-        if (curr != null) {
-            s += curr.str;
-            int compare = Integer.compare(helper(curr.left, s).length(), helper(curr.right, s).length());
-            if (compare > 0) {
-                s = helper(curr.left, s);
-            } else if (compare < 0) {
-                s = helper(curr.right, s);
-            } else {
-                int compare2 = Integer.compare(Integer.parseInt(helper(curr.left, s)), Integer.parseInt(helper(curr.right, s)));
+    private static int longestLength(TrieNode curr, int depth) {
+        if (curr == null) {
+            return -1;
+        }
+        depth += curr.length;
+        int longest = curr.isKey ? depth : -1;
+        return Math.max(longest, Math.max(longestLength(curr.left, depth), longestLength(curr.right, depth)));
+    }
 
-                if (compare2 < 0) {
-                    s = helper(curr.right, s); 
-                } else {
-                    s = helper(curr.left, s);
-                }
-            }
+    /* Right subtrees first: of two keys of the same length, the one down the right branch where they part is the
+     * larger. A key of the longest length has no keys below it, so the first one found is the answer.
+     */
+    private static boolean findLongest(TrieNode curr, int depth, int target, StringBuilder path) {
+        if (curr == null) {
+            return false;
         }
-        return s;
+        int mark = path.length();
+        appendBits(path, curr.bits, curr.length);
+        depth += curr.length;
+        if ((curr.isKey && depth == target) || findLongest(curr.right, depth, target, path) ||
+                findLongest(curr.left, depth, target, path)) {
+            return true;
+        }
+        path.setLength(mark);
+        return false;
     }
 
     /**
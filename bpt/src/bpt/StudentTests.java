@@ -4,7 +4,10 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 
 //import javax.swing.text.html.HTMLDocument.Iterator;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Random;
+import java.util.Set;
 
 /**
  * A jUnit test suite for {@link BinaryPatriciaTrie}.
@@ -103,4 +106,50 @@ public class StudentTests {
         assertTrue("After inserting five strings and deleting one of them, the trie had some junk in it!",
                 trie.isJunkFree());
     }
-}
\ No newline at end of file
+
+    // Keys of up to 200 bits, so that labels cross word boundaries at every offset.
+    @Test public void testLongKeysAgainstSet() {
+        BinaryPatriciaTrie trie = new BinaryPatriciaTrie();
+        Set<String> expected = new HashSet<>();
+        Random r = new Random(420);
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder key = new StringBuilder(r.nextInt(200) + 1);
+            int length = 1 + r.nextInt(200);
+            boolean shared = r.nextBoolean(); // Long runs of 0s give many keys that share long prefixes.
+            for (int j = 0; j < length; j++) {
+                key.append((shared && j < length - 8) ? '0' : (char) ('0' + r.nextInt(2)));
+            }
+            String k = key.toString();
+            if (r.nextInt(3) == 0) {
+                assertEquals("delete should report whether " + k + " was stored.", expected.remove(k), trie.delete(k));
+            } else {
+                assertEquals("insert should report whether " + k + " was new.", expected.add(k), trie.insert(k));
+            }
+            assertEquals("search should agree with the set.", expected.contains(k), trie.search(k));
+        }
+        assertEquals("The trie should count its keys.", expected.size(), trie.getSize());
+        assertTrue("The trie should not keep junk nodes.", trie.isJunkFree());
+
+        Set<String> traversed = new HashSet<>();
+        Iterator<String> it = trie.inorderTraversal();
+        while (it.hasNext()) {
+            assertTrue("Traversal should not repeat keys.", traversed.add(it.next()));
+        }
+        assertEquals("Traversal should spell out every stored key.", expected, traversed);
+
+        String longest = "";
+        for (String k : expected) {
+            if (k.length() > longest.length() || (k.length() == longest.length() && k.compareTo(longest) > 0)) {
+                longest = k;
+            }
+        }
+        assertEquals("getLongest should break ties by value.", longest, trie.getLongest());
+
+        for (String k : expected) {
+            assertTrue("Every stored key should be deletable.", trie.delete(k));
+            assertFalse("Deleted keys should be gone.", trie.search(k));
+        }
+        assertTrue("Deleting every key should empty the trie.", trie.isEmpty());
+        assertEquals("An empty trie has no longest key.", "", trie.getLongest());
+    }
+}
\ No newline at end of file